@@ -102,7 +102,12 @@ import java.util.Map;
  *
  * <p>This class was modified by Marco Foscato to allow setting of longer timeout to AllRingsFinder. 
  * This is achieved by adding a setRingFinderTimeout method and the arfTimeout variable. If the  
- * setRingFinderTimeout method is not called the SMARTSQueryTool behaves normally. The modified lines are 
+ * setRingFinderTimeout method is not called the SMARTSQueryTool behaves normally. 
+ * A setQuery method allows to use queries that have been parsed beforehand, so that the same 
+ * <code>QueryAtomContainer</code> can be re-used without parsing the SMARTS again. The preparation of the 
+ * target molecule is available as a static method, and a molecule prepared beforehand can be set with the 
+ * setInitializedMolecule method, so that ring perception and aromaticity detection are done only once for 
+ * many instances of this class. The modified lines are 
  * between <code>MFmod</code> and <code>MFend</code> comments.</p>
  *
  * @author Rajarshi Guha
@@ -164,6 +169,31 @@ public class SMARTSQueryTool {
     public void setMaxRingSize(int maxRingSize) {
         this.maxRingSize = maxRingSize;
     }
+
+    /**
+     * Set a new query that has already been parsed. The SMARTS is not 
+     * parsed again and the query cache is not used.
+     *
+     * @param smarts The SMARTS pattern corresponding to the query
+     * @param query  The query obtained by parsing <code>smarts</code>
+     */
+    public void setQuery(String smarts, QueryAtomContainer query) {
+        this.smarts = smarts;
+        this.query = query;
+        matchingAtoms = null;
+    }
+
+    /**
+     * Set the target molecule assuming it has already been prepared by
+     * {@link #initializeMolecule(IAtomContainer, long, int)}. The following calls to
+     * <code>matches</code> on the same molecule do not repeat ring perception and aromaticity detection, unless
+     * the initialization is forced.
+     *
+     * @param atomContainer The molecule that has already been prepared
+     */
+    public void setInitializedMolecule(IAtomContainer atomContainer) {
+        this.atomContainer = atomContainer;
+    }
     //MFend
 
     /**
@@ -338,6 +368,26 @@ public class SMARTSQueryTool {
      *                      to a timeout in the ring finding code.
      */
     private void initializeMolecule() throws CDKException {
+        //MFmod
+        initializeMolecule(atomContainer, arfTimeout, maxRingSize);
+    }
+
+    /**
+     * Prepare a target molecule for analysis independently of any query. This is the ring perception,
+     * aromaticity detection, and setting of atom properties that is otherwise done by the
+     * <code>matches</code> methods. A molecule prepared by this method can be given to
+     * {@link #setInitializedMolecule(IAtomContainer)} to avoid doing it again.
+     *
+     * @param atomContainer The molecule to prepare
+     * @param arfTimeout    The timeout of AllRingsFinder in milliseconds (non positive for the default)
+     * @param maxRingSize   The maximum ring size considered by AllRingsFinder (non positive for no limit)
+     * @return the set of all rings found by AllRingsFinder
+     * @throws CDKException if there is a problem in ring perception or aromaticity detection, which is usually related
+     *                      to a timeout in the ring finding code.
+     */
+    public static IRingSet initializeMolecule(IAtomContainer atomContainer, long arfTimeout, int maxRingSize)
+            throws CDKException {
+        //MFend
         // Code copied from
         // org.openscience.cdk.qsar.descriptors.atomic.AtomValenceDescriptor;
         Map<String, Integer> valencesTable = new HashMap<String, Integer>();
@@ -479,6 +529,9 @@ public class SMARTSQueryTool {
             logger.debug(e.toString());
             throw new CDKException(e.toString(), e);
         }
+        //MFmod
+        return allRings;
+        //MFend
     }
 
     /**
@@ -0,0 +1,319 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+/**
+ * State of a fragmentation run saved to disk to allow resuming the run
+ * after an interruption. The checkpoint records the position in the input
+ * file of the first molecule that has not been processed, the counters of
+ * the <code>Fragmenter</code>, and the length of the output files at the
+ * time of the checkpoint. Since the output files are written only by
+ * appending, the content preceding the recorded length is exactly the
+ * output produced so far, including the fragments defining the collection of
+ * unique fragments. The compatibility matrix and the class-to-bond order
+ * map are appended in the format of the compatibility matrix files.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class Checkpoint
+{
+    //Input file and position of the next molecule to process
+    private String inputFile;
+    private long inputOffset;
+
+    //Counters
+    private int molIdx = 0;
+    private int molnum = 0;
+    private int numTotFrag = 0;
+    private int num2D = 0;
+    private int numRejected = 0;
+
+    //Length of the output files
+    private Map<String,Long> fileLengths = new LinkedHashMap<String,Long>();
+
+    //Keywords
+    private static final String INPUTKEY = "INPUTFILE";
+    private static final String OFFSETKEY = "INPUTOFFSET";
+    private static final String MOLIDXKEY = "MOLINDEX";
+    private static final String MOLNUMKEY = "MOLNUM";
+    private static final String FRAGNUMKEY = "NUMFRAGMENTS";
+    private static final String NUM2DKEY = "NUM2D";
+    private static final String REJECTEDKEY = "NUMREJECTED";
+    private static final String LENGTHKEY = "FILELENGTH";
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a checkpoint
+     * @param inputFile the input file
+     * @param inputOffset the position (in bytes) of the first unprocessed
+     * molecule in <code>inputFile</code>
+     */
+
+    public Checkpoint(String inputFile, long inputOffset)
+    {
+        this.inputFile = inputFile;
+        this.inputOffset = inputOffset;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param jobName the name of the job
+     * @return the name of the checkpoint file of the job
+     */
+
+    public static String getFileName(String jobName)
+    {
+        return "Checkpoint_"+jobName+".chk";
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Set the counters of the <code>Fragmenter</code>
+     * @param molIdx number of input molecules that have been processed
+     * @param molnum number of fragmented molecules
+     * @param numTotFrag number of stored fragments
+     * @param num2D number of molecules in 2D
+     * @param numRejected number of rejected molecules
+     */
+
+    public void setCounters(int molIdx, int molnum, int numTotFrag, int num2D,
+                                                              int numRejected)
+    {
+        this.molIdx = molIdx;
+        this.molnum = molnum;
+        this.numTotFrag = numTotFrag;
+        this.num2D = num2D;
+        this.numRejected = numRejected;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Record the present length of a file. Buffered content must be
+     * written to disk before calling this method.
+     * @param filename the file
+     */
+
+    public void addFileLength(String filename)
+    {
+        fileLengths.put(filename,new File(filename).length());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Record the lengths of files measured by the caller
+     * @param lengths the length (bytes) of each file
+     */
+
+    public void addFileLengths(Map<String,Long> lengths)
+    {
+        fileLengths.putAll(lengths);
+    }
+
+//------------------------------------------------------------------------------
+
+    public String getInputFile()
+    {
+        return inputFile;
+    }
+
+//------------------------------------------------------------------------------
+
+    public long getInputOffset()
+    {
+        return inputOffset;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getMolIndex()
+    {
+        return molIdx;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getMolNum()
+    {
+        return molnum;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getNumTotFrag()
+    {
+        return numTotFrag;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getNum2D()
+    {
+        return num2D;
+    }
+
+//------------------------------------------------------------------------------
+
+    public int getNumRejected()
+    {
+        return numRejected;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the recorded length of the output files
+     */
+
+    public Map<String,Long> getFileLengths()
+    {
+        return fileLengths;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Cuts all the recorded output files to the length they had at the time
+     * of the checkpoint.
+     */
+
+    public void truncateFiles()
+    {
+        for (String filename : fileLengths.keySet())
+        {
+            IOtools.truncateFile(filename,fileLengths.get(filename));
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the checkpoint file. The file is first written with a
+     * temporary name and then renamed, so that an interruption while
+     * writing does not affect the previous checkpoint.
+     * @param filename the checkpoint file
+     * @param compMat the compatibility matrix
+     * @param classBndOrd the class-to-bond order map
+     */
+
+    public void write(String filename, CompatibilityMatrix compMat,
+                                             Map<String,Integer> classBndOrd)
+    {
+        String tmpFile = filename + ".tmp";
+        IOtools.deleteFile(tmpFile);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("# Checkpoint of fragmentation\n");
+        sb.append(INPUTKEY).append(" ").append(inputFile).append("\n");
+        sb.append(OFFSETKEY).append(" ").append(inputOffset).append("\n");
+        sb.append(MOLIDXKEY).append(" ").append(molIdx).append("\n");
+        sb.append(MOLNUMKEY).append(" ").append(molnum).append("\n");
+        sb.append(FRAGNUMKEY).append(" ").append(numTotFrag).append("\n");
+        sb.append(NUM2DKEY).append(" ").append(num2D).append("\n");
+        sb.append(REJECTEDKEY).append(" ").append(numRejected).append("\n");
+        for (String file : fileLengths.keySet())
+        {
+            sb.append(LENGTHKEY).append(" ").append(fileLengths.get(file));
+            sb.append(" ").append(file).append("\n");
+        }
+        IOtools.writeTXTAppend(tmpFile,sb.toString(),false);
+        compMat.writeCPMapFile(tmpFile,classBndOrd);
+
+        File tmp = new File(tmpFile);
+        File chk = new File(filename);
+        if (!tmp.renameTo(chk))
+        {
+            chk.delete();
+            if (!tmp.renameTo(chk))
+            {
+                System.err.println("ERROR! Unable to write checkpoint file "
+                                                                   +filename);
+                System.exit(-1);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads a checkpoint file. The compatibility matrix and class-to-bond
+     * order map are not read here, but can be read from the same file by
+     * <code>CompatibilityMatrix</code>.
+     * @param filename the checkpoint file
+     * @return the checkpoint
+     */
+
+    public static Checkpoint read(String filename)
+    {
+        String input = null;
+        long offset = -1;
+        Checkpoint chk = null;
+        int[] counters = new int[5];
+        Map<String,Long> lengths = new LinkedHashMap<String,Long>();
+        ArrayList<String> lines = IOtools.readTXT(filename);
+        try {
+            for (String line : lines)
+            {
+                String[] words = line.trim().split("\\s+",3);
+                if (words[0].equals(INPUTKEY))
+                    input = line.trim().substring(INPUTKEY.length()).trim();
+                else if (words[0].equals(OFFSETKEY))
+                    offset = Long.parseLong(words[1]);
+                else if (words[0].equals(MOLIDXKEY))
+                    counters[0] = Integer.parseInt(words[1]);
+                else if (words[0].equals(MOLNUMKEY))
+                    counters[1] = Integer.parseInt(words[1]);
+                else if (words[0].equals(FRAGNUMKEY))
+                    counters[2] = Integer.parseInt(words[1]);
+                else if (words[0].equals(NUM2DKEY))
+                    counters[3] = Integer.parseInt(words[1]);
+                else if (words[0].equals(REJECTEDKEY))
+                    counters[4] = Integer.parseInt(words[1]);
+                else if (words[0].equals(LENGTHKEY))
+                    lengths.put(words[2],Long.parseLong(words[1]));
+            }
+        } catch (Throwable t) {
+            System.err.println("ERROR! Unable to read checkpoint file "
+                                                         +filename+". "+t);
+            System.exit(-1);
+        }
+        if (input == null || offset < 0)
+        {
+            System.err.println("ERROR! Incomplete checkpoint file "+filename);
+            System.exit(-1);
+        }
+
+        chk = new Checkpoint(input,offset);
+        chk.setCounters(counters[0],counters[1],counters[2],counters[3],
+                                                                 counters[4]);
+        chk.fileLengths = lengths;
+        return chk;
+    }
+
+//------------------------------------------------------------------------------
+}
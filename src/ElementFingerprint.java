@@ -0,0 +1,411 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Cheap description of the elements contained in a molecule and of the
+ * pairs of elements that are bonded to each other. It is used to
+ * identify the cutting rules that cannot match a molecule without running
+ * any substructure search. Sets of elements are represented by
+ * <code>BitSet</code>s indexed by atomic number, where <code>null</code>
+ * stands for 'any element'.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class ElementFingerprint
+{
+    //Elements found in the molecule
+    private BitSet elements = new BitSet();
+
+    //Pairs of bonded elements (atomic numbers)
+    private List<int[]> bondedPairs = new ArrayList<int[]>();
+
+    //Element symbols ordered by atomic number
+    private static final String[] SYMBOLS = ("H He Li Be B C N O F Ne Na Mg "
+       + "Al Si P S Cl Ar K Ca Sc Ti V Cr Mn Fe Co Ni Cu Zn Ga Ge As Se Br Kr "
+       + "Rb Sr Y Zr Nb Mo Tc Ru Rh Pd Ag Cd In Sn Sb Te I Xe Cs Ba La Ce Pr "
+       + "Nd Pm Sm Eu Gd Tb Dy Ho Er Tm Yb Lu Hf Ta W Re Os Ir Pt Au Hg Tl Pb "
+       + "Bi Po At Rn Fr Ra Ac Th Pa U Np Pu Am Cm Bk Cf Es Fm Md No Lr Rf Db "
+       + "Sg Bh Hs Mt Ds Rg Cn").split(" ");
+
+    //Atomic numbers of the symbols
+    private static final Map<String,Integer> ATOMICNUMBERS =
+                                                new HashMap<String,Integer>();
+    static {
+        for (int i=0; i<SYMBOLS.length; i++)
+        {
+            ATOMICNUMBERS.put(SYMBOLS[i],i+1);
+        }
+    }
+
+    //Aromatic symbols that can be used in SMARTS
+    private static final String[] AROMATICSYMBOLS = {"se","as","b","c","n",
+                                                             "o","p","s"};
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Collects the elements and bonded pairs of elements of a molecule.
+     * Atoms with unknown symbols (i.e., dummy atoms) are recorded as
+     * element 0.
+     * @param mol the molecule
+     */
+
+    public ElementFingerprint(IAtomContainer mol)
+    {
+        for (IAtom atm : mol.atoms())
+        {
+            elements.set(getAtomicNumber(atm.getSymbol()));
+        }
+
+        BitSet pairs = new BitSet();
+        int size = SYMBOLS.length + 1;
+        for (IBond bnd : mol.bonds())
+        {
+            if (bnd.getAtomCount() != 2)
+                continue;
+            int a = getAtomicNumber(bnd.getAtom(0).getSymbol());
+            int b = getAtomicNumber(bnd.getAtom(1).getSymbol());
+            if (a > b)
+            {
+                int t = a;
+                a = b;
+                b = t;
+            }
+            if (pairs.get(a * size + b))
+                continue;
+            pairs.set(a * size + b);
+            bondedPairs.add(new int[] {a, b});
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param set the set of elements (<code>null</code> for any element)
+     * @return <code>true</code> if the molecule contains at least one
+     * of the elements of the set
+     */
+
+    public boolean containsAnyOf(BitSet set)
+    {
+        if (set == null)
+            return !elements.isEmpty();
+        return set.intersects(elements);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param set0 the elements allowed on one side of the bond
+     * (<code>null</code> for any element)
+     * @param set1 the elements allowed on the other side of the bond
+     * (<code>null</code> for any element)
+     * @return <code>true</code> if the molecule contains at least one bond
+     * between an element from <code>set0</code> and one from
+     * <code>set1</code>
+     */
+
+    public boolean hasBondBetween(BitSet set0, BitSet set1)
+    {
+        for (int[] pair : bondedPairs)
+        {
+            if (inSet(pair[0],set0) && inSet(pair[1],set1))
+                return true;
+            if (inSet(pair[1],set0) && inSet(pair[0],set1))
+                return true;
+        }
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static boolean inSet(int z, BitSet set)
+    {
+        return set == null || set.get(z);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param symbol the element symbol
+     * @return the atomic number, or 0 for unknown symbols
+     */
+
+    public static int getAtomicNumber(String symbol)
+    {
+        Integer z = ATOMICNUMBERS.get(symbol);
+        if (z == null)
+            return 0;
+        return z;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Identifies the elements that can be matched by the first atom of a
+     * SMARTS query. The analysis is conservative: whenever the element
+     * cannot be determined (i.e., negations, wildcards, and primitives
+     * not related to the element) any element is allowed.
+     * @param smarts the SMARTS query
+     * @return the set of atomic numbers, or <code>null</code> if any
+     * element can be matched
+     */
+
+    public static BitSet getElementsOfFirstAtom(String smarts)
+    {
+        String s = smarts.trim();
+        if (s.length() == 0)
+            return null;
+
+        if (s.charAt(0) == '[')
+        {
+            int end = findClosing(s,0);
+            if (end < 0)
+                return null;
+            return getElementsOfAtomExpr(s.substring(1,end));
+        }
+
+        //Atoms outside brackets (organic subset)
+        if (s.startsWith("Cl") || s.startsWith("Br"))
+            return asSet(getAtomicNumber(s.substring(0,2)));
+        String first = s.substring(0,1);
+        if (ATOMICNUMBERS.containsKey(first))
+            return asSet(getAtomicNumber(first));
+        if (ATOMICNUMBERS.containsKey(first.toUpperCase())
+                                             && !first.equals("a"))
+            return asSet(getAtomicNumber(first.toUpperCase()));
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Elements matched by the content of an atom expression in brackets.
+     * Operators are considered according to their precedence:
+     * low-precedence and (';'), or (','), high-precedence and ('&' or
+     * implicit).
+     */
+
+    private static BitSet getElementsOfAtomExpr(String expr)
+    {
+        BitSet res = null;
+        for (String lowAnd : splitTopLevel(expr,';'))
+        {
+            BitSet orSet = new BitSet();
+            for (String or : splitTopLevel(lowAnd,','))
+            {
+                BitSet highAndSet = null;
+                for (String highAnd : splitTopLevel(or,'&'))
+                {
+                    highAndSet = intersect(highAndSet,
+                                              getElementsOfPrimitives(highAnd));
+                }
+                if (highAndSet == null)
+                {
+                    orSet = null;
+                    break;
+                }
+                orSet.or(highAndSet);
+            }
+            res = intersect(res,orSet);
+        }
+        return res;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Elements matched by a sequence of primitives combined by implicit
+     * high-precedence and.
+     */
+
+    private static BitSet getElementsOfPrimitives(String prims)
+    {
+        BitSet res = null;
+        int i = 0;
+        while (i < prims.length())
+        {
+            boolean negated = false;
+            while (i < prims.length() && prims.charAt(i) == '!')
+            {
+                negated = !negated;
+                i++;
+            }
+            if (i >= prims.length())
+                break;
+
+            BitSet set = null;
+            char c = prims.charAt(i);
+            if (c == '$' && i+1 < prims.length() && prims.charAt(i+1) == '(')
+            {
+                int end = findClosing(prims,i+1);
+                if (end < 0)
+                    return res;
+                set = getElementsOfFirstAtom(prims.substring(i+2,end));
+                i = end + 1;
+            } else if (c == '#') {
+                int j = i + 1;
+                while (j < prims.length() && Character.isDigit(prims.charAt(j)))
+                    j++;
+                if (j > i+1)
+                    set = asSet(Integer.parseInt(prims.substring(i+1,j)));
+                i = j;
+            } else if (Character.isUpperCase(c)) {
+                String two = "";
+                if (i+1 < prims.length()
+                            && Character.isLowerCase(prims.charAt(i+1)))
+                    two = prims.substring(i,i+2);
+                String one = prims.substring(i,i+1);
+                if (ATOMICNUMBERS.containsKey(two))
+                {
+                    set = asSet(getAtomicNumber(two));
+                    i = i + 2;
+                } else {
+                    //NB: 'H' is the count of hydrogens
+                    if (ATOMICNUMBERS.containsKey(one) && !one.equals("H"))
+                        set = asSet(getAtomicNumber(one));
+                    i = skipNumber(prims,i+1);
+                }
+            } else if (Character.isLowerCase(c)) {
+                String arom = "";
+                for (String as : AROMATICSYMBOLS)
+                {
+                    if (prims.startsWith(as,i))
+                    {
+                        arom = as;
+                        break;
+                    }
+                }
+                if (!arom.equals(""))
+                {
+                    String sym = arom.substring(0,1).toUpperCase()
+                                                         + arom.substring(1);
+                    set = asSet(getAtomicNumber(sym));
+                    i = i + arom.length();
+                } else {
+                    i = skipNumber(prims,i+1);
+                }
+            } else {
+                //Wildcards, charges, chirality, isotopes, etc.
+                i++;
+            }
+
+            if (!negated)
+                res = intersect(res,set);
+        }
+        return res;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static int skipNumber(String s, int i)
+    {
+        while (i < s.length() && Character.isDigit(s.charAt(i)))
+            i++;
+        return i;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static BitSet asSet(int z)
+    {
+        BitSet set = new BitSet();
+        set.set(z);
+        return set;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static BitSet intersect(BitSet a, BitSet b)
+    {
+        if (a == null)
+            return b;
+        if (b == null)
+            return a;
+        BitSet res = (BitSet) a.clone();
+        res.and(b);
+        return res;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Splits a string at the separator ignoring the separators nested
+     * in parentheses or brackets
+     */
+
+    private static List<String> splitTopLevel(String s, char sep)
+    {
+        List<String> parts = new ArrayList<String>();
+        int depth = 0;
+        int start = 0;
+        for (int i=0; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '(' || c == '[')
+                depth++;
+            else if (c == ')' || c == ']')
+                depth--;
+            else if (c == sep && depth == 0)
+            {
+                parts.add(s.substring(start,i));
+                start = i + 1;
+            }
+        }
+        parts.add(s.substring(start));
+        return parts;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the index of the bracket or parenthesis closing the one at
+     * position <code>open</code>, or -1 if not found
+     */
+
+    private static int findClosing(String s, int open)
+    {
+        int depth = 0;
+        for (int i=open; i<s.length(); i++)
+        {
+            char c = s.charAt(i);
+            if (c == '(' || c == '[')
+                depth++;
+            else if (c == ')' || c == ']')
+            {
+                depth--;
+                if (depth == 0)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+//------------------------------------------------------------------------------
+}
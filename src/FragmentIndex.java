@@ -0,0 +1,183 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+
+import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
+
+/**
+ * In-memory collection of <code>GM3DFragment</code>s. Fragments are
+ * grouped in buckets according to cheap invariants (number of atoms,
+ * number of bonds, classes of the attachment points, and molecular
+ * formula) so that any new fragment needs to be compared only with the
+ * few fragments sharing the same invariants. The canonical key, which
+ * requires the InChI, is generated only for fragments landing in a
+ * populated bucket.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class FragmentIndex
+{
+    //Buckets of fragments
+    private Map<String,List<GM3DFragment>> buckets =
+                                 new HashMap<String,List<GM3DFragment>>();
+
+    //Number of stored fragments
+    private int size = 0;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates an empty index
+     */
+
+    public FragmentIndex()
+    {
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Builds the key collecting the invariants of a fragment.
+     * Fragments that are equal according to
+     * <code>GM3DFragment.sameFragOf</code> have the same atoms, bonds and
+     * attachment points, thus the same key. The canonical key is not
+     * part of the invariants.
+     * The key is stored in the fragment, so it is calculated only once.
+     * @param frag the fragment
+     * @return the key of the bucket for this fragment
+     */
+
+    public static String getInvariantKey(GM3DFragment frag)
+    {
+        if (frag.getInvariantKey() != null)
+            return frag.getInvariantKey();
+
+        //AP classes as sorted multiset
+        List<String> apClasses = new ArrayList<String>();
+        for (GM3DAttachmentPoint ap : frag.getAllAPs())
+        {
+            apClasses.add(ap.getAPClass());
+        }
+        Collections.sort(apClasses);
+
+        //Molecular formula
+        String formula = "";
+        try {
+            formula = MolecularFormulaManipulator.getString(
+                         MolecularFormulaManipulator.getMolecularFormula(frag));
+        } catch (Throwable t) {
+            formula = "noformula";
+        }
+
+        String key = frag.getAtomCount() + "_" + frag.getBondCount() + "_"
+                     + apClasses + "_" + formula;
+        frag.setInvariantKey(key);
+        return key;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Look for a fragment equal to the given one.
+     * @param frag the fragment to look for
+     * @return the stored fragment that is equal to <code>frag</code>, or
+     * <code>null</code> if there is no such fragment in the index
+     */
+
+    public GM3DFragment getSameFrag(GM3DFragment frag)
+    {
+        String key = getInvariantKey(frag);
+        List<GM3DFragment> bucket = buckets.get(key);
+        if (bucket == null)
+            return null;
+
+        //Canonical keys are compared before the structures (see
+        //GM3DFragment.sameFragOf)
+        frag.getCanonicalKey();
+        for (GM3DFragment oldFrag : bucket)
+        {
+            oldFrag.getCanonicalKey();
+            if (oldFrag.sameFragOf(frag))
+                return oldFrag;
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param frag the fragment to look for
+     * @return <code>true</code> if the index contains a fragment equal to
+     * <code>frag</code>
+     */
+
+    public boolean contains(GM3DFragment frag)
+    {
+        return getSameFrag(frag) != null;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Add a fragment to the index. No check for duplicates is done here.
+     * @param frag the fragment to store
+     */
+
+    public void addFragment(GM3DFragment frag)
+    {
+        String key = getInvariantKey(frag);
+        List<GM3DFragment> bucket = buckets.get(key);
+        if (bucket == null)
+        {
+            bucket = new ArrayList<GM3DFragment>();
+            buckets.put(key,bucket);
+        }
+        bucket.add(frag);
+        size++;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of fragments in the index
+     */
+
+    public int size()
+    {
+        return size;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of buckets in the index
+     */
+
+    public int getNumberOfBuckets()
+    {
+        return buckets.size();
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,507 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Point2d;
+import javax.vecmath.Point3d;
+
+import org.openscience.cdk.Atom;
+import org.openscience.cdk.AtomContainer;
+import org.openscience.cdk.Bond;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.PseudoAtom;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+import org.openscience.cdk.interfaces.IPseudoAtom;
+
+/**
+ * Binary format of libraries of fragments. Each fragment is stored in a
+ * record made of a tag, the length of the rest of the record, and
+ * <ul>
+ * <li>the numbers of atoms, bonds, attachment points, and properties,</li>
+ * <li>one fixed-width entry per atom (symbol, coordinates, exact mass,
+ * natural abundance, formal charge, mass number, atomic number,
+ * implicit hydrogens, and flags),</li>
+ * <li>one fixed-width entry per bond (atoms, order, stereo, and flags),</li>
+ * <li>one fixed-width entry per attachment point (atom, sub class, bond
+ * order, and vector),</li>
+ * <li>the strings: labels of pseudo atoms not fitting the symbol field,
+ * rules of the attachment points, the canonical key of the fragment (if
+ * already calculated), and the properties.</li>
+ * </ul>
+ * There is no header, so binary libraries can be concatenated like SDF
+ * files. Reading a record requires no parsing of text, and the canonical
+ * key, which requires the InChI, is not calculated again. The key of the
+ * invariants (see <code>FragmentIndex</code>) is cheap and always
+ * calculated anew, so that it cannot disagree with fragments indexed
+ * by a different version of the code.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class FragmentLibrary
+{
+    //Name of the format
+    public static final String FORMAT = "BINARY";
+
+    //Extension of the binary libraries
+    public static final String EXTENSION = ".gfl";
+
+    //Tag at the beginning of each record ("GFL1")
+    public static final int MAGIC = 0x47464C31;
+
+    //Size (bytes) of the symbol of atoms
+    private static final int SYMBOLSIZE = 8;
+
+    //Value used for undefined integers and bond orders
+    private static final int UNDEFINED = Integer.MIN_VALUE;
+    private static final int NOORDER = -1;
+
+    //Flags of the record. Key of the invariants is no longer written, but
+    //records holding one can still be read
+    private static final int HASCANONICALKEY = 1;
+    private static final int HASINVARIANTKEY = 2;
+
+    //Flags of the atoms
+    private static final int AROMATIC = 1;
+    private static final int POINT2D = 2;
+    private static final int POINT3D = 4;
+    private static final int PSEUDOATOM = 8;
+    private static final int LONGLABEL = 16;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param filename the name of a file
+     * @return <code>true</code> if the name has the extension of binary
+     * libraries
+     */
+
+    public static boolean isBinaryName(String filename)
+    {
+        return filename.endsWith(EXTENSION);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Looks at the content of a file to find out its format
+     * @param filename the library of fragments
+     * @return <code>true</code> if the file begins with a record of a binary
+     * library, <code>false</code> otherwise (e.g., SDF or empty file)
+     * @throws IOException if the file cannot be read
+     */
+
+    public static boolean isBinaryFile(String filename) throws IOException
+    {
+        DataInputStream in = new DataInputStream(
+                                              new FileInputStream(filename));
+        try {
+            return in.readInt() == MAGIC;
+        } catch (IOException ioe) {
+            //Shorter than a tag
+            return false;
+        } finally {
+            in.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param base the name of a library without extension
+     * @return the name of the library in the format requested by
+     * <code>Parameters.binaryLibrary</code>
+     */
+
+    public static String getFileName(String base)
+    {
+        if (Parameters.binaryLibrary)
+            return base + EXTENSION;
+        return base + ".sdf";
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param filename the name of a library
+     * @param format the format of the library (<code>FORMAT</code> for
+     * binary libraries, any other for SDF)
+     * @return the name with the extension of the given format
+     */
+
+    public static String changeExtension(String filename, String format)
+    {
+        String base = filename;
+        int dot = base.lastIndexOf(".");
+        if (dot > base.lastIndexOf("/"))
+            base = base.substring(0,dot);
+        if (format.equals(FORMAT))
+            return base + EXTENSION;
+        return base + ".sdf";
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes a fragment as a record of a binary library. Molecules that are
+     * not <code>GM3DFragment</code>s are read as fragments in the format
+     * given by <code>Parameters.getLibFormat()</code>.
+     * @param out the stream to write to
+     * @param mol the fragment
+     * @throws IOException if the record cannot be written
+     */
+
+    public static void writeRecord(DataOutputStream out, IAtomContainer mol)
+                                                          throws IOException
+    {
+        String format = Parameters.getLibFormat();
+        GM3DFragment frag = GM3DFragment.asFragment(mol,format);
+        if (frag.getProperty("CLASS") == null)
+            frag.moveAPsTOProperties(format);
+
+        List<String> strings = new ArrayList<String>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream rec = new DataOutputStream(bytes);
+
+        //Counts
+        List<GM3DAttachmentPoint> aps = frag.getAllAPs();
+        Map<Object,Object> props = frag.getProperties();
+        int numProps = 0;
+        for (Map.Entry<Object,Object> e : props.entrySet())
+        {
+            if (e.getKey() != null && e.getValue() != null)
+                numProps++;
+        }
+        int recFlags = 0;
+        if (frag.hasCanonicalKey())
+            recFlags = recFlags | HASCANONICALKEY;
+        rec.writeInt(frag.getAtomCount());
+        rec.writeInt(frag.getBondCount());
+        rec.writeInt(aps.size());
+        rec.writeInt(numProps);
+        rec.writeInt(recFlags);
+
+        //Atoms
+        for (IAtom atm : frag.atoms())
+        {
+            int flags = 0;
+            String symbol = atm.getSymbol();
+            if (atm instanceof IPseudoAtom)
+            {
+                flags = flags | PSEUDOATOM;
+                symbol = ((IPseudoAtom) atm).getLabel();
+            }
+            byte[] sym = symbol == null ? new byte[0] : symbol.getBytes("UTF-8");
+            if (sym.length > SYMBOLSIZE)
+            {
+                flags = flags | LONGLABEL;
+                strings.add(symbol);
+                sym = new byte[0];
+            }
+            rec.write(sym);
+            rec.write(new byte[SYMBOLSIZE - sym.length]);
+
+            double x = 0.0;
+            double y = 0.0;
+            double z = 0.0;
+            Point3d p3d = atm.getPoint3d();
+            Point2d p2d = atm.getPoint2d();
+            if (p3d != null)
+            {
+                flags = flags | POINT3D;
+                x = p3d.x;
+                y = p3d.y;
+                z = p3d.z;
+            } else if (p2d != null) {
+                flags = flags | POINT2D;
+                x = p2d.x;
+                y = p2d.y;
+            }
+            if (atm.getFlag(CDKConstants.ISAROMATIC))
+                flags = flags | AROMATIC;
+            rec.writeDouble(x);
+            rec.writeDouble(y);
+            rec.writeDouble(z);
+            rec.writeDouble(toNaN(atm.getExactMass()));
+            rec.writeDouble(toNaN(atm.getNaturalAbundance()));
+            rec.writeInt(toInt(atm.getFormalCharge()));
+            rec.writeInt(toInt(atm.getMassNumber()));
+            rec.writeInt(toInt(atm.getAtomicNumber()));
+            rec.writeInt(toInt(atm.getImplicitHydrogenCount()));
+            rec.writeInt(flags);
+        }
+
+        //Bonds
+        for (IBond bnd : frag.bonds())
+        {
+            rec.writeInt(frag.getAtomNumber(bnd.getAtom(0)));
+            rec.writeInt(frag.getAtomNumber(bnd.getAtom(1)));
+            int order = NOORDER;
+            if (bnd.getOrder() != null)
+                order = MolecularUtils.bondorderToint(bnd.getOrder());
+            rec.writeByte(order);
+            int stereo = 0;
+            if (bnd.getStereo() != null)
+                stereo = bnd.getStereo().ordinal() + 1;
+            rec.writeByte(stereo);
+            rec.writeByte(bnd.getFlag(CDKConstants.ISAROMATIC) ? AROMATIC : 0);
+            rec.writeByte(0);
+        }
+
+        //Attachment points
+        for (GM3DAttachmentPoint ap : aps)
+        {
+            rec.writeInt(ap.getAPAtm());
+            rec.writeInt(ap.getAPSubClass());
+            rec.writeInt(ap.getAPBondOrder());
+            List<Double> vec = ap.getAPVector();
+            for (int i=0; i<3; i++)
+                rec.writeDouble(vec.size() == 3 ? vec.get(i) : Double.NaN);
+            strings.add(ap.getAPRule());
+        }
+
+        //Keys and properties
+        if (frag.hasCanonicalKey())
+            strings.add(frag.getCanonicalKey());
+        for (Map.Entry<Object,Object> e : props.entrySet())
+        {
+            if (e.getKey() == null || e.getValue() == null)
+                continue;
+            strings.add(e.getKey().toString());
+            strings.add(e.getValue().toString());
+        }
+        for (String s : strings)
+        {
+            byte[] b = s.getBytes("UTF-8");
+            rec.writeInt(b.length);
+            rec.write(b);
+        }
+        rec.flush();
+
+        out.writeInt(MAGIC);
+        out.writeInt(bytes.size());
+        bytes.writeTo(out);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Rebuilds a fragment from a record of a binary library
+     * @param record the bytes of the record following the tag and the length
+     * @return the fragment
+     * @throws IOException if the record is damaged
+     */
+
+    public static GM3DFragment readRecord(byte[] record) throws IOException
+    {
+        DataInputStream rec = new DataInputStream(
+                                            new ByteArrayInputStream(record));
+        int numAtoms = readCount(rec,record);
+        int numBonds = readCount(rec,record);
+        int numAPs = readCount(rec,record);
+        int numProps = readCount(rec,record);
+        int recFlags = rec.readInt();
+
+        //Atoms
+        IAtomContainer mol = new AtomContainer();
+        int[] atomFlags = new int[numAtoms];
+        byte[] sym = new byte[SYMBOLSIZE];
+        for (int i=0; i<numAtoms; i++)
+        {
+            rec.readFully(sym);
+            int len = 0;
+            while (len < SYMBOLSIZE && sym[len] != 0)
+                len++;
+            String symbol = new String(sym,0,len,"UTF-8");
+            double x = rec.readDouble();
+            double y = rec.readDouble();
+            double z = rec.readDouble();
+            double exactMass = rec.readDouble();
+            double abundance = rec.readDouble();
+            int charge = rec.readInt();
+            int massNumber = rec.readInt();
+            int atomicNumber = rec.readInt();
+            int implicitH = rec.readInt();
+            int flags = rec.readInt();
+            atomFlags[i] = flags;
+
+            IAtom atm;
+            if ((flags & PSEUDOATOM) != 0)
+                atm = new PseudoAtom(symbol);
+            else
+                atm = new Atom(symbol);
+            if ((flags & POINT3D) != 0)
+                atm.setPoint3d(new Point3d(x,y,z));
+            else if ((flags & POINT2D) != 0)
+                atm.setPoint2d(new Point2d(x,y));
+            atm.setFlag(CDKConstants.ISAROMATIC,(flags & AROMATIC) != 0);
+            atm.setExactMass(toDouble(exactMass));
+            atm.setNaturalAbundance(toDouble(abundance));
+            atm.setFormalCharge(toInteger(charge));
+            atm.setMassNumber(toInteger(massNumber));
+            atm.setAtomicNumber(toInteger(atomicNumber));
+            atm.setImplicitHydrogenCount(toInteger(implicitH));
+            mol.addAtom(atm);
+        }
+
+        //Bonds
+        for (int i=0; i<numBonds; i++)
+        {
+            IAtom a0 = mol.getAtom(rec.readInt());
+            IAtom a1 = mol.getAtom(rec.readInt());
+            int order = rec.readByte();
+            int stereo = rec.readByte();
+            int flags = rec.readByte();
+            rec.readByte();
+            IBond bnd = new Bond(a0,a1);
+            if (order != NOORDER)
+                bnd.setOrder(GM3DFragment.intToBondOrder(order));
+            else
+                bnd.setOrder(null);
+            if (stereo > 0)
+                bnd.setStereo(IBond.Stereo.values()[stereo - 1]);
+            bnd.setFlag(CDKConstants.ISAROMATIC,(flags & AROMATIC) != 0);
+            mol.addBond(bnd);
+        }
+
+        //Attachment points (rules are among the strings)
+        int[] apAtm = new int[numAPs];
+        int[] apSubClass = new int[numAPs];
+        int[] apBndOrd = new int[numAPs];
+        List<ArrayList<Double>> apVec = new ArrayList<ArrayList<Double>>();
+        for (int i=0; i<numAPs; i++)
+        {
+            apAtm[i] = rec.readInt();
+            apSubClass[i] = rec.readInt();
+            apBndOrd[i] = rec.readInt();
+            ArrayList<Double> vec = new ArrayList<Double>(3);
+            for (int j=0; j<3; j++)
+                vec.add(rec.readDouble());
+            if (vec.get(0).isNaN())
+                vec.clear();
+            apVec.add(vec);
+        }
+
+        //Strings
+        for (int i=0; i<numAtoms; i++)
+        {
+            if ((atomFlags[i] & LONGLABEL) != 0)
+            {
+                IAtom atm = mol.getAtom(i);
+                String label = readString(rec);
+                if (atm instanceof IPseudoAtom)
+                    ((IPseudoAtom) atm).setLabel(label);
+                else
+                    atm.setSymbol(label);
+            }
+        }
+        List<GM3DAttachmentPoint> aps = new ArrayList<GM3DAttachmentPoint>();
+        for (int i=0; i<numAPs; i++)
+        {
+            aps.add(new GM3DAttachmentPoint(apAtm[i],readString(rec),
+                                       apSubClass[i],apBndOrd[i],apVec.get(i)));
+        }
+        String canonicalKey = null;
+        if ((recFlags & HASCANONICALKEY) != 0)
+            canonicalKey = readString(rec);
+        if ((recFlags & HASINVARIANTKEY) != 0)
+            readString(rec);
+        for (int i=0; i<numProps; i++)
+        {
+            String key = readString(rec);
+            mol.setProperty(key,readString(rec));
+        }
+
+        GM3DFragment frag = new GM3DFragment(mol,aps);
+        if (canonicalKey != null)
+            frag.setCanonicalKey(canonicalKey);
+        return frag;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String readString(DataInputStream rec) throws IOException
+    {
+        int length = rec.readInt();
+        if (length < 0 || length > rec.available())
+            throw new IOException("String length "+length
+                                              +" exceeds the size of record");
+        byte[] b = new byte[length];
+        rec.readFully(b);
+        return new String(b,"UTF-8");
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads a number of entries of a record. Each entry takes at least one
+     * byte, so the number cannot exceed the size of the record.
+     */
+
+    private static int readCount(DataInputStream rec, byte[] record)
+                                                            throws IOException
+    {
+        int count = rec.readInt();
+        if (count < 0 || count > record.length)
+            throw new IOException("Number of entries "+count
+                                              +" exceeds the size of record");
+        return count;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static int toInt(Integer value)
+    {
+        return value == null ? UNDEFINED : value.intValue();
+    }
+
+//------------------------------------------------------------------------------
+
+    private static Integer toInteger(int value)
+    {
+        return value == UNDEFINED ? null : Integer.valueOf(value);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double toNaN(Double value)
+    {
+        return value == null ? Double.NaN : value.doubleValue();
+    }
+
+//------------------------------------------------------------------------------
+
+    private static Double toDouble(double value)
+    {
+        return Double.isNaN(value) ? null : Double.valueOf(value);
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,242 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Iterator over the fragments of a library in either SDF or binary format
+ * (see <code>FragmentLibrary</code>). The format is recognized from the
+ * content of the file. SDF libraries are read by the
+ * <code>SDFRecordReader</code> and return <code>IAtomContainer</code>s
+ * that need to be converted into fragments, while binary libraries return
+ * <code>GM3DFragment</code>s ready for use (see
+ * <code>GM3DFragment.asFragment</code>).
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class FragmentLibraryReader implements Iterator<IAtomContainer>
+{
+    //Name of the file
+    private String filename;
+
+    //Reader of SDF libraries (null for binary libraries)
+    private SDFRecordReader sdfReader = null;
+
+    //Stream of bytes from binary libraries
+    private DataInputStream in = null;
+
+    //Position of the next byte to read from the stream, and size of the file
+    private long position = 0;
+    private long fileLength = 0;
+
+    //Record read but not yet returned
+    private GM3DFragment nextFrag = null;
+    private long nextRecordStart = -1;
+    private long nextRecordLength = 0;
+
+    //Flag: no more records
+    private boolean endOfFile = false;
+
+    //Position and length of the last returned record
+    private long lastRecordStart = 0;
+    private long lastRecordLength = 0;
+
+    //Size (bytes) of the buffer
+    private static final int BUFFERSIZE = 65536;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens a library for reading from the beginning
+     * @param filename the library
+     * @throws IOException if the file cannot be opened
+     */
+
+    public FragmentLibraryReader(String filename) throws IOException
+    {
+        this(filename,1);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens a library for reading from the beginning
+     * @param filename the library
+     * @param numThreads the number of threads parsing SDF libraries. Binary
+     * libraries are always read as a stream
+     * @throws IOException if the file cannot be opened
+     */
+
+    public FragmentLibraryReader(String filename, int numThreads)
+                                                           throws IOException
+    {
+        this.filename = filename;
+        if (FragmentLibrary.isBinaryFile(filename))
+        {
+            in = new DataInputStream(new BufferedInputStream(
+                                  new FileInputStream(filename),BUFFERSIZE));
+            fileLength = new File(filename).length();
+        } else {
+            sdfReader = new SDFRecordReader(filename,numThreads);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return <code>true</code> if the library is in binary format
+     */
+
+    public boolean isBinary()
+    {
+        return in != null;
+    }
+
+//------------------------------------------------------------------------------
+
+    public boolean hasNext()
+    {
+        if (sdfReader != null)
+            return sdfReader.hasNext();
+
+        if (nextFrag == null && !endOfFile)
+        {
+            try {
+                int tag;
+                try {
+                    tag = in.readInt();
+                } catch (EOFException eof) {
+                    endOfFile = true;
+                    return false;
+                }
+                if (tag != FragmentLibrary.MAGIC)
+                    throw new IOException("No record at byte "+position);
+                int length = in.readInt();
+                if (length < 0 || length > fileLength - position - 8)
+                    throw new IOException("Record length "+length
+                                   +" exceeds the size of the file");
+                byte[] record = new byte[length];
+                in.readFully(record);
+                nextRecordStart = position;
+                nextRecordLength = 8 + record.length;
+                position = position + nextRecordLength;
+                nextFrag = FragmentLibrary.readRecord(record);
+            } catch (IOException ioe) {
+                //Like SDFRecordReader, stop at an unreadable record
+                System.err.println("\nERROR! Unable to read the record "
+                               + "starting at byte "+position+" of "
+                               + filename+" ("+ioe.getMessage()
+                               + "). Reading stops here.");
+                endOfFile = true;
+            }
+        }
+        return nextFrag != null;
+    }
+
+//------------------------------------------------------------------------------
+
+    public IAtomContainer next()
+    {
+        if (sdfReader != null)
+            return sdfReader.next();
+
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        IAtomContainer frag = nextFrag;
+        lastRecordStart = nextRecordStart;
+        lastRecordLength = nextRecordLength;
+        nextFrag = null;
+        return frag;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position (in bytes) where the record following the last
+     * returned one begins
+     */
+
+    public long getOffset()
+    {
+        if (sdfReader != null)
+            return sdfReader.getOffset();
+        return lastRecordStart + lastRecordLength;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Closes the file
+     * @throws IOException if the file cannot be closed
+     */
+
+    public void close() throws IOException
+    {
+        if (sdfReader != null)
+            sdfReader.close();
+        if (in != null)
+            in.close();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads a whole library (Suitable for small files - do NOT use this for
+     * huge files!)
+     * @param filename the library
+     * @return all the fragments or molecules into an <code>ArrayList</code>
+     */
+
+    public static ArrayList<IAtomContainer> readAll(String filename)
+    {
+        ArrayList<IAtomContainer> lst = new ArrayList<IAtomContainer>();
+        try {
+            FragmentLibraryReader reader = new FragmentLibraryReader(filename,
+                                                       Parameters.numThreads);
+            while (reader.hasNext())
+                lst.add(reader.next());
+            reader.close();
+        } catch (Throwable t) {
+            System.err.println("Failure in reading library: " + t);
+            System.exit(-1);
+        }
+        return lst;
+    }
+
+//------------------------------------------------------------------------------
+}
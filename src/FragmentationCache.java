@@ -0,0 +1,447 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+import java.security.MessageDigest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.vecmath.Point2d;
+import javax.vecmath.Point3d;
+
+import org.openscience.cdk.AtomContainerSet;
+import org.openscience.cdk.CDKConstants;
+import org.openscience.cdk.interfaces.IAtom;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IBond;
+
+/**
+ * On-disk cache of the outcome of the fragmentation of single molecules,
+ * to be re-used by later runs. Entries are stored in a folder that
+ * depends on the cutting rules and on the options affecting the
+ * fragments, and are identified by the content of the input molecule
+ * (name, atoms, coordinates, and bonds). Each entry contains the fragments
+ * before the application of the <code>FragmentFilter</code>, so changing
+ * the rejection criteria does not invalidate the cache, and the
+ * contributions to the compatibility matrix, class-to-bond order map,
+ * and list of rejected molecules.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class FragmentationCache
+{
+    //Folder with the entries for the present settings
+    private String dir;
+
+    //Format of the fragments
+    private String format;
+
+    //Counters
+    private AtomicInteger hits = new AtomicInteger();
+    private AtomicInteger misses = new AtomicInteger();
+    private AtomicInteger reused = new AtomicInteger();
+
+    //Version of the format of the entries
+    private static final String VERSION = "1";
+
+    //Keywords of the entries
+    private static final String STATUSKEY = "STATUS";
+    private static final String IS2DKEY = "IS2D";
+    private static final String REJECTIONKEY = "REJECTION";
+    private static final String CPMKEY = "RCN";
+    private static final String BOKEY = "RBO";
+    private static final String MATCHEDKEY = "MATCHED";
+    private static final String COMPLETED = "completed";
+    private static final String REJECTED = "rejected";
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a cache using the folder for the present settings within the
+     * given root folder
+     * @param root the root folder of the cache
+     * @param rules the cutting rules
+     * @param sortedRules the names of the cutting rules sorted by priority
+     * @param anyAtm the labels matching any atom in the cutting rules
+     * @param format the format of the fragments
+     */
+
+    public FragmentationCache(String root, Map<String,GM3DCuttingRule> rules,
+                              SortedMap<Integer,String> sortedRules,
+                              List<String> anyAtm, String format)
+    {
+        this.format = format;
+        this.dir = root + File.separator
+                      + getSettingsHash(rules,sortedRules,anyAtm,format);
+        File d = new File(dir);
+        if (!d.exists() && !d.mkdirs())
+        {
+            System.err.println("ERROR! Unable to create cache folder "+dir);
+            System.exit(-1);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the hash of the cutting rules and of the options affecting
+     * the fragments produced from a molecule
+     */
+
+    private static String getSettingsHash(Map<String,GM3DCuttingRule> rules,
+                              SortedMap<Integer,String> sortedRules,
+                              List<String> anyAtm, String format)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("VERSION ").append(VERSION).append("\n");
+        for (Integer priority : sortedRules.keySet())
+        {
+            GM3DCuttingRule rule = rules.get(sortedRules.get(priority));
+            sb.append(rule.toString()).append("\n");
+        }
+        sb.append("ANY ").append(anyAtm).append("\n");
+        sb.append("DUONLINEAR ").append(Parameters.addDummyOnLinear);
+        sb.append(" ").append(Parameters.duSymbol).append("\n");
+        sb.append("MAXRINGSIZE ").append(Parameters.maxRingSizeMF).append("\n");
+        sb.append("ARFTIMEOUT ").append(Parameters.maxTimeAllRingFinder);
+        sb.append("\n");
+        sb.append("FORMAT ").append(format).append("\n");
+        return digest(sb.toString());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the key identifying a molecule. The key must be calculated
+     * before modifying the molecule.
+     * @param mol the molecule
+     * @return the key of the molecule
+     */
+
+    public String getMoleculeKey(IAtomContainer mol)
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(MolecularUtils.getNameOrID(mol)).append("\n");
+        for (IAtom atm : mol.atoms())
+        {
+            sb.append(atm.getSymbol()).append(" ");
+            sb.append(atm.getFormalCharge()).append(" ");
+            sb.append(atm.getMassNumber()).append(" ");
+            Point3d p3d = atm.getPoint3d();
+            Point2d p2d = atm.getPoint2d();
+            if (p3d != null)
+                sb.append(String.format("%.4f %.4f %.4f",p3d.x,p3d.y,p3d.z));
+            else if (p2d != null)
+                sb.append(String.format("%.4f %.4f",p2d.x,p2d.y));
+            sb.append("\n");
+        }
+        for (IBond bnd : mol.bonds())
+        {
+            sb.append(mol.getAtomNumber(bnd.getAtom(0))).append(" ");
+            sb.append(mol.getAtomNumber(bnd.getAtom(1))).append(" ");
+            sb.append(bnd.getOrder()).append(" ");
+            sb.append(bnd.getFlag(CDKConstants.ISAROMATIC)).append("\n");
+        }
+        return digest(sb.toString());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Get the outcome of the fragmentation of a molecule from the cache.
+     * Only the fragments that satisfy the criteria of the
+     * <code>FragmentFilter</code> are included in the result.
+     * @param key the key of the molecule
+     * @param mol the molecule
+     * @param molIdx the position of the molecule in the input
+     * @return the outcome of the fragmentation or <code>null</code> if
+     * the molecule is not in the cache
+     */
+
+    public FragmentationResult load(String key, IAtomContainer mol,
+                                                                   int molIdx)
+    {
+        String txtFile = getEntryName(key) + ".txt";
+        String sdfFile = getEntryName(key) + ".sdf";
+        if (!new File(txtFile).exists())
+            return null;
+
+        FragmentationResult res = new FragmentationResult(molIdx,
+                                           MolecularUtils.getNameOrID(mol));
+        try {
+            boolean completed = false;
+            for (String line : IOtools.readTXT(txtFile))
+            {
+                String[] words = line.split(" ",3);
+                if (words[0].equals(STATUSKEY))
+                    completed = words[1].equals(COMPLETED);
+                else if (words[0].equals(IS2DKEY))
+                    res.setIs2D(Boolean.parseBoolean(words[1]));
+                else if (words[0].equals(REJECTIONKEY))
+                    res.addRejection(mol,line.substring(
+                                          REJECTIONKEY.length()+1));
+                else if (words[0].equals(CPMKEY))
+                    res.addCompatibility(words[1],words[2]);
+                else if (words[0].equals(BOKEY))
+                    res.addClassBondOrder(words[1],Integer.parseInt(words[2]));
+            }
+            if (completed && new File(sdfFile).exists())
+            {
+                SDFRecordReader reader = new SDFRecordReader(sdfFile);
+                while (reader.hasNext())
+                {
+                    GM3DFragment frag = new GM3DFragment(reader.next(),format);
+                    if (FragmentFilter.keepFragment(frag))
+                        res.addFragment(frag);
+                }
+                reader.close();
+            }
+            if (completed)
+                res.setCompleted();
+        } catch (Throwable t) {
+            //A damaged entry is ignored
+            return null;
+        }
+        hits.incrementAndGet();
+        return res;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Stores the outcome of the fragmentation of a molecule. Only results
+     * without failures are stored.
+     * @param key the key of the molecule
+     * @param res the outcome of the fragmentation
+     * @param frags all the fragments before the application of the
+     * <code>FragmentFilter</code>
+     */
+
+    public void store(String key, FragmentationResult res,
+                                                     List<GM3DFragment> frags)
+    {
+        misses.incrementAndGet();
+        if (res.getFailure() != null)
+            return;
+
+        String entry = getEntryName(key);
+        String tmp = entry + "." + Thread.currentThread().getId() + ".tmp";
+
+        if (res.isCompleted() && frags.size() > 0)
+        {
+            AtomContainerSet acs = new AtomContainerSet();
+            for (GM3DFragment frag : frags)
+                acs.addAtomContainer(frag.toIAtomContainer(format));
+            IOtools.writeSDFAppendSet(tmp,acs,false);
+            if (!moveFile(tmp,entry + ".sdf"))
+                return;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(STATUSKEY).append(" ");
+        sb.append(res.isCompleted() ? COMPLETED : REJECTED).append("\n");
+        sb.append(IS2DKEY).append(" ").append(res.is2D()).append("\n");
+        for (String reason : res.getRejectionReasons())
+        {
+            sb.append(REJECTIONKEY).append(" ");
+            sb.append(reason.replaceAll("[\r\n]+"," ")).append("\n");
+        }
+        for (String[] pair : res.getCompatibilities())
+        {
+            sb.append(CPMKEY).append(" ").append(pair[0]);
+            sb.append(" ").append(pair[1]).append("\n");
+        }
+        Map<String,Integer> cbo = res.getClassBondOrders();
+        for (String apClass : cbo.keySet())
+        {
+            sb.append(BOKEY).append(" ").append(apClass);
+            sb.append(" ").append(cbo.get(apClass)).append("\n");
+        }
+        if (res.getMatchedRules() != null)
+        {
+            sb.append(MATCHEDKEY);
+            for (String ruleName : res.getMatchedRules())
+                sb.append(" ").append(ruleName);
+            sb.append("\n");
+        }
+        IOtools.writeTXTAppend(tmp,sb.toString(),false);
+        moveFile(tmp,entry + ".txt");
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return a summary of the use of the cache
+     */
+
+    public String getReport()
+    {
+        return "Fragmentation cache "+dir+": "+hits.get()+" hits ("
+                          +reused.get()+" from the previous cutting rules), "
+                          +misses.get()+" misses";
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Get the names of the cutting rules matched by a molecule
+     * @param key the key of the molecule
+     * @return the names of the matched rules or <code>null</code> if the
+     * molecule is not in the cache or the matched rules are unknown
+     */
+
+    public List<String> getMatchedRules(String key)
+    {
+        String txtFile = getEntryName(key) + ".txt";
+        if (!new File(txtFile).exists())
+            return null;
+        try {
+            for (String line : IOtools.readTXT(txtFile))
+            {
+                String[] words = line.trim().split("\\s+");
+                if (!words[0].equals(MATCHEDKEY))
+                    continue;
+                List<String> names = new ArrayList<String>();
+                for (int i=1; i<words.length; i++)
+                    names.add(words[i]);
+                return names;
+            }
+        } catch (Throwable t) {
+            //A damaged entry is ignored
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Copies an entry from another cache. Used to re-use the outcome of the
+     * fragmentation of molecules that are not affected by the differences
+     * between two sets of cutting rules.
+     * @param other the cache to copy from
+     * @param key the key of the molecule
+     * @return <code>true</code> if the entry has been copied
+     */
+
+    public boolean copyEntry(FragmentationCache other, String key)
+    {
+        String from = other.getEntryName(key);
+        String entry = getEntryName(key);
+        String tmp = entry + "." + Thread.currentThread().getId() + ".tmp";
+        try {
+            if (new File(from + ".sdf").exists())
+            {
+                copyFile(from + ".sdf",tmp);
+                if (!moveFile(tmp,entry + ".sdf"))
+                    return false;
+            }
+            copyFile(from + ".txt",tmp);
+            if (!moveFile(tmp,entry + ".txt"))
+                return false;
+        } catch (Throwable t) {
+            System.out.println("WARNING! Unable to copy cache entry "+from
+                                                                   +". "+t);
+            new File(tmp).delete();
+            return false;
+        }
+        reused.incrementAndGet();
+        return true;
+    }
+
+//------------------------------------------------------------------------------
+
+    private String getEntryName(String key)
+    {
+        return dir + File.separator + key;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Replaces a file with another one. Failures only produce a warning,
+     * since the cache is not essential.
+     */
+
+    private static boolean moveFile(String from, String to)
+    {
+        File src = new File(from);
+        File dest = new File(to);
+        if (src.renameTo(dest))
+            return true;
+        dest.delete();
+        if (src.renameTo(dest))
+            return true;
+        System.out.println("WARNING! Unable to write cache entry "+to);
+        src.delete();
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Copies a file. Unlike <code>IOtools.copyFile</code>, failures are
+     * reported to the caller, since the cache is not essential.
+     */
+
+    private static void copyFile(String from, String to) throws IOException
+    {
+        InputStream in = new FileInputStream(from);
+        try {
+            OutputStream out = new FileOutputStream(to,false);
+            try {
+                byte[] buf = new byte[8192];
+                int len;
+                while ((len = in.read(buf)) > 0)
+                    out.write(buf,0,len);
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String digest(String text)
+    {
+        StringBuilder sb = new StringBuilder();
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            for (byte b : md.digest(text.getBytes("UTF-8")))
+                sb.append(String.format("%02x",b));
+        } catch (Throwable t) {
+            System.err.println("ERROR! Unable to calculate hash. "+t);
+            System.exit(-1);
+        }
+        return sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+}
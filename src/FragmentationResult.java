@@ -0,0 +1,447 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Outcome of the fragmentation of a single molecule. It collects
+ * everything that has to be added to the shared results of the
+ * <code>Fragmenter</code> (rejected molecules, entries of the
+ * compatibility matrix, class-to-bond order map, and candidate fragments)
+ * so that a fragmentation can run without modifying any shared data.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class FragmentationResult
+{
+    //Position of the molecule in the input file (1-based)
+    private int molIdx;
+
+    //Name of the molecule
+    private String name;
+
+    //Position (bytes) in the input file following the molecule
+    private long inputOffset = -1;
+
+    //Position (bytes) in the input file where the molecule begins
+    private long recordOffset = -1;
+
+    //Length of the files of the streaming checks when the molecule was
+    //read (null if not recorded)
+    private Map<String,Long> checkFileLengths = null;
+
+    //Flag: molecule in 2D
+    private boolean is2D = false;
+
+    //Flag: fragmentation completed
+    private boolean completed = false;
+
+    //Error message from the matching of the cutting rules
+    private String errMess = "";
+
+    //Problem occurred in the analysis of the fragments
+    private Throwable failure = null;
+
+    //Rejected molecules and reasons for the rejection
+    private List<IAtomContainer> rejectedMols = new ArrayList<IAtomContainer>();
+    private List<String> rejReasons = new ArrayList<String>();
+
+    //Pairs of compatible classes
+    private List<String[]> cpmEntries = new ArrayList<String[]>();
+
+    //Class-to-bond order relations in order of creation
+    private Map<String,Integer> classBndOrd =
+                                           new LinkedHashMap<String,Integer>();
+
+    //Fragments that passed the filters
+    private List<GM3DFragment> frags = new ArrayList<GM3DFragment>();
+
+    //Names of the cutting rules matched by the molecule (null if unknown)
+    private List<String> matchedRules = null;
+
+    //Time spent in each stage of the processing
+    private StageTimes stageTimes = new StageTimes();
+
+    //Cost and hit rate of the cutting rules (null if not profiled)
+    private RuleProfile ruleProfile = null;
+
+    //Time allowed for the processing of the molecule
+    private TimeBudget timeBudget = new TimeBudget(0);
+
+    //Stage in which the time budget ran out (-1 if it did not)
+    private int timedOutStage = -1;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates an empty result for a molecule
+     * @param molIdx the position of the molecule in the input
+     * @param name the name of the molecule
+     */
+
+    public FragmentationResult(int molIdx, String name)
+    {
+        this.molIdx = molIdx;
+        this.name = name;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position of the molecule in the input
+     */
+
+    public int getMolIndex()
+    {
+        return molIdx;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param inputOffset the position (in bytes) in the input file where the
+     * record following this molecule begins
+     */
+
+    public void setInputOffset(long inputOffset)
+    {
+        this.inputOffset = inputOffset;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position (in bytes) in the input file where the
+     * record following this molecule begins, or -1 if unknown
+     */
+
+    public long getInputOffset()
+    {
+        return inputOffset;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param recordOffset the position (in bytes) in the input file where
+     * the record of this molecule begins
+     */
+
+    public void setInputRecordOffset(long recordOffset)
+    {
+        this.recordOffset = recordOffset;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position (in bytes) in the input file where the
+     * record of this molecule begins, or -1 if unknown
+     */
+
+    public long getInputRecordOffset()
+    {
+        return recordOffset;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param lengths the length (bytes) of the files written by the
+     * streaming checks of the input structures right after this molecule
+     * was read
+     */
+
+    public void setCheckFileLengths(Map<String,Long> lengths)
+    {
+        this.checkFileLengths = lengths;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the length (bytes) of the files written by the streaming
+     * checks of the input structures right after this molecule was read,
+     * or <code>null</code> if not recorded
+     */
+
+    public Map<String,Long> getCheckFileLengths()
+    {
+        return checkFileLengths;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the name of the molecule
+     */
+
+    public String getName()
+    {
+        return name;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void setIs2D(boolean is2D)
+    {
+        this.is2D = is2D;
+    }
+
+//------------------------------------------------------------------------------
+
+    public boolean is2D()
+    {
+        return is2D;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void setCompleted()
+    {
+        this.completed = true;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return <code>true</code> if the fragmentation reached the end and
+     * the molecule should be counted among the fragmented ones
+     */
+
+    public boolean isCompleted()
+    {
+        return completed;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void setErrorMessage(String errMess)
+    {
+        this.errMess = errMess;
+    }
+
+//------------------------------------------------------------------------------
+
+    public String getErrorMessage()
+    {
+        return errMess;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void setFailure(Throwable t)
+    {
+        this.failure = t;
+    }
+
+//------------------------------------------------------------------------------
+
+    public Throwable getFailure()
+    {
+        return failure;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Record the rejection of the molecule. Since the molecule is
+     * modified further, a copy of its present state is stored.
+     * @param mol the molecule in the state to be reported
+     * @param reason the reason for the rejection
+     */
+
+    public void addRejection(IAtomContainer mol, String reason)
+    {
+        IAtomContainer copy = mol;
+        try {
+            copy = (IAtomContainer) mol.clone();
+        } catch (Throwable t) {
+            copy = mol;
+        }
+        rejectedMols.add(copy);
+        rejReasons.add(reason);
+    }
+
+//------------------------------------------------------------------------------
+
+    public List<IAtomContainer> getRejectedMols()
+    {
+        return rejectedMols;
+    }
+
+//------------------------------------------------------------------------------
+
+    public List<String> getRejectionReasons()
+    {
+        return rejReasons;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Record that two classes are compatible
+     * @param parentClass class in the parent field
+     * @param childClass class in the child field
+     */
+
+    public void addCompatibility(String parentClass, String childClass)
+    {
+        cpmEntries.add(new String[] {parentClass, childClass});
+    }
+
+//------------------------------------------------------------------------------
+
+    public List<String[]> getCompatibilities()
+    {
+        return cpmEntries;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Record the bond order of a class unless it is already defined
+     * @param apClass the class
+     * @param bndOrd the bond order
+     */
+
+    public void addClassBondOrder(String apClass, int bndOrd)
+    {
+        if (!classBndOrd.keySet().contains(apClass))
+            classBndOrd.put(apClass,bndOrd);
+    }
+
+//------------------------------------------------------------------------------
+
+    public Map<String,Integer> getClassBondOrders()
+    {
+        return classBndOrd;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void addFragment(GM3DFragment frag)
+    {
+        frags.add(frag);
+    }
+
+//------------------------------------------------------------------------------
+
+    public List<GM3DFragment> getFragments()
+    {
+        return frags;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Sets the names of the cutting rules whose SMARTS matched the molecule
+     * @param matchedRules the names of the matched rules
+     */
+
+    public void setMatchedRules(List<String> matchedRules)
+    {
+        this.matchedRules = matchedRules;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the names of the cutting rules whose SMARTS matched the
+     * molecule, or <code>null</code> if these are not known
+     */
+
+    public List<String> getMatchedRules()
+    {
+        return matchedRules;
+    }
+
+//------------------------------------------------------------------------------
+
+    public StageTimes getStageTimes()
+    {
+        return stageTimes;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void setRuleProfile(RuleProfile ruleProfile)
+    {
+        this.ruleProfile = ruleProfile;
+    }
+
+//------------------------------------------------------------------------------
+
+    public RuleProfile getRuleProfile()
+    {
+        return ruleProfile;
+    }
+
+//------------------------------------------------------------------------------
+    public void setTimeBudget(TimeBudget timeBudget)
+    {
+        this.timeBudget = timeBudget;
+    }
+
+//------------------------------------------------------------------------------
+
+    public TimeBudget getTimeBudget()
+    {
+        return timeBudget;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Abandons the molecule because its time budget ran out. Whatever
+     * was produced up to this point is discarded.
+     * @param stage the stage (see <code>StageTimes</code>) in which the
+     * budget ran out
+     */
+
+    public void setTimedOut(int stage)
+    {
+        this.timedOutStage = stage;
+        this.completed = false;
+        rejectedMols.clear();
+        rejReasons.clear();
+        cpmEntries.clear();
+        classBndOrd.clear();
+        frags.clear();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the stage (see <code>StageTimes</code>) in which the time
+     * budget ran out, or -1 if the molecule was processed within budget
+     */
+
+    public int getTimedOutStage()
+    {
+        return timedOutStage;
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -17,8 +17,11 @@
  */
 
 import java.util.Set;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +29,16 @@ import java.util.HashMap;
 import java.util.TreeMap;
 import java.util.SortedMap;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.vecmath.Point2d;
 import javax.vecmath.Point3d;
@@ -58,6 +71,7 @@ import org.openscience.cdk.interfaces.IMolecule;
 import org.openscience.cdk.graph.PathTools;
 
 import org.openscience.cdk.io.iterator.IteratingMDLReader;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 
@@ -92,6 +106,16 @@ public class Fragmenter
     private boolean thereAre2D;
     private int num2D;
 
+    //Counters of fragmented molecules and stored fragments
+    private int molnum = 0;
+    private int numTotFrag = 0;
+
+    //Number of fragments produced, before any removal
+    private long numFoundFrag = 0;
+
+    //Periodic report of the progress of the fragmentation
+    private ProgressReporter progress;
+
     //Output file: number of molecules over number of fragments 
     private String MlFrRatioFile;
 
@@ -113,6 +137,8 @@ public class Fragmenter
     // Sorted list of cutting rules - Sorting based on the 'priority' filed of cutRules
     private SortedMap<Integer,String> sortedCutRules = new TreeMap();
     private List<String> any = new ArrayList<String>();
+    // Parsed SMARTS queries of the cutting rules
+    private SMARTSRegistry rulesQueries;
 
     //Rejection rules 
     // -> fragments containing AP with these CLASS+SubCLASS
@@ -133,15 +159,20 @@ public class Fragmenter
     //Remove duplicates
     private boolean removeDuplicates = true;
 
+    //Library of unique fragments collected so far
+    private FragmentIndex fragIndex = new FragmentIndex();
+
     //Ignore well known fragments
     private boolean ignoreKnownFrags = false;
     private String ignorableFile;
     private String ignorableFormat;
+    private FragmentIndex ignorableIndex;
 
     //Collect only target fragment 
     private boolean lookForTargets = false;
     private String targetFile;
     private String targetFormat;
+    private FragmentIndex targetIndex;
     private String fragCollectingDir;
 
     //Add dummy aton on linear system
@@ -153,14 +184,66 @@ public class Fragmenter
 //TODO the high memory profile is not available anymore!
 //TODO remove the flags to run high Memomry profile
 
-    //Reporting flag
-    private int repOnScreen;
+    //Number of threads fragmenting molecules
+    private int numThreads = 1;
+
+    //Max number of molecules waiting per each thread
+    private static final int MOLSPERTHREAD = 4;
+
+    //Flag: start the most expensive molecules first, and number of
+    //molecules in the reorder buffer (0 for the default)
+    private boolean largestFirst = false;
+    private int schedulingWindow = 0;
+
+    //Molecules per thread in the default reorder buffer when starting the
+    //most expensive molecules first
+    private static final int LOOKAHEADPERTHREAD = 32;
+
+    //Checkpoint file and frequency (number of molecules, 0 for none)
+    private String checkpointFile;
+    private int checkpointFreq = 0;
+
+    //Resume from the checkpoint
+    private boolean resume = false;
+
+    //Cache of the outcome of the fragmentation of single molecules
+    private FragmentationCache cache = null;
+
+    //Cache of a previous run with different cutting rules, and differences
+    //between those rules and the present ones
+    private FragmentationCache previousCache = null;
+    private RuleSetDiff ruleDiff = null;
+
+    //Statistics of the run (null for none), files of the report, and
+    //number of molecules between reports (0 for only at the end)
+    private RunStatistics stats = null;
+    private String statsJSONFile;
+    private String statsCSVFile;
+    private int statisticsFreq = 0;
+
+    //Cost and hit rate of the cutting rules (null for no profiling)
+    private RuleProfile ruleProfile = null;
+    private String ruleProfileFile;
+
+    //Time (ns) allowed for each molecule (0 for no limit), file collecting
+    //the molecules exceeding it, and their number
+    private long molTimeBudget = 0;
+    private String quarantineFile;
+    private int numQuarantined = 0;
 
-    //Error messages
-    private String errMess="";
+    //Output files written when storing the results of the molecules, i.e.,
+    //those whose length is recorded by the checkpoints
+    private List<String> storedFiles = new ArrayList<String>();
 
-    //Recursion flag
-    private int recNum = 1;
+    //Checks applied while reading the input (null if none)
+    private StructureChecker streamChecker = null;
+
+    //Range of input structures to fragment (1-based, 0 for all)
+    private int firstStructure = 0;
+    private int lastStructure = 0;
+
+    //Reporting flag
+    private int repOnScreen;
 
     //preString for reporting on screen
     private String pre = "Fragmenter: ";
@@ -177,8 +260,28 @@ public class Fragmenter
         cutRules = Parameters.rules;
         sortedCutRules = Parameters.sortedRules;
         any = Parameters.anyAtm; 
+        rulesQueries = Parameters.rulesQueries;
         // -> amount of writing on screen
         repOnScreen = Parameters.report;
+        // -> parallelization
+        numThreads = Parameters.numThreads;
+        largestFirst = Parameters.largestFirst;
+        schedulingWindow = Parameters.schedulingWindow;
+        // -> checkpoints
+        checkpointFreq = Parameters.checkpointFreq;
+        resume = Parameters.resume;
+        // -> statistics of the run
+        if (Parameters.runStatistics)
+            stats = new RunStatistics();
+        statisticsFreq = Parameters.statisticsFreq;
+        // -> profiling of the cutting rules
+        if (Parameters.profileRules)
+            ruleProfile = new RuleProfile();
+        // -> time budget per molecule
+        molTimeBudget = (long) (Parameters.molTimeBudget * 1.0e9);
+        // -> range of input structures
+        firstStructure = Parameters.firstStructure;
+        lastStructure = Parameters.lastStructure;
         // -> rejection rules 
         rejClasses =  Parameters.rejClasses;
         rejClassCombination =  Parameters.rejClassCombination;
@@ -189,6 +292,7 @@ public class Fragmenter
         rejIsotopes = Parameters.rejIsotopes;
         // -> remove duplicates
         removeDuplicates = Parameters.rmDuplicates;
+        fragIndex = new FragmentIndex();
 	// -> ignore known fragments
 	ignoreKnownFrags = Parameters.ignoreKnownFrags;
 	ignorableFile = Parameters.ignorableFragsFile;
@@ -205,14 +309,41 @@ public class Fragmenter
         inFormat = Parameters.getLibFormat();
         outFormat = Parameters.getLibFormat();
 
+        // -> cache of fragmentation results from previous runs
+        if (Parameters.fragCacheDir != null)
+        {
+            cache = new FragmentationCache(Parameters.fragCacheDir,cutRules,
+                                                sortedCutRules,any,outFormat);
+            if (Parameters.previousRulesFile != null)
+            {
+                previousCache = new FragmentationCache(
+                                           Parameters.fragCacheDir,
+                                           Parameters.previousRules,
+                                           Parameters.previousSortedRules,
+                                           Parameters.previousAnyAtm,
+                                           outFormat);
+                ruleDiff = new RuleSetDiff(Parameters.previousRules,
+                                           Parameters.previousAnyAtm,
+                                           cutRules,any);
+                if (repOnScreen >= 0)
+                    System.out.println("Changes in the cutting rules: "
+                                                                  +ruleDiff);
+            }
+        }
+
         //deal with file names
 	jobName = Parameters.getJobName();
         inFile = Parameters.getCurrentSDFile();
-        outFile = "Fragments_"+jobName+".sdf";
+        outFile = FragmentLibrary.getFileName("Fragments_"+jobName);
         compMatFile = "CPMap_"+jobName+".par";
         checkfile = "check-Fragmenter_"+jobName+".sdf";
         MlFrRatioFile = "MolFrag-ratio_"+jobName+".dat";
 	fragCollectingDir = "fragsCollected_"+jobName;
+        checkpointFile = Checkpoint.getFileName(jobName);
+        statsJSONFile = "Statistics_"+jobName+".json";
+        statsCSVFile = "Statistics_"+jobName+".csv";
+        ruleProfileFile = "RuleProfile_"+jobName+".tsv";
+        quarantineFile = "Quarantine_"+jobName+".sdf";
 
 	//Preparation of folder tree
         if (lookForTargets)
@@ -220,6 +351,13 @@ public class Fragmenter
             FileUtils.makeDir(fragCollectingDir);
         }
 
+        //Load the libraries of reference fragments once for all
+        if (ignoreKnownFrags)
+            ignorableIndex = loadLibraryIndex(ignorableFile,ignorableFormat,
+                                                                  "ignorable");
+        if (lookForTargets)
+            targetIndex = loadLibraryIndex(targetFile,targetFormat,"target");
+
 
         someMolRejected = false;
         numRejected = 0;
@@ -237,440 +375,1127 @@ public class Fragmenter
      */
 
     public void chopMolecules()
+    {
+        chopMolecules(null);
+    }
+
+//----------------------------------------------------------------------------------------
+    /**
+     * Fragmentation of molecules that are checked on the fly. Each 
+     * molecule goes through the checks of the <code>StructureChecker</code>
+     * and, if not rejected, it is fragmented without writing any 
+     * intermediate file.
+     * @param stuChk the checker of the input structures or 
+     * <code>null</code> to fragment the input as it is
+     */
+
+    public void chopMolecules(StructureChecker stuChk)
     {
         if (repOnScreen >= 0)
             System.out.println("\n============ Fragmentation Starts ============");
 
+        //Fragment only a slice of the input
+        int firstIdx = 0;
+        long offset = 0;
+        long endOffset = -1;
+        if (firstStructure > 0)
+        {
+            SDFIndex index = SDFIndex.getIndex(inFile);
+            if (lastStructure > index.size())
+            {
+                System.err.println("ERROR! Structure "+lastStructure
+                                 +" requested, but "+inFile+" contains only "
+                                 +index.size()+" structures.");
+                System.exit(-1);
+            }
+            firstIdx = firstStructure - 1;
+            offset = index.getOffset(firstIdx);
+            endOffset = index.getEndOffset(lastStructure - 1);
+            if (repOnScreen >= 0)
+                System.out.println("Fragmenting structures "+firstStructure
+                                         +"-"+lastStructure+" of "+inFile);
+        }
+
+        //Restart from the last checkpoint
+        Checkpoint cp = null;
+        if (resume)
+        {
+            cp = restoreCheckpoint();
+            if (cp != null)
+            {
+                firstIdx = cp.getMolIndex();
+                offset = cp.getInputOffset();
+            }
+        }
+
+        //New fragments are appended to an existing output file (e.g., from
+        //a previous run in the same directory): its fragments are known
+        if (cp == null && removeDuplicates && new File(outFile).exists())
+            fragIndex = loadLibraryIndex(outFile,outFormat,
+                                                      "previously generated");
+
+        //Keep output files open during the fragmentation
+        IOtools.openSDFWriter(outFile,true);
+        IOtools.openSDFWriter(checkfile,true);
+        IOtools.openSDFWriter(quarantineFile,true);
+        storedFiles.add(outFile);
+        storedFiles.add(checkfile);
+        storedFiles.add(quarantineFile);
+
+        progress = ProgressReporter.start("Fragmentation",inFile,offset,
+                                                         endOffset,firstIdx);
+
         // loop over molecules
-        int molnum = 0;
-        int numTotFrag = 0;
-        int num2D = 0;
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile), DefaultChemObjectBuilder.getInstance());
-//            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile),NoNotificationChemObjectBuilder.getInstance()); // returns ERROR! AtomContainer does'n looks like a fragment in 'DENOPTIM' format!
-            while (reader.hasNext()) 
+            SDFRecordReader reader = new SDFRecordReader(inFile,offset,
+                                                       endOffset,numThreads);
+            Iterator<IAtomContainer> mols = reader;
+            if (stuChk != null)
             {
-                //Start working with the molecule
-                IAtomContainer mol = reader.next();
-                String name = MolecularUtils.getNameOrID(mol);        
-                if (repOnScreen >= 1)
-                    System.out.println("\nChopping Molecule "+name+" - "+mol.getAtomCount()+" atoms");
-
-                //Check dimensionality of the objgct
-                int dimensions = MolecularUtils.getDimensions(mol);
-                boolean is2D = false;
-                if (dimensions == 2)
+                mols = stuChk.getCheckedMolecules(reader);
+                streamChecker = stuChk;
+            }
+            if (numThreads > 1)
+            {
+                chopMoleculesInParallel(mols,reader,firstIdx);
+            } else {
+                int molIdx = firstIdx;
+                while (mols.hasNext()) 
                 {
-                    is2D = true;
-                } else if (dimensions != 3) {
-                    rejectMol(mol,"Unable to get coordinates (at least 2D) for some atom");
-                    continue;
+                    IAtomContainer mol = mols.next();
+                    molIdx++;
+                    Map<String,Long> chkLengths = getCheckFileLengths(molIdx);
+                    long t0 = System.nanoTime();
+                    FragmentationResult res = fragmentMolecule(mol,molIdx,
+                                                                 rulesQueries);
+                    res.getStageTimes().setFragmentationTime(
+                                                     System.nanoTime() - t0);
+                    res.setInputRecordOffset(reader.getLastRecordOffset());
+                    res.setInputOffset(reader.getOffset());
+                    res.setCheckFileLengths(chkLengths);
+                    storeResult(res);
+                    writeCheckpointIfDue(res);
+                    recordStatistics(res);
+                    reportProgress(res);
                 }
+            }
+            reader.close();
+        } catch (FileNotFoundException fnf) {
+            System.err.println("File Not Found: " + inFile);
+            System.err.println(fnf.getMessage());
+            System.exit(-1);
+        } catch (Throwable t) {
+            System.err.println("\nERROR in reading the file with IteratorMDLReader. "+t);
+            t.printStackTrace();
+            System.out.println("\nERROR: cannot iterate through MDL file. This "
+                                + "might be becouse the MDL format is prior to "
+                                + "V2000 or because there are bond with "
+                                + "type='any' (type=8 in connectivity matrix). "                                + "Please, try to provide a V2000 format and "
+                                + "convert avoid bond type=8.");
+            System.exit(0);
+        }
+        progress.stop();
+        IOtools.closeAllSDFWriters();
 
+        if (stuChk != null)
+            stuChk.printStreamingSummary();
 
-                // Get list of matching atoms with classes
-                Map<String, ArrayList<GM3DTargetBond>> matchingbonds = getMatchingBondsAllInOne(mol);
+        if (repOnScreen >= 0)
+        {
+            System.out.println("\n============= Fragmentation DONE =============");
+            System.out.println("Total number of fragmented molecules: "+molnum);
+            System.out.println("Total number of stored fragments:     "+numTotFrag);
+            if (someMolRejected)
+                System.out.println("\nCheck "+numRejected+" rejected molecules in "+checkfile);
+            if (thereAre2D)
+                System.out.println("\nFound "+num2D+" molecules in 2D. Check fragments labeled with '2D'");
+            if (numQuarantined > 0)
+                System.out.println("\nCheck "+numQuarantined+" molecules "
+                                   +"exceeding the time budget in "
+                                   +quarantineFile);
+            if (cache != null)
+                System.out.println("\n"+cache.getReport());
+        }
 
-                if (matchingbonds.keySet().size() == 0)
-                {
-		    if (errMess.equals(""))
-		    {
-		        errMess = "WARNING! No match found for any of the cutting rules.";
-		    }
-                    rejectMol(mol,errMess);
-		    errMess = "";
-                    continue;
+        //Statistics of the run
+        if (stats != null)
+        {
+            stats.setCounter("storedFragments",numTotFrag);
+            stats.writeReport(statsJSONFile,statsCSVFile);
+            if (repOnScreen >= 0)
+                System.out.println("\nStatistics of the run written in "
+                                           +statsJSONFile+" and "+statsCSVFile);
+        }
+
+        //Profile of the cutting rules
+        if (ruleProfile != null)
+        {
+            ruleProfile.write(ruleProfileFile,cutRules,sortedCutRules);
+            if (repOnScreen >= 0)
+                System.out.println("\nProfile of the cutting rules written in "
+                                                             +ruleProfileFile);
+        }
+
+        //In case of no fragments generated
+        if (numTotFrag == 0)
+        {
+            System.out.println("\nNO FRAGMENT was generated!\n");
+            System.exit(0);
+        }
+
+        //Report Compatibility matrix for this fragmentation
+        compMat.writeCPMapFile(compMatFile,classBndOrd);
+
+        //The job is completed: no need to resume it
+        IOtools.deleteFile(checkpointFile);
+
+        //Redirect input file of the next step
+        Parameters.updateStructureFilePointer(outFile);
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Fragmentation of the molecules using a pool of threads.
+     * A reader thread feeds the molecules to the workers, while the 
+     * current thread collects the results in the order of the input, so that
+     * the outcome is identical to that of the serial execution.
+     * The queue of results waiting to be collected is a reorder buffer:
+     * when starting the most expensive molecules first, the workers pick
+     * the molecule with the highest estimated cost among those in the 
+     * buffer and not yet started.
+     * @param reader the iterator over the input molecules
+     * @param source the reader of the input file, used to get the position
+     * of each molecule in the file
+     * @param firstIdx the number of molecules processed before the first one
+     * given by <code>reader</code>
+     */
+
+    private void chopMoleculesInParallel(final Iterator<IAtomContainer> reader,
+                                         final SDFRecordReader source,
+                                         final int firstIdx) 
+                                                               throws Throwable
+    {
+        if (repOnScreen >= 1)
+            System.out.println("Fragmenting molecules with "+numThreads
+                                                                +" threads");
+
+        // Molecules waiting for being stored: the bounded queue limits the
+        // number of molecules kept in memory
+        int bufferSize = MOLSPERTHREAD * numThreads;
+        if (largestFirst)
+        {
+            bufferSize = schedulingWindow > 0 ? schedulingWindow
+                                          : LOOKAHEADPERTHREAD * numThreads;
+            bufferSize = Math.max(bufferSize,numThreads);
+            if (repOnScreen >= 1)
+                System.out.println("Starting the most expensive of "
+                                         +bufferSize+" molecules first");
+        }
+        final BlockingQueue<Future<FragmentationResult>> pending =
+                 new ArrayBlockingQueue<Future<FragmentationResult>>(
+                                                                bufferSize);
+
+        // Workers take the most expensive molecule first, and molecules of
+        // equal cost in the order of the input
+        final ExecutorService pool = new ThreadPoolExecutor(numThreads,
+                        numThreads,0L,TimeUnit.MILLISECONDS,
+                        new PriorityBlockingQueue<Runnable>(bufferSize,
+                                                  new Comparator<Runnable>()
+        {
+            public int compare(Runnable a, Runnable b)
+            {
+                ScheduledMolecule ma = (ScheduledMolecule) a;
+                ScheduledMolecule mb = (ScheduledMolecule) b;
+                if (ma.cost != mb.cost)
+                    return ma.cost > mb.cost ? -1 : 1;
+                return ma.idx < mb.idx ? -1 : (ma.idx > mb.idx ? 1 : 0);
+            }
+        }));
+
+        // Each worker gets its own copy of the parsed SMARTS queries
+        final ThreadLocal<SMARTSRegistry> workerQueries = 
+                                             new ThreadLocal<SMARTSRegistry>()
+        {
+            protected SMARTSRegistry initialValue()
+            {
+                return rulesQueries.getCopy();
+            }
+        };
+
+        // Marker of the end of the input
+        final FutureTask<FragmentationResult> endOfInput = 
+                   new FutureTask<FragmentationResult>(
+                                         new Callable<FragmentationResult>()
+        {
+            public FragmentationResult call()
+            {
+                return null;
+            }
+        });
+        endOfInput.run();
+
+        final Throwable[] readerFailure = new Throwable[1];
+        Thread readerThread = new Thread(new Runnable()
+        {
+            public void run()
+            {
+                try {
+                    int molIdx = firstIdx;
+                    while (reader.hasNext())
+                    {
+                        final IAtomContainer mol = reader.next();
+                        final long recordOffset =
+                                                source.getLastRecordOffset();
+                        final long offset = source.getOffset();
+                        molIdx++;
+                        final int idx = molIdx;
+                        final Map<String,Long> chkLengths =
+                                                   getCheckFileLengths(idx);
+                        long cost = largestFirst ? estimateCost(mol) : 0;
+                        ScheduledMolecule task = new ScheduledMolecule(idx,
+                                     cost,new Callable<FragmentationResult>()
+                        {
+                            public FragmentationResult call()
+                            {
+                                long t0 = System.nanoTime();
+                                FragmentationResult res = fragmentMolecule(
+                                             mol,idx,workerQueries.get());
+                                res.getStageTimes().setFragmentationTime(
+                                                     System.nanoTime() - t0);
+                                res.setInputRecordOffset(recordOffset);
+                                res.setInputOffset(offset);
+                                res.setCheckFileLengths(chkLengths);
+                                return res;
+                            }
+                        });
+                        pool.execute(task);
+                        pending.put(task);
+                    }
+                } catch (Throwable t) {
+                    readerFailure[0] = t;
+                } finally {
+                    try {
+                        pending.put(endOfInput);
+                    } catch (InterruptedException ie) {
+                        readerFailure[0] = ie;
+                    }
                 }
+            }
+        });
+        readerThread.setDaemon(true);
+        readerThread.start();
+
+        try {
+            while (true)
+            {
+                FragmentationResult res = null;
+                try {
+                    res = pending.take().get();
+                } catch (ExecutionException ee) {
+                    throw ee.getCause();
+                }
+                if (res == null)
+                    break;
+                storeResult(res);
+                writeCheckpointIfDue(res);
+                recordStatistics(res);
+                reportProgress(res);
+            }
+            readerThread.join();
+            if (readerFailure[0] != null)
+                throw readerFailure[0];
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Fragmentation of a molecule waiting for a worker, with its position 
+     * in the input and estimated cost
+     */
+
+    private static class ScheduledMolecule
+                                      extends FutureTask<FragmentationResult>
+    {
+        int idx;
+        long cost;
+
+        ScheduledMolecule(int idx, long cost,
+                                      Callable<FragmentationResult> callable)
+        {
+            super(callable);
+            this.idx = idx;
+            this.cost = cost;
+        }
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Estimates the relative cost of the fragmentation of a molecule from
+     * features that are cheap to get: the number of atoms, the number of 
+     * metals, and the number of cutting rules passing the pre-screening
+     * by elements.
+     * @param mol the molecule
+     * @return the estimated cost in arbitrary units
+     */
 
-                // Cut previously selected bonds
-                for (int i : sortedCutRules.keySet()) 
+    private long estimateCost(IAtomContainer mol)
+    {
+        int numAtms = mol.getAtomCount();
+        int numMetals = 0;
+        for (IAtom atm : mol.atoms())
+        {
+            if (Parameters.metals.contains(atm.getSymbol()))
+                numMetals++;
+        }
+        ElementFingerprint fp = new ElementFingerprint(mol);
+        int numRules = 0;
+        for (GM3DCuttingRule rule : cutRules.values())
+        {
+            if (rule.canMatch(fp))
+                numRules++;
+        }
+        return (long) numAtms * numAtms * (1 + numMetals) * (1 + numRules);
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Writes a checkpoint if the molecule just stored is the last of a
+     * block of <code>checkpointFreq</code> molecules. The output written
+     * so far when storing results is flushed to disk before recording the
+     * length of the output files. The files of the streaming
+     * <code>StructureChecker</code>, which are written while reading ahead
+     * of the stored molecules, are recorded with the length they had when
+     * the last stored molecule was read.
+     * @param res the outcome of the last stored molecule
+     */
+
+    private void writeCheckpointIfDue(FragmentationResult res)
+    {
+        if (checkpointFreq <= 0 || res.getMolIndex() % checkpointFreq != 0)
+            return;
+
+        Checkpoint cp = new Checkpoint(inFile,res.getInputOffset());
+        cp.setCounters(res.getMolIndex(),molnum,numTotFrag,num2D,numRejected);
+        cp.addFileLengths(IOtools.flushAndGetLengths(storedFiles));
+        if (res.getCheckFileLengths() != null)
+            cp.addFileLengths(res.getCheckFileLengths());
+        if (new File(MlFrRatioFile).exists())
+            cp.addFileLength(MlFrRatioFile);
+        cp.write(checkpointFile,compMat,classBndOrd);
+
+        if (repOnScreen >= 1)
+            System.out.println("Checkpoint written after molecule "
+                                                         +res.getMolIndex());
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Measures the files written by the streaming checks of the input
+     * structures, if a checkpoint is due after the given molecule. Must be
+     * called by the thread reading the input right after reading the
+     * molecule, so that the files contain exactly the checks of the
+     * molecules up to this one.
+     * @param molIdx the index of the molecule just read
+     * @return the length of the files, or <code>null</code> if not needed
+     */
+
+    private Map<String,Long> getCheckFileLengths(int molIdx)
+    {
+        if (streamChecker == null || checkpointFreq <= 0
+                                           || molIdx % checkpointFreq != 0)
+            return null;
+        return IOtools.flushAndGetLengths(streamChecker.getStreamingFiles());
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Adds the times of the last stored molecule to the statistics of the
+     * run, and writes the report if the molecule is the last of a block of
+     * <code>statisticsFreq</code> molecules.
+     * @param res the outcome of the last stored molecule
+     */
+
+    private void recordStatistics(FragmentationResult res)
+    {
+        if (stats == null)
+            return;
+
+        stats.record(res);
+        if (statisticsFreq > 0 && res.getMolIndex() % statisticsFreq == 0)
+        {
+            stats.setCounter("storedFragments",numTotFrag);
+            stats.writeReport(statsJSONFile,statsCSVFile);
+        }
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Publishes the counters of the run to the progress reporter. The
+     * number of unique fragments is known only when removing duplicates.
+     */
+
+    private void reportProgress(FragmentationResult res)
+    {
+        progress.update(res.getMolIndex(),numFoundFrag,
+                        removeDuplicates ? numTotFrag : -1,
+                        res.getInputOffset());
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Restores the state of this <code>Fragmenter</code> from the checkpoint
+     * file, if any: counters, compatibility matrix, class-to-bond order
+     * map, and library of unique fragments. The output files are cut back
+     * to their length at the time of the checkpoint.
+     * @return the checkpoint or <code>null</code> if there is no
+     * checkpoint file
+     */
+
+    private Checkpoint restoreCheckpoint()
+    {
+        if (!new File(checkpointFile).exists())
+        {
+            if (repOnScreen >= 0)
+                System.out.println("No checkpoint file '"+checkpointFile
+                                    +"'. Starting from the first molecule.");
+            return null;
+        }
+
+        Checkpoint cp = Checkpoint.read(checkpointFile);
+        inFile = cp.getInputFile();
+        if (!new File(inFile).exists())
+        {
+            System.err.println("ERROR! Input file of the checkpoint '"
+                                                     +inFile+"' not found.");
+            System.exit(-1);
+        }
+
+        //Counters
+        molnum = cp.getMolNum();
+        numTotFrag = cp.getNumTotFrag();
+        num2D = cp.getNum2D();
+        thereAre2D = num2D > 0;
+        numRejected = cp.getNumRejected();
+        someMolRejected = numRejected > 0;
+
+        //Compatibility matrix and class-to-bond order map
+        compMat.fillCPMap(checkpointFile);
+        classBndOrd = CompatibilityMatrix.getCL2BO(checkpointFile);
+
+        //Output files
+        cp.truncateFiles();
+        if (lookForTargets)
+        {
+            File[] collected = new File(fragCollectingDir).listFiles();
+            if (collected != null)
+            {
+                for (File f : collected)
                 {
-                    String ruleName = sortedCutRules.get(i);
-                    GM3DCuttingRule rule = cutRules.get(ruleName);
+                    String name = fragCollectingDir+"/"+f.getName();
+                    if (!cp.getFileLengths().containsKey(name))
+                        f.delete();
+                    else
+                        storedFiles.add(name);
+                }
+            }
+        }
 
-                    // Skip unmatched rules
-                    if (!matchingbonds.keySet().contains(ruleName))
-                        continue;
+        //Library of unique fragments
+        if (removeDuplicates && numTotFrag > 0 && new File(outFile).exists())
+            fragIndex = loadLibraryIndex(outFile,outFormat,
+                                                      "previously generated");
 
+        if (repOnScreen >= 0)
+            System.out.println("Resuming from checkpoint: "
+                                 +cp.getMolIndex()+" molecules processed, "
+                                 +numTotFrag+" fragments stored.");
+        return cp;
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Fragmentation of a single molecule. This method does not modify any 
+     * data shared with other molecules, thus can run in parallel: all the
+     * results are collected in the returned object and must be stored with
+     * <code>storeResult</code>.
+     * @param mol the molecule to chop
+     * @param molIdx the position of the molecule in the input
+     * @param queries the parsed SMARTS queries of the cutting rules. 
+     * These cannot be shared among threads.
+     * @return the outcome of the fragmentation
+     */
+
+    private FragmentationResult fragmentMolecule(IAtomContainer mol, 
+                                          int molIdx, SMARTSRegistry queries)
+    {
+        String name = MolecularUtils.getNameOrID(mol);
+        FragmentationResult res = new FragmentationResult(molIdx,name);
+        TimeBudget budget = new TimeBudget(molTimeBudget);
+        res.setTimeBudget(budget);
+        budget.start();
+        try {
+            res = fragmentMolecule(mol,res,queries);
+        } catch (TimeBudget.ExceededException tbe) {
+            // The molecule is abandoned: nothing of it is kept or cached
+            res.setTimedOut(tbe.getStage());
+        } finally {
+            // The perception registered by the pre-filter or by the
+            // matching keeps the molecule in memory, whatever the path
+            MoleculePerception.forget(mol);
+        }
+        budget.stop();
+        return res;
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Fragmentation of a single molecule within the time budget set in
+     * the given result.
+     * @param mol the molecule to chop
+     * @param res the empty result to fill
+     * @param queries the parsed SMARTS queries of the cutting rules
+     * @return the outcome of the fragmentation, which is <code>res</code>
+     * unless it is taken from the cache
+     * @throws TimeBudget.ExceededException if the time budget runs out
+     */
+
+    private FragmentationResult fragmentMolecule(IAtomContainer mol,
+                             FragmentationResult res, SMARTSRegistry queries)
+    {
+        //Start working with the molecule
+        String name = res.getName();
+        int molIdx = res.getMolIndex();
+        TimeBudget budget = res.getTimeBudget();
+        if (repOnScreen >= 1)
+            System.out.println("\nChopping Molecule "+name+" - "+mol.getAtomCount()+" atoms");
+
+        //Re-use the outcome of a previous run, if available
+        String cacheKey = null;
+        if (cache != null)
+        {
+            cacheKey = cache.getMoleculeKey(mol);
+            FragmentationResult cached = cache.load(cacheKey,mol,molIdx);
+            if (cached != null)
+            {
+                if (repOnScreen >= 1)
+                    System.out.println("Fragments taken from the cache");
+                return cached;
+            }
+            if (previousCache != null 
+                && reusePreviousResult(mol,cacheKey,queries))
+            {
+                cached = cache.load(cacheKey,mol,molIdx);
+                if (cached != null)
+                {
                     if (repOnScreen >= 1)
-                        System.out.println("Cutting bonds matching rule "+ ruleName);
+                        System.out.println("Molecule not affected by the "
+                          + "changes in the cutting rules: fragments taken "
+                          + "from the cache of the previous rules");
+                    return cached;
+                }
+            }
+        }
+        //All fragments before applying the rejection criteria
+        List<GM3DFragment> allFrags = new ArrayList<GM3DFragment>();
 
-                    for (GM3DTargetBond tb: matchingbonds.get(ruleName)) 
-                    {
-                        IAtom atmA = tb.getAtmSubClass0();
-                        IAtom atmB = tb.getAtmSubClass1();
+        //Check dimensionality of the objgct
+        int dimensions = MolecularUtils.getDimensions(mol);
+        boolean is2D = false;
+        if (dimensions == 2)
+        {
+            is2D = true;
+        } else if (dimensions != 3) {
+            res.addRejection(mol,"Unable to get coordinates (at least 2D) for some atom");
+            res.setMatchedRules(new ArrayList<String>());
+            if (cache != null)
+                cache.store(cacheKey,res,allFrags);
+            return res;
+        }
 
-                        //ignore if bond already broken
-                        if (!mol.getConnectedAtomsList(atmA).contains(atmB))
-                        { 
-                            continue;
-                        }
+        // Get list of matching atoms with classes. Rings and aromaticity
+        // are perceived once (or re-used from the pre-filter) and shared by
+        // all the queries, but the perception becomes invalid as soon as
+        // bonds are cut.
+        MoleculePerception perception = MoleculePerception.getFor(mol);
+        Map<String, ArrayList<GM3DTargetBond>> matchingbonds = getMatchingBondsAllInOne(mol,queries,perception,res);
+        MoleculePerception.forget(mol);
 
-                        //treatment of n-hapto ligands
-                        if (rule.isHAPTO())
-                        {
-                            if (repOnScreen >= 1)
-                                System.out.println("Attempt to generate ligand with hapticity > 1");
+        if (matchingbonds.keySet().size() == 0)
+        {
+            String errMess = res.getErrorMessage();
+            if (errMess.equals(""))
+            {
+                errMess = "WARNING! No match found for any of the cutting rules.";
+            }
+            res.addRejection(mol,errMess);
+            if (cache != null)
+                cache.store(cacheKey,res,allFrags);
+            return res;
+        }
 
-                            //Get central atom index for the selected pair
-                            //As a convention the central atom has subclass '0'
-                            IAtom centralAtm = atmA;
+        // Cut previously selected bonds
+        StageTimes times = res.getStageTimes();
+        long t0 = System.nanoTime();
+        for (int i : sortedCutRules.keySet()) 
+        {
+            String ruleName = sortedCutRules.get(i);
+            GM3DCuttingRule rule = cutRules.get(ruleName);
 
-                            //Get list of candidates for hapto: same cutting Rule and central metal
-                            ArrayList<Integer> candidatesForHapto = new ArrayList<Integer>();
-                            for (GM3DTargetBond tbForHapto : matchingbonds.get(ruleName))
-                            {
-                                //Consider only bond invorving same metal
-                                if (tbForHapto.getAtmSubClass0() == centralAtm)
-                                    candidatesForHapto.add(tbForHapto.getIDSubClass1());
-                            }
+            // Skip unmatched rules
+            if (!matchingbonds.keySet().contains(ruleName))
+                continue;
 
-                            //Get atms in n-hapto system: contiguous neigbours with same 
-                            // type of bond with the same central atom
-                            ArrayList<Boolean> flags = new ArrayList<Boolean>();
-                            for (int iatm=0; iatm<mol.getAtomCount(); iatm++)
-                                flags.add(false);
-                            Set<Integer> atmsInHapto = new HashSet<Integer>();
-                            atmsInHapto.add(tb.getIDSubClass1());
-                            atmsInHapto = exploreHapticity(tb.getIDSubClass1(),candidatesForHapto,atmsInHapto,mol,flags);
-                            if (atmsInHapto.size() == 1)
-                            {
-                                if (repOnScreen > 2)
-                                    System.out.println("Unable to find other bonds involved in high-hapticity ligand! Bond ignored.");
-                                continue;
-                            }
+            if (repOnScreen >= 1)
+                System.out.println("Cutting bonds matching rule "+ ruleName);
 
-                            if (repOnScreen >= 1)
-                                System.out.println("Hapticity: "+atmsInHapto.size()+" - Atoms involved: "+atmsInHapto);
+            for (GM3DTargetBond tb: matchingbonds.get(ruleName)) 
+            {
+                IAtom atmA = tb.getAtmSubClass0();
+                IAtom atmB = tb.getAtmSubClass1();
 
-                            //Check existence of all bonds involved in multihapto system
-                            boolean isSystemIntact = true;
-                            for (int ligIdx : atmsInHapto)
-                            {
-                                IAtom ligAtm = mol.getAtom(ligIdx);
-                                List<IAtom> nbrsOfLigAtm = mol.getConnectedAtomsList(ligAtm);
+                //ignore if bond already broken
+                if (!mol.getConnectedAtomsList(atmA).contains(atmB))
+                { 
+                    continue;
+                }
+                budget.check(StageTimes.CUTTING);
+                if (res.getRuleProfile() != null)
+                    res.getRuleProfile().add(ruleName,RuleProfile.CUTS,1);
+
+                //treatment of n-hapto ligands
+                if (rule.isHAPTO())
+                {
+                    if (repOnScreen >= 1)
+                        System.out.println("Attempt to generate ligand with hapticity > 1");
+
+                    //Get central atom index for the selected pair
+                    //As a convention the central atom has subclass '0'
+                    IAtom centralAtm = atmA;
+
+                    //Get list of candidates for hapto: same cutting Rule and central metal
+                    ArrayList<Integer> candidatesForHapto = new ArrayList<Integer>();
+                    for (GM3DTargetBond tbForHapto : matchingbonds.get(ruleName))
+                    {
+                        //Consider only bond invorving same metal
+                        if (tbForHapto.getAtmSubClass0() == centralAtm)
+                            candidatesForHapto.add(tbForHapto.getIDSubClass1());
+                    }
+
+                    //Get atms in n-hapto system: contiguous neigbours with same 
+                    // type of bond with the same central atom
+                    ArrayList<Boolean> flags = new ArrayList<Boolean>();
+                    for (int iatm=0; iatm<mol.getAtomCount(); iatm++)
+                        flags.add(false);
+                    Set<Integer> atmsInHapto = new HashSet<Integer>();
+                    atmsInHapto.add(tb.getIDSubClass1());
+                    atmsInHapto = exploreHapticity(tb.getIDSubClass1(),candidatesForHapto,atmsInHapto,mol,flags);
+                    if (atmsInHapto.size() == 1)
+                    {
+                        if (repOnScreen > 2)
+                            System.out.println("Unable to find other bonds involved in high-hapticity ligand! Bond ignored.");
+                        continue;
+                    }
+
+                    if (repOnScreen >= 1)
+                        System.out.println("Hapticity: "+atmsInHapto.size()+" - Atoms involved: "+atmsInHapto);
+
+                    //Check existence of all bonds involved in multihapto system
+                    boolean isSystemIntact = true;
+                    for (int ligIdx : atmsInHapto)
+                    {
+                        IAtom ligAtm = mol.getAtom(ligIdx);
+                        List<IAtom> nbrsOfLigAtm = mol.getConnectedAtomsList(ligAtm);
 
 //TODO remove
 //System.out.println("Controlling bond: "+ligAtm.getSymbol()+mol.getAtomNumber(ligAtm)+" "+centralAtm.getSymbol()+mol.getAtomNumber(centralAtm)+" = "+(!nbrsOfLigAtm.contains(centralAtm)));
 
-                                if (!nbrsOfLigAtm.contains(centralAtm))
-                                {
-                                    isSystemIntact = false;
-                                    break;
-                                }
-                            } 
-
-                            //If not, it means that another rule already acted on the system 
-                            //thus kill this attempt without generating dummyatom
-                            if (!isSystemIntact)
-                                continue;
-
-                            //A dummy atom will be used to define attachment point of
-                            // ligand with high hapticity
-                            Point3d dummyP3d = new Point3d(); //Used also for reporting 2D
-                            int pointsIn3D = 0;
-                            for (int ligIdx : atmsInHapto)
-                            {
-                                Point3d ligP3d = MolecularUtils.getCoords3d(mol.getAtom(ligIdx));
-                                dummyP3d.x = dummyP3d.x + ligP3d.x;
-                                dummyP3d.y = dummyP3d.y + ligP3d.y;
-                                dummyP3d.z = dummyP3d.z + ligP3d.z;
-                            }
+                        if (!nbrsOfLigAtm.contains(centralAtm))
+                        {
+                            isSystemIntact = false;
+                            break;
+                        }
+                    } 
 
-                            dummyP3d.x = dummyP3d.x / (double) atmsInHapto.size();
-                            dummyP3d.y = dummyP3d.y / (double) atmsInHapto.size();
-                            dummyP3d.z = dummyP3d.z / (double) atmsInHapto.size();
+                    //If not, it means that another rule already acted on the system 
+                    //thus kill this attempt without generating dummyatom
+                    if (!isSystemIntact)
+                        continue;
 
-                            //Add Dummy atom to molecular object
-                            //if no other Du is already in the same position
-                            boolean addDu = true;
-                            int oldDuIdx = -1;
-                            for (IAtom oldDu : mol.atoms())
+                    //A dummy atom will be used to define attachment point of
+                    // ligand with high hapticity
+                    Point3d dummyP3d = new Point3d(); //Used also for reporting 2D
+                    int pointsIn3D = 0;
+                    for (int ligIdx : atmsInHapto)
+                    {
+                        Point3d ligP3d = MolecularUtils.getCoords3d(mol.getAtom(ligIdx));
+                        dummyP3d.x = dummyP3d.x + ligP3d.x;
+                        dummyP3d.y = dummyP3d.y + ligP3d.y;
+                        dummyP3d.z = dummyP3d.z + ligP3d.z;
+                    }
+
+                    dummyP3d.x = dummyP3d.x / (double) atmsInHapto.size();
+                    dummyP3d.y = dummyP3d.y / (double) atmsInHapto.size();
+                    dummyP3d.z = dummyP3d.z / (double) atmsInHapto.size();
+
+                    //Add Dummy atom to molecular object
+                    //if no other Du is already in the same position
+                    boolean addDu = true;
+                    int oldDuIdx = -1;
+                    for (IAtom oldDu : mol.atoms())
+                    {
+                        if (oldDu.getSymbol() == duSymbol)
+                        {
+                            Point3d oldDuP3d = oldDu.getPoint3d();
+                            if (oldDuP3d.distance(dummyP3d) < 0.002)
                             {
-                                if (oldDu.getSymbol() == duSymbol)
-                                {
-                                    Point3d oldDuP3d = oldDu.getPoint3d();
-                                    if (oldDuP3d.distance(dummyP3d) < 0.002)
-                                    {
-                                        addDu = false;
-                                        oldDuIdx = mol.getAtomNumber(oldDu);
-                                        break;
-                                    }
-                                } 
+                                addDu = false;
+                                oldDuIdx = mol.getAtomNumber(oldDu);
+                                break;
                             }
-                        
-                            IAtom dummyAtm;
-                            if (addDu)
-                            {
+                        } 
+                    }
+                
+                    IAtom dummyAtm;
+                    if (addDu)
+                    {
 //TODO move Du to variable
-                                dummyAtm = new Atom(duSymbol);
-                                dummyAtm.setPoint3d(dummyP3d);
-                                mol.addAtom(dummyAtm);
+                        dummyAtm = new Atom(duSymbol);
+                        dummyAtm.setPoint3d(dummyP3d);
+                        mol.addAtom(dummyAtm);
 //TODO: remove                        MolecularUtils.addDummyOnCentralAtom(dummyAtm,mol,true);
-                            } else {
-                                dummyAtm = mol.getAtom(oldDuIdx);
-                            }
+                    } else {
+                        dummyAtm = mol.getAtom(oldDuIdx);
+                    }
 
-                            //Modify connectivity of atoms involved in high-hapticity coordination
-                            //creation of Du-to-ATM bonds
-                            IBond.Order border = IBond.Order.valueOf("SINGLE");
+                    //Modify connectivity of atoms involved in high-hapticity coordination
+                    //creation of Du-to-ATM bonds
+                    IBond.Order border = IBond.Order.valueOf("SINGLE");
 
-                            // Translate bond order to int
-                            int intborder = MolecularUtils.bondorderToint(border);
-                            
-                            for (int ligIdx : atmsInHapto)
-                            {
-                                IAtom ligAtm = mol.getAtom(ligIdx);
-                                //Check for existing bond
-                                List<IAtom> nbrsOfDu = mol.getConnectedAtomsList(dummyAtm);
+                    // Translate bond order to int
+                    int intborder = MolecularUtils.bondorderToint(border);
+                    
+                    for (int ligIdx : atmsInHapto)
+                    {
+                        IAtom ligAtm = mol.getAtom(ligIdx);
+                        //Check for existing bond
+                        List<IAtom> nbrsOfDu = mol.getConnectedAtomsList(dummyAtm);
 //System.out.println("\nnbrsOfDu size: "+nbrsOfDu.size()+" "+ligIdx);
 //for (IAtom aaa : nbrsOfDu)
 //    System.out.println("nbrsOfDu: "+mol.getAtomNumber(aaa));
 //System.out.println("T/F: "+nbrsOfDu.contains(ligAtm));
 
-                                if (!nbrsOfDu.contains(ligAtm))
-                                {
-                                    //Add bond with dummy
-                                    Bond bnd = new Bond(dummyAtm,ligAtm,border);
-                                    mol.addBond(bnd);
-                                }
-                                //Remove bonds between coordinating atoms and central atom
-                                IBond oldBnd = mol.getBond(centralAtm,ligAtm);
-                                mol.removeBond(oldBnd);
-                            }
+                        if (!nbrsOfDu.contains(ligAtm))
+                        {
+                            //Add bond with dummy
+                            Bond bnd = new Bond(dummyAtm,ligAtm,border);
+                            mol.addBond(bnd);
+                        }
+                        //Remove bonds between coordinating atoms and central atom
+                        IBond oldBnd = mol.getBond(centralAtm,ligAtm);
+                        mol.removeBond(oldBnd);
+                    }
 
-                            if (repOnScreen >= 1)
-                                System.out.println("Multihapto ligand created");
+                    if (repOnScreen >= 1)
+                        System.out.println("Multihapto ligand created");
 
-			    String locRuleName = ruleName;
-                            String locCSC0 = tb.getClassSubClass0();
-                            String locCSC1 = tb.getClassSubClass1();
-                            if (Parameters.addIDtoAPClass)
-			    {
-				locRuleName = ruleName 
-			        + Integer.toString(UniqueIndex.getUnqInt()) 
-				+ "unq";
-				locCSC0.replaceAll(ruleName,
-							     locRuleName);
-				locCSC1.replaceAll(ruleName,
-							     locRuleName);
-			    }
+		    String locRuleName = ruleName;
+                    String locCSC0 = tb.getClassSubClass0();
+                    String locCSC1 = tb.getClassSubClass1();
+                    if (Parameters.addIDtoAPClass)
+		    {
+			locRuleName = ruleName 
+		        + Integer.toString(UniqueIndex.getUnqInt()) 
+			+ "unq";
+			locCSC0.replaceAll(ruleName,
+						     locRuleName);
+			locCSC1.replaceAll(ruleName,
+						     locRuleName);
+		    }
 
-                            // Add rule to compatibility matrix
-                            compMat.addTrueEntry(locCSC0,locCSC1);
-                            compMat.addTrueEntry(locCSC1,locCSC0);
-
-                            // Report CLASS-BondOrder key
-                            if (!classBndOrd.keySet().contains(locRuleName))
-                                classBndOrd.put(locRuleName,intborder);
-
-                            //Set attachment points on central atom 
-                            addAttachmentPoint(centralAtm,dummyAtm,locRuleName,
-                                            getSubClass(ruleName,centralAtm),
-                                            intborder,mol);
-                            addAttachmentPoint(dummyAtm,centralAtm,locRuleName,
-                                            getSubClass(ruleName,atmB),
-                                            intborder,mol);
-                        } else {
-                            //tratment of mono-hapto ligands
-                            if (repOnScreen >= 1)
-                                System.out.println("Cutting bond between atoms "+tb.getIDSubClass0()+"-"+tb.getIDSubClass1());
+                    // Add rule to compatibility matrix
+                    res.addCompatibility(locCSC0,locCSC1);
+                    res.addCompatibility(locCSC1,locCSC0);
 
-                            //Identify object Bond
-                            IBond bnd = mol.getBond(atmA,atmB);
+                    // Report CLASS-BondOrder key
+                    res.addClassBondOrder(locRuleName,intborder);
 
-                            // Remember bond order
-//TODO make this a parameter that the user can change
-                            IBond.Order border = IBond.Order.valueOf("SINGLE");
-                            if (!rule.getSMARTSBnd().equals("~"))
-                                border = bnd.getOrder();
-
-                            // Translate bond order to int
-                            int intborder = MolecularUtils.bondorderToint(border); 
-                            String locRuleName = ruleName;
-                            String locCSC0 = tb.getClassSubClass0();
-                            String locCSC1 = tb.getClassSubClass1();
-                            if (Parameters.addIDtoAPClass)
-                            {
-                                locRuleName = ruleName
-                                + Integer.toString(UniqueIndex.getUnqInt())
-                                + "unq";
-                                locCSC0.replaceAll(ruleName,
-                                                             locRuleName);
-                                locCSC1.replaceAll(ruleName,
-                                                             locRuleName);
-                            }
-                            
-                            // Add rule to compatibility matrix
-                            compMat.addTrueEntry(locCSC0,locCSC1);
-                            compMat.addTrueEntry(locCSC1,locCSC0);
-
-                            // Report CLASS-BondOrder key
-                            if (!classBndOrd.keySet().contains(locRuleName))
-                                classBndOrd.put(locRuleName,intborder);
-
-                            // now cut the bond
-                            mol.removeBond(bnd);
-
-                            //Set attachment points on central atom 
-                            addAttachmentPoint(atmA,atmB,locRuleName,
-                                            getSubClass(ruleName,atmA),
-                                            intborder,mol);
-                            addAttachmentPoint(atmB,atmA,locRuleName,
-                                            getSubClass(ruleName,atmB),
-                                            intborder,mol);
-                        } //end of if (hapticity>1)
-                    } //end of loop over matching bonds
-                } //end of loop over rules
-
-                //Report eventual 2D
-                if (is2D)
-                {
-                    thereAre2D = true;
-                    num2D++;
-                }
+                    //Set attachment points on central atom 
+                    addAttachmentPoint(centralAtm,dummyAtm,locRuleName,
+                                    getSubClass(ruleName,centralAtm),
+                                    intborder,mol);
+                    addAttachmentPoint(dummyAtm,centralAtm,locRuleName,
+                                    getSubClass(ruleName,atmB),
+                                    intborder,mol);
+                } else {
+                    //tratment of mono-hapto ligands
+                    if (repOnScreen >= 1)
+                        System.out.println("Cutting bond between atoms "+tb.getIDSubClass0()+"-"+tb.getIDSubClass1());
 
-                //Isolation and analysis of the fragments
-                try {
-                    // Split the broken molecule producing all fragments
-                    AtomContainerSet frags = isolateFrags(mol);
+                    //Identify object Bond
+                    IBond bnd = mol.getBond(atmA,atmB);
 
-                    // Analyze the fragments
-                    int i = 0;
-                    for (IAtomContainer atCont : frags.atomContainers()) 
+                    // Remember bond order
+//TODO make this a parameter that the user can change
+                    IBond.Order border = IBond.Order.valueOf("SINGLE");
+                    if (!rule.getSMARTSBnd().equals("~"))
+                        border = bnd.getOrder();
+
+                    // Translate bond order to int
+                    int intborder = MolecularUtils.bondorderToint(border); 
+                    String locRuleName = ruleName;
+                    String locCSC0 = tb.getClassSubClass0();
+                    String locCSC1 = tb.getClassSubClass1();
+                    if (Parameters.addIDtoAPClass)
                     {
-                        i++;
-                        if (repOnScreen >= 3)
-                             System.out.println("Analysing fragment "+ i);
+                        locRuleName = ruleName
+                        + Integer.toString(UniqueIndex.getUnqInt())
+                        + "unq";
+                        locCSC0.replaceAll(ruleName,
+                                                     locRuleName);
+                        locCSC1.replaceAll(ruleName,
+                                                     locRuleName);
+                    }
+                    
+                    // Add rule to compatibility matrix
+                    res.addCompatibility(locCSC0,locCSC1);
+                    res.addCompatibility(locCSC1,locCSC0);
+
+                    // Report CLASS-BondOrder key
+                    res.addClassBondOrder(locRuleName,intborder);
+
+                    // now cut the bond
+                    mol.removeBond(bnd);
+
+                    //Set attachment points on central atom 
+                    addAttachmentPoint(atmA,atmB,locRuleName,
+                                    getSubClass(ruleName,atmA),
+                                    intborder,mol);
+                    addAttachmentPoint(atmB,atmA,locRuleName,
+                                    getSubClass(ruleName,atmB),
+                                    intborder,mol);
+                } //end of if (hapticity>1)
+            } //end of loop over matching bonds
+        } //end of loop over rules
+        t0 = times.add(StageTimes.CUTTING,t0);
+
+        //Report eventual 2D
+        res.setIs2D(is2D);
+
+        //Isolation and analysis of the fragments
+        try {
+            // Split the broken molecule producing all fragments
+            AtomContainerSet frags = isolateFrags(mol);
+            t0 = times.add(StageTimes.ISOLATION,t0);
+            budget.check(StageTimes.ISOLATION);
+
+            // Analyze the fragments
+            int i = 0;
+            for (IAtomContainer atCont : frags.atomContainers()) 
+            {
+                i++;
+                if (repOnScreen >= 3)
+                     System.out.println("Analysing fragment "+ i);
 
-                        GM3DFragment frag = new GM3DFragment(atCont);
+                GM3DFragment frag = new GM3DFragment(atCont);
 
-                        //Get rid of fragments having no attachment point
-                        //they cannot become GM3DFragments
-                        if (frag.getNumberOfAttachmentPoints() == 0)
-                        {
-                            if (repOnScreen >= 3)
-                                System.out.println("Molecule "+i+" has no attachment point! Discharged!");
-                            continue;
-                        }
+                //Get rid of fragments having no attachment point
+                //they cannot become GM3DFragments
+                if (frag.getNumberOfAttachmentPoints() == 0)
+                {
+                    if (repOnScreen >= 3)
+                        System.out.println("Molecule "+i+" has no attachment point! Discharged!");
+                    continue;
+                }
 
-                        //Set title to the fragment
-                        frag.setProperty("cdk:Title","From_"+name+"_"+i);
-                        //Change remarks
-                        if (is2D)
-                            frag.setProperty("cdk:Remark","From GM3DFragmenter - 2D");
-                        else
-                            frag.setProperty("cdk:Remark","From GM3DFragmenter");
+                //Set title to the fragment
+                frag.setProperty("cdk:Title","From_"+name+"_"+i);
+                //Change remarks
+                if (is2D)
+                    frag.setProperty("cdk:Remark","From GM3DFragmenter - 2D");
+                else
+                    frag.setProperty("cdk:Remark","From GM3DFragmenter");
 
-                        //Add fragment to the output library
-                        if (repOnScreen >= 1)
-                            System.out.print("Attempt to add a new fragment... ");
+                //Add fragment to the output library
+                if (repOnScreen >= 1)
+                    System.out.print("Attempt to add a new fragment... ");
+
+                //Add dummy atoms for use of internal coordinates
+                if ((!is2D) && addDuOnLinear)
+                    MolecularUtils.addDummiesOnLinearities(frag);
+
+                //Check this fragments for rejection criteria
+                allFrags.add(frag);
+                t0 = times.add(StageTimes.ISOLATION,t0);
+                budget.check(StageTimes.ISOLATION);
+                if (FragmentFilter.keepFragment(frag))
+                    res.addFragment(frag);
+                t0 = times.add(StageTimes.FILTERING,t0);
+                budget.check(StageTimes.FILTERING);
+            } //end loop over fragments
+
+            res.setCompleted();
+        } catch (TimeBudget.ExceededException tbe) {
+            throw tbe;
+        } catch (Throwable t) {
+            res.setFailure(t);
+        }
 
-                        //Add dummy atoms for use of internal coordinates
-                        if ((!is2D) && addDuOnLinear)
-                            MolecularUtils.addDummiesOnLinearities(frag);
+        if (cache != null)
+            cache.store(cacheKey,res,allFrags);
 
-                        //Check this fragments for rejection criteria
-                        if (FragmentFilter.keepFragment(frag))
-                        {
-			    //Compare with list of frags to ignore
-			    if (ignoreKnownFrags)
-			    {
-				if (hitIgnorableFragment(frag,ignorableFile,ignorableFormat))
-                                {
-                                    if (repOnScreen >= 1)
-                                        System.out.println("Ignorable fragment.");
-				    continue;
-                                }
-			    }
-                            if (removeDuplicates)
-                            {
-                                //Compare frag with the alreagy generated frags
-                                if (newFragment(frag,outFile))
-                                {
-                                    if (repOnScreen >= 1)
-                                        System.out.println("NEW Fragment added!");
-                                    IAtomContainer ac = frag.toIAtomContainer(outFormat);
-                                    IOtools.writeSDFAppend(outFile, ac, true);
-                                    numTotFrag++;
-                                } else {
-                                    if (repOnScreen >= 1)
-                                        System.out.println("Not a new fragment.");
-                                }
-                            } else
-                            {
-				if (lookForTargets)
-				{
-				    //Compare frag with the library of targets
-				    if (hitTargetFragment(frag,targetFile,targetFormat))
-				    {
-					String hit = frag.getProperty("TARGETHIT").toString();
-					String fragFile = fragCollectingDir+"/"+"hittingTarget_"+hit+".sdf";
-					IAtomContainer ac = frag.toIAtomContainer(outFormat);
-					IOtools.writeSDFAppend(fragFile, ac, true);
-					numTotFrag++;
-				    }
-				} else {
-                                    if (repOnScreen >= 1)
-                                        System.out.println("KEEP-FRAGMENTS MODE: Fragment added to the ouput list");
-                                    IAtomContainer ac = frag.toIAtomContainer(outFormat);
-                                    IOtools.writeSDFAppend(outFile, ac, true);
-                                    numTotFrag++;
-                                }
-			    }
-                        }
-                    } //end loop over fragments
+        return res;
+    }
 
-                    molnum++;
+//-----------------------------------------------------------------------------
 
-                    if (removeDuplicates)
-                           reportMolFragRatio(molnum,numTotFrag);
+    /**
+     * Adds the outcome of the fragmentation of a molecule to the results
+     * of this job: rejected molecules, compatibility matrix, and library of
+     * fragments. Results must be stored in the order of the input.
+     * @param res the outcome of the fragmentation of a molecule
+     */
 
-                } catch (Throwable t) {
-                    System.err.println("\nWARNING! Brutal exit for molecule "+name);
-                    System.err.println(" EXCEPTION: "+t);
-                    t.printStackTrace();
-                }
-            } //end of loop over molecules
-            reader.close();
-        } catch (FileNotFoundException fnf) {
-            System.err.println("File Not Found: " + inFile);
-            System.err.println(fnf.getMessage());
-            System.exit(-1);
-        } catch (Throwable t) {
-            System.err.println("\nERROR in reading the file with IteratorMDLReader. "+t);
-            t.printStackTrace();
-            System.out.println("\nERROR: cannot iterate through MDL file. This "
-                                + "might be becouse the MDL format is prior to "
-                                + "V2000 or because there are bond with "
-                                + "type='any' (type=8 in connectivity matrix). "                                + "Please, try to provide a V2000 format and "
-                                + "convert avoid bond type=8.");
-            System.exit(0);
+    private void storeResult(FragmentationResult res)
+    {
+        String name = res.getName();
+        StageTimes times = res.getStageTimes();
+        if (res.getTimedOutStage() >= 0)
+        {
+            quarantineMol(res);
+            return;
         }
+        numFoundFrag = numFoundFrag + res.getFragments().size();
 
-        if (repOnScreen >= 0)
+        //Rejected molecules
+        long t0 = System.nanoTime();
+        for (int ir=0; ir<res.getRejectedMols().size(); ir++)
         {
-            System.out.println("\n============= Fragmentation DONE =============");
-            System.out.println("Total number of fragmented molecules: "+molnum);
-            System.out.println("Total number of stored fragments:     "+numTotFrag);
-            if (someMolRejected)
-                System.out.println("\nCheck "+numRejected+" rejected molecules in "+checkfile);
-            if (thereAre2D)
-                System.out.println("\nFound "+num2D+" molecules in 2D. Check fragments labeled with '2D'");
+            rejectMol(res.getRejectedMols().get(ir),
+                                           res.getRejectionReasons().get(ir));
         }
+        times.add(StageTimes.WRITING,t0);
 
-        //In case of no fragments generated
-        if (numTotFrag == 0)
+        // Add rules to compatibility matrix
+        for (String[] pair : res.getCompatibilities())
         {
-            System.out.println("\nNO FRAGMENT was generated!\n");
-            System.exit(0);
+            compMat.addTrueEntry(pair[0],pair[1]);
         }
 
-        //Report Compatibility matrix for this fragmentation
-        compMat.writeCPMapFile(compMatFile,classBndOrd);
+        // Report CLASS-BondOrder key
+        Map<String,Integer> molClassBndOrd = res.getClassBondOrders();
+        for (String apClass : molClassBndOrd.keySet())
+        {
+            if (!classBndOrd.keySet().contains(apClass))
+                classBndOrd.put(apClass,molClassBndOrd.get(apClass));
+        }
 
-        //Redirect input file of the next step
-        Parameters.updateStructureFilePointer(outFile);
+        //Report eventual 2D
+        if (res.is2D())
+        {
+            thereAre2D = true;
+            num2D++;
+        }
+
+        //Profile of the cutting rules
+        if (ruleProfile != null && res.getRuleProfile() != null)
+            ruleProfile.merge(res.getRuleProfile());
+
+        //Analysis of the fragments. This is not subject to the time budget:
+        //the results of the molecule are already stored, and the fragments
+        //must be either all or none in the library
+        try {
+            t0 = System.nanoTime();
+            for (GM3DFragment frag : res.getFragments()) 
+            {
+		//Compare with list of frags to ignore
+		if (ignoreKnownFrags)
+		{
+                    boolean ignorable = hitIgnorableFragment(frag);
+                    t0 = times.add(StageTimes.DEDUPLICATION,t0);
+		    if (ignorable)
+                    {
+                        if (repOnScreen >= 1)
+                            System.out.println("Ignorable fragment.");
+			continue;
+                    }
+		}
+                if (removeDuplicates)
+                {
+                    //Compare frag with the alreagy generated frags
+                    boolean isNew = newFragment(frag);
+                    t0 = times.add(StageTimes.DEDUPLICATION,t0);
+                    if (isNew)
+                    {
+                        if (repOnScreen >= 1)
+                            System.out.println("NEW Fragment added!");
+                        IAtomContainer ac = frag.toIAtomContainer(outFormat);
+                        IOtools.writeSDFAppend(outFile, ac, true);
+                        numTotFrag++;
+                        t0 = times.add(StageTimes.WRITING,t0);
+                    } else {
+                        if (repOnScreen >= 1)
+                            System.out.println("Not a new fragment.");
+                    }
+                } else
+                {
+		    if (lookForTargets)
+		    {
+			//Compare frag with the library of targets
+                        boolean isTarget = hitTargetFragment(frag);
+                        t0 = times.add(StageTimes.DEDUPLICATION,t0);
+			if (isTarget)
+			{
+			    String hit = frag.getProperty("TARGETHIT").toString();
+			    String fragFile = fragCollectingDir+"/"+"hittingTarget_"+hit+".sdf";
+			    IAtomContainer ac = frag.toIAtomContainer(outFormat);
+			    IOtools.openSDFWriter(fragFile,true);
+			    if (!storedFiles.contains(fragFile))
+				storedFiles.add(fragFile);
+			    IOtools.writeSDFAppend(fragFile, ac, true);
+			    numTotFrag++;
+                            t0 = times.add(StageTimes.WRITING,t0);
+			}
+		    } else {
+                        if (repOnScreen >= 1)
+                            System.out.println("KEEP-FRAGMENTS MODE: Fragment added to the ouput list");
+                        IAtomContainer ac = frag.toIAtomContainer(outFormat);
+                        IOtools.writeSDFAppend(outFile, ac, true);
+                        numTotFrag++;
+                        t0 = times.add(StageTimes.WRITING,t0);
+                    }
+		}
+            } //end loop over fragments
+
+            //Problems in isolation or analysis of the fragments
+            if (res.getFailure() != null)
+                throw res.getFailure();
+
+            //Rejected molecules are not counted
+            if (!res.isCompleted())
+                return;
+
+            molnum++;
+
+            if (removeDuplicates)
+                   reportMolFragRatio(molnum,numTotFrag);
+
+        } catch (Throwable t) {
+            System.err.println("\nWARNING! Brutal exit for molecule "+name);
+            System.err.println(" EXCEPTION: "+t);
+            t.printStackTrace();
+        }
     }
 
 //-----------------------------------------------------------------------------
@@ -722,31 +1547,44 @@ public class Fragmenter
 //-----------------------------------------------------------------------------
 
     /**
-     * Creates the list of pairs (rulename;SMARTSquery) from the list of 
-     * cutting rules. The output list includes the whole cutting rule
-     * [<atm0>]-[<atm1>], the first query [<atm0>], and the 
-     * second query [<atm1>]
+     * Copies the outcome of the fragmentation with the previous cutting
+     * rules into the present cache, if the molecule is not affected by the
+     * changes in the rules, i.e., if it did not match any removed or
+     * modified rule and does not match any added or modified rule.
+     * @param mol the molecule (not modified)
+     * @param cacheKey the key of the molecule
+     * @param queries the parsed SMARTS queries of the cutting rules
+     * @return <code>true</code> if the outcome has been copied
      */
-    private Map<String,String> getAllSMARTSQueries()
+
+    private boolean reusePreviousResult(IAtomContainer mol, String cacheKey,
+                                                       SMARTSRegistry queries)
     {
-        Map<String,String> smarts = new HashMap<String,String>();
+        List<String> oldMatched = previousCache.getMatchedRules(cacheKey);
+        if (oldMatched == null || ruleDiff.affects(oldMatched))
+            return false;
 
-        for (int ir : sortedCutRules.keySet())
+        ElementFingerprint fp = new ElementFingerprint(mol);
+        Set<String> refs = new HashSet<String>();
+        for (String ruleName : ruleDiff.getRulesToMatch())
         {
-            String ruleName = sortedCutRules.get(ir);
-            GM3DCuttingRule rule = cutRules.get(ruleName);
-
-            // add the whole cutting rule to the map
-            smarts.put(ruleName,rule.getWholeSMARTSRule());
-
-            // add the first atom query of this rule
-            smarts.put(rule.getSubClassName0(),rule.getSMARTSSubClass0());
-
-            // add the second atom query of this rule
-            smarts.put(rule.getSubClassName1(),rule.getSMARTSSubClass1());
+            if (cutRules.get(ruleName).canMatch(fp))
+                refs.add(ruleName);
         }
-
-        return smarts;
+        if (!refs.isEmpty())
+        {
+            // The perception is kept for the fragmentation, if needed
+            ManySMARTSQuery msq = new ManySMARTSQuery(mol,queries,refs,
+                                            MoleculePerception.getFor(mol));
+            if (msq.hasProblems())
+                return false;
+            for (String ruleName : refs)
+            {
+                if (msq.getNumMatchesOfQuery(ruleName) > 0)
+                    return false;
+            }
+        }
+        return cache.copyEntry(previousCache,cacheKey);
     }
 
 //-----------------------------------------------------------------------------
@@ -754,25 +1592,112 @@ public class Fragmenter
     /**
      * Identification of the bonds matching a list of SMARTS rules
      * @param mol chemical system to be analyzed
+     * @param queries the parsed SMARTS queries of the cutting rules
+     * @param perception the ring perception of the molecule
+     * @param res the collector of the outcome of the fragmentation
      * @return list or couple of atoms (as integer idexes) per each rule name
      */
 
-    private Map<String, ArrayList<GM3DTargetBond>> getMatchingBondsAllInOne(IAtomContainer mol)
+    private Map<String, ArrayList<GM3DTargetBond>> getMatchingBondsAllInOne(IAtomContainer mol, SMARTSRegistry queries, MoleculePerception perception, FragmentationResult res)
     {
 	Map<String, ArrayList<GM3DTargetBond>> matchingBonds = new HashMap<String, ArrayList<GM3DTargetBond>>();
 
-        // Get all SMARTS queries
-        Map<String,String> smarts = getAllSMARTSQueries();
+        // Profile of the cutting rules on this molecule
+        RuleProfile prof = null;
+        if (ruleProfile != null)
+        {
+            prof = new RuleProfile();
+            res.setRuleProfile(prof);
+        }
 
-        // Get all the matches
-        ManySMARTSQuery msq = new ManySMARTSQuery(mol,smarts);
+        // Skip the rules whose element requirements are not satisfied
+        ElementFingerprint fp = new ElementFingerprint(mol);
+        Set<String> refs = new HashSet<String>();
+        for (GM3DCuttingRule rule : cutRules.values())
+        {
+            if (!rule.canMatch(fp))
+            {
+                if (prof != null)
+                    prof.add(rule.getName(),RuleProfile.SKIPPED,1);
+                continue;
+            }
+            if (prof != null)
+                prof.add(rule.getName(),RuleProfile.TESTED,1);
+            refs.add(rule.getName());
+            refs.add(rule.getSubClassName0());
+            refs.add(rule.getSubClassName1());
+        }
+        if (repOnScreen >= 2)
+            System.out.println("Rules that can match the molecule: "
+                              + refs.size() + " queries out of " + queries.size());
+        if (refs.isEmpty())
+        {
+            // No rule can match: the molecule is rejected without any search
+            res.setMatchedRules(new ArrayList<String>());
+            return matchingBonds;
+        }
+
+        // Rings and aromaticity (failures are reported by the query)
+        StageTimes times = res.getStageTimes();
+        long t0 = System.nanoTime();
+        try {
+            perception.perceive(mol);
+        } catch (CDKException cdkEx) {
+            // reported by ManySMARTSQuery
+        }
+        t0 = times.add(StageTimes.PERCEPTION,t0);
+        TimeBudget budget = res.getTimeBudget();
+        budget.check(StageTimes.PERCEPTION);
+
+        // Get all the matches of the already parsed SMARTS queries
+        ManySMARTSQuery msq = new ManySMARTSQuery(mol,queries,refs,perception);
+        t0 = times.add(StageTimes.MATCHING,t0);
+        budget.check(StageTimes.MATCHING);
+        if (prof != null)
+        {
+            for (String ruleName : sortedCutRules.values())
+            {
+                if (!refs.contains(ruleName))
+                    continue;
+                GM3DCuttingRule rule = cutRules.get(ruleName);
+                String sub0 = rule.getSubClassName0();
+                String sub1 = rule.getSubClassName1();
+                prof.add(ruleName,RuleProfile.MATCHINGTIME,
+                                              msq.getMatchingTime(ruleName));
+                prof.add(ruleName,RuleProfile.SUBCLASS0TIME,
+                                                  msq.getMatchingTime(sub0));
+                if (!sub1.equals(sub0))
+                    prof.add(ruleName,RuleProfile.SUBCLASS1TIME,
+                                                  msq.getMatchingTime(sub1));
+                int num = msq.getNumMatchesOfQuery(ruleName);
+                prof.add(ruleName,RuleProfile.MATCHES,num);
+                if (num > 0)
+                    prof.add(ruleName,RuleProfile.MOLSMATCHED,1);
+            }
+        }
         if (msq.hasProblems())
         {
             String cause = msq.getMessage();
-	    errMess = cause;
+	    res.setErrorMessage(cause);
 	    return matchingBonds;
         }
 
+        // Record the matched rules to allow incremental re-fragmentation
+        List<String> matchedRules = new ArrayList<String>();
+        for (String ruleName : sortedCutRules.values())
+        {
+            if (refs.contains(ruleName)
+                && msq.getNumMatchesOfQuery(ruleName) > 0)
+            {
+                matchedRules.add(ruleName);
+            }
+        }
+        res.setMatchedRules(matchedRules);
+
+        // Simplified SMARTS are matched only if needed to resolve ambiguities
+        SimplerSMARTSMatches simplerMatches = new SimplerSMARTSMatches(mol,
+                                                           queries,perception);
+
         // Loop over cutting rules tryingto match bonds
         for (int ir : sortedCutRules.keySet())
         {
@@ -787,7 +1712,17 @@ public class Fragmenter
                 System.out.println("Rule '"+ruleName+"'\n - Mathces: " + msq.getNumMatchesOfQuery(ruleName));
 
             // Apply further options of cutting rule
-            List<List<Integer>> purgedPairs = filterListOfMatches(msq.getMatchesOfSMARTS(ruleName),rule,mol);
+            t0 = System.nanoTime();
+            List<List<Integer>> purgedPairs = filterListOfMatches(msq.getMatchesOfSMARTS(ruleName),rule,mol,perception);
+            long t1 = times.add(StageTimes.RINGOPTIONS,t0);
+            if (prof != null)
+            {
+                prof.add(ruleName,RuleProfile.OPTIONSTIME,t1 - t0);
+                prof.add(ruleName,RuleProfile.MATCHESAFTEROPTIONS,
+                                                         purgedPairs.size());
+            }
+            t0 = t1;
+            budget.check(StageTimes.RINGOPTIONS);
             if (repOnScreen >= 1)
                 System.out.println(" - Mathces (post-filtering): " + purgedPairs.size());
 
@@ -800,25 +1735,30 @@ public class Fragmenter
             ArrayList<GM3DTargetBond> ruledBonds = new ArrayList<GM3DTargetBond>();
             for (int i = 0; i < purgedPairs.size(); i++)
             {
-                Map<Integer,List<Boolean>> subClassMembership = defineSubClasses(
+                budget.check(StageTimes.SUBCLASS);
+                int subClassMembership = defineSubClasses(
                                                 purgedPairs.get(i).get(0),
                                                 purgedPairs.get(i).get(1),
                                                 msq,
                                                 rule);
 		if (repOnScreen >= 2)
-		    System.out.println(" - Evaluation of SubClass: "+subClassMembership);
+		    System.out.println(" - Evaluation of SubClass: "+membershipToString(subClassMembership));
 
                 // Finally, if the bond matches the rule unambiguously, store it
                 GM3DTargetBond tb = new GM3DTargetBond();
-                if (evaluateSubClass(rule,mol,purgedPairs.get(i),subClassMembership,tb))
+                if (evaluateSubClass(rule,mol,simplerMatches,purgedPairs.get(i),subClassMembership,tb,res))
                 {
                     // write CLASS and SubCLASS in atoms' properties (as preCLASS)
                     storePreClassOnAtoms(mol,tb);
                     // store target bond in the output list
                     ruledBonds.add(tb);
+                } else if (prof != null) {
+                    prof.add(ruleName,RuleProfile.REJECTEDBYSUBCLASS,1);
                 }
             }
 
+            times.add(StageTimes.SUBCLASS,t0);
+
             if (!ruledBonds.isEmpty())
                 matchingBonds.put(ruleName,ruledBonds);
         }
@@ -831,7 +1771,7 @@ public class Fragmenter
     /**
      * Apply cutting rule options
      */
-    private List<List<Integer>> filterListOfMatches(List<List<Integer>> inList, GM3DCuttingRule rule, IAtomContainer mol)
+    private List<List<Integer>> filterListOfMatches(List<List<Integer>> inList, GM3DCuttingRule rule, IAtomContainer mol, MoleculePerception perception)
     {
         // temporary storage
         List<List<Integer>> workList = new ArrayList<List<Integer>>();
@@ -896,7 +1836,8 @@ public class Fragmenter
 	                                        mol.getAtom(pair.get(0)),
 	                                        mol.getAtom(pair.get(1)),
 						mol,
-						sizeLim + numDu);
+						sizeLim + numDu,
+						perception);
                         if ((ringSize == -1) || (ringSize > sizeLim))
                             purgedList.add(pair);
                     }
@@ -1081,13 +2022,16 @@ public class Fragmenter
      * @param mol molecular system containing the matching atoms 
      * @param rule name of the cutting rule for which the 
      * SubClass must be defined 
+     * @param simplerMatches the matches of the simplified SMARTS on the
+     * molecule
      * @param atimid couple of integer indexes identifying the atoms
      * matching the cutting rule 
+     * @param res the collector of the outcome of the fragmentation
      * @return <code>true</code> if the definition of the SubClass
      * succeeds
      */
 
-    private boolean evaluateSubClass(GM3DCuttingRule rule, IAtomContainer mol, List<Integer> atmid, Map<Integer,List<Boolean>> subClassMembership, GM3DTargetBond tb)
+    private boolean evaluateSubClass(GM3DCuttingRule rule, IAtomContainer mol, SimplerSMARTSMatches simplerMatches, List<Integer> atmid, int subClassMembership, GM3DTargetBond tb, FragmentationResult res)
     {
         //We need to take into account a list of possibilities 
         //{consider tha boolean vector [True/False for subrule0,True/False for subrule1]}
@@ -1131,18 +2075,8 @@ public class Fragmenter
         //'class2' referts to the class of atom of which the index is in atmid.get(1)
         String class1 = "";
 
-        // Check for case 'aa' = [0,0][0,0]
-        boolean allFalse = true;
-        for (Integer i : subClassMembership.keySet())
-        {
-            for (Boolean entry : subClassMembership.get(i))
-            {
-                if (entry)
-                    allFalse = false;
-            }
-        }
         // run away in case of no possibility to define subclasses (case 'aa' = [0,0][0,0])
-        if (allFalse)
+        if (subClassMembership == 0)
         {
             if (repOnScreen >= 3)
                 printInfosDEBUG(subClassMembership);
@@ -1154,72 +2088,72 @@ public class Fragmenter
         // first deal with any-atom matching rules (cases like da,db,dc,dd,ad,bd,cd)
         // 
         if (any.contains(smirule0)) {
-            if (subClassMembership.get(1).get(1) && !subClassMembership.get(1).get(0)) {
+            if (isMember(subClassMembership,1,1) && !isMember(subClassMembership,1,0)) {
                 class0 = sbcl0;
                 class1 = sbcl1;
                 if (repOnScreen >= 3)
                     printInfosDEBUG(subClassMembership);
-            } else if (!subClassMembership.get(1).get(1) && subClassMembership.get(1).get(0)) {
+            } else if (!isMember(subClassMembership,1,1) && isMember(subClassMembership,1,0)) {
                 class0 = sbcl1;
                 class1 = sbcl0;
                 if (repOnScreen >= 3)
                     printInfosDEBUG(subClassMembership);
             } else {
                 if (repOnScreen >= 3)
-                    System.out.println("GEN not found - "+subClassMembership);
+                    System.out.println("GEN not found - "+membershipToString(subClassMembership));
                 ignore = true;
             }
         } else if (any.contains(smirule1)) {
-            if (subClassMembership.get(0).get(0) && !subClassMembership.get(0).get(1)) {
+            if (isMember(subClassMembership,0,0) && !isMember(subClassMembership,0,1)) {
                 class0 = sbcl0;
                 class1 = sbcl1;
                 if (repOnScreen >= 3)
                     printInfosDEBUG(subClassMembership);
-            } else if (!subClassMembership.get(0).get(0) && subClassMembership.get(0).get(1)) {
+            } else if (!isMember(subClassMembership,0,0) && isMember(subClassMembership,0,1)) {
                 class0 = sbcl1;
                 class1 = sbcl0;
                 if (repOnScreen >= 3)
                     printInfosDEBUG(subClassMembership);
             } else {
                 if (repOnScreen >= 3)
-                    System.out.println("GEN not found - "+subClassMembership);
+                    System.out.println("GEN not found - "+membershipToString(subClassMembership));
                 ignore = true;
             }
         } else {
         // Deal with other cases not containing any-atom matching rules
-            if ((subClassMembership.get(0).get(0) && !subClassMembership.get(1).get(0)) && 
-                (subClassMembership.get(1).get(1) && !subClassMembership.get(0).get(1))) {
+            if ((isMember(subClassMembership,0,0) && !isMember(subClassMembership,1,0)) && 
+                (isMember(subClassMembership,1,1) && !isMember(subClassMembership,0,1))) {
                 class0 = sbcl0;
                 class1 = sbcl1;
                 if (repOnScreen >= 3)
                     printInfosDEBUG(subClassMembership);
-            } else if ((subClassMembership.get(0).get(1) && !subClassMembership.get(1).get(1)) && 
-                (subClassMembership.get(1).get(0) && !subClassMembership.get(0).get(0))) {
+            } else if ((isMember(subClassMembership,0,1) && !isMember(subClassMembership,1,1)) && 
+                (isMember(subClassMembership,1,0) && !isMember(subClassMembership,0,0))) {
                 class0 = sbcl1;
                 class1 = sbcl0;
                 if (repOnScreen >= 3)
                     printInfosDEBUG(subClassMembership);
-            } else if (!subClassMembership.get(0).get(0) && !subClassMembership.get(1).get(0)) {
+            } else if (!isMember(subClassMembership,0,0) && !isMember(subClassMembership,1,0)) {
         //NB: Here we use the subclass from only atom '1' to decide upon subslasses
-                if (subClassMembership.get(1).get(1) && !subClassMembership.get(0).get(1)) {
+                if (isMember(subClassMembership,1,1) && !isMember(subClassMembership,0,1)) {
                     class0 = sbcl0;
                     class1 = sbcl1;
                     if (repOnScreen >= 3)
                         printInfosDEBUG(subClassMembership);
-                } else if (subClassMembership.get(0).get(1) && !subClassMembership.get(1).get(1)) {
+                } else if (isMember(subClassMembership,0,1) && !isMember(subClassMembership,1,1)) {
                     class0 = sbcl1;
                     class1 = sbcl0;
                     if (repOnScreen >= 3)
                         printInfosDEBUG(subClassMembership);
                 }
-            } else if (!subClassMembership.get(0).get(1) && !subClassMembership.get(1).get(1)) {
+            } else if (!isMember(subClassMembership,0,1) && !isMember(subClassMembership,1,1)) {
         //NB: Here we use the subclass from only atom '0' to decide upon subslasses
-                if (subClassMembership.get(1).get(0) && !subClassMembership.get(0).get(0)) {
+                if (isMember(subClassMembership,1,0) && !isMember(subClassMembership,0,0)) {
                     class0 = sbcl1;
                     class1 = sbcl0;
                     if (repOnScreen >= 3)
                         printInfosDEBUG(subClassMembership);
-                } else if (subClassMembership.get(0).get(0) && !subClassMembership.get(1).get(0)) {
+                } else if (isMember(subClassMembership,0,0) && !isMember(subClassMembership,1,0)) {
                     class0 = sbcl0;
                     class1 = sbcl1;
                     if (repOnScreen >= 3)
@@ -1267,7 +2201,7 @@ public class Fragmenter
 
                 //TODO check fo $(...) and !$(...)
                 
-                int res0 = matchSimplifiedSMARTS(mol,atmid.get(0),atmid.get(1),smirule0);
+                int res0 = matchSimplifiedSMARTS(simplerMatches,atmid.get(0),atmid.get(1),smirule0,rule.getSimplerSMARTSSubClass0(),res);
                 if (res0 != -1)
                 {
 //System.out.println("matchSimplifiedSMARTS-0: "+res0);
@@ -1283,7 +2217,7 @@ public class Fragmenter
                         class1 = sbcl0;
                     } 
                 } else {
-                    int res1 = matchSimplifiedSMARTS(mol,atmid.get(0),atmid.get(1),smirule1);
+                    int res1 = matchSimplifiedSMARTS(simplerMatches,atmid.get(0),atmid.get(1),smirule1,rule.getSimplerSMARTSSubClass1(),res);
 //System.out.println("matchSimplifiedSMARTS-1: "+res1);
                     if (res1 != -1)
                     {
@@ -1312,12 +2246,12 @@ public class Fragmenter
                 }
 
                 int atmMatched = -1;
-                for (Integer i : subClassMembership.keySet())
+                for (int i=0; i<2; i++)
                 {
                     int numTrue = 0;
-                    for (Boolean entry : subClassMembership.get(i))
+                    for (int j=0; j<2; j++)
                     {
-                        if (entry)
+                        if (isMember(subClassMembership,i,j))
                             numTrue++;
                     }
 
@@ -1331,13 +2265,13 @@ public class Fragmenter
 
                 String recoveredClassOfMatched = "";
                 String recoveredClassOfNotMatched = "";
-                if (subClassMembership.get(atmMatched).get(1) && !subClassMembership.get(atmMatched).get(0)) 
+                if (isMember(subClassMembership,atmMatched,1) && !isMember(subClassMembership,atmMatched,0)) 
                 { 
                     // for 'atmMatched' we have [F,T]
                     recoveredClassOfMatched = sbcl1;
                     recoveredClassOfNotMatched = sbcl0;
   
-                } else if (!subClassMembership.get(atmMatched).get(1) && subClassMembership.get(atmMatched).get(0)) 
+                } else if (!isMember(subClassMembership,atmMatched,1) && isMember(subClassMembership,atmMatched,0)) 
                 {
                     // for 'atmMatched' we have [T,F]
                     recoveredClassOfMatched = sbcl0;
@@ -1445,91 +2379,53 @@ IOtools.pause();
 //-----------------------------------------------------------------------------
 
     /**
-     * Create a 2x2 matrix-like map containing sublass membership of the two 
-     * atoms given
+     * Create a 2x2 matrix-like set of bits containing sublass membership of
+     * the two atoms given. The bit for subclass <code>i</code> and atom
+     * <code>j</code> (0 for <code>atm0</code>, 1 for <code>atm1</code>) is
+     * tested by {@link #isMember(int,int,int)}.
+     */
+    private int defineSubClasses(int atm0, int atm1, ManySMARTSQuery msq, GM3DCuttingRule rule)
+    {
+        BitSet atmsInSubClass0 = msq.getAtomsInMatches(rule.getSubClassName0());
+        BitSet atmsInSubClass1 = msq.getAtomsInMatches(rule.getSubClassName1());
+
+        int membership = 0;
+        if (atmsInSubClass0.get(atm0))
+            membership |= 1;
+        if (atmsInSubClass0.get(atm1))
+            membership |= 2;
+        if (atmsInSubClass1.get(atm0))
+            membership |= 4;
+        if (atmsInSubClass1.get(atm1))
+            membership |= 8;
+
+        return membership;
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Read the subclass membership matrix
+     * @param membership the matrix as given by <code>defineSubClasses</code>
+     * @param subClass the index of the subclass (0 or 1)
+     * @param atm the index of the atom in the pair (0 or 1)
+     * @return <code>true</code> if the atom belongs to the subclass
      */
-    private Map<Integer,List<Boolean>> defineSubClasses(int atm0, int atm1, ManySMARTSQuery msq, GM3DCuttingRule rule)
+    private static boolean isMember(int membership, int subClass, int atm)
     {
-        Map<Integer,List<Boolean>> subclassesVSatms = new HashMap<Integer,List<Boolean>>();
-
-        String subclass0Name = rule.getSubClassName0(); 
-        String subclass1Name = rule.getSubClassName1();
-
-        boolean found0 = msq.hasMatches(subclass0Name);
-        int numMatches0 = msq.getNumMatchesOfQuery(subclass0Name);
-
-        boolean found1 = msq.hasMatches(subclass1Name);
-        int numMatches1 = msq.getNumMatchesOfQuery(subclass1Name);
-
-        List<List<Integer>> listOfCouples0 = new ArrayList<List<Integer>>();
-        List<List<Integer>> listOfCouples1 = new ArrayList<List<Integer>>();
-
-        // Which atom matches subclass 0?
-        List<Boolean> subclass0 = new ArrayList<Boolean>(Arrays.asList(false,false));
-        if (found0)
-        {
-            listOfCouples0 = msq.getMatchesOfSMARTS(subclass0Name);
-            boolean doneAtm0 = false;
-            boolean doneAtm1 = false;
-            // for each group of atoms matching the SMARTS query 
-            for (int im = 0; im < numMatches0; im++)
-            {
-                List<Integer> sublist = listOfCouples0.get(im);
-                // There should be only one atom per each group but this is more general
-                // For each index in the group
-                for (int id : sublist)
-                {
-                    if (id == atm0)
-                    {
-                        subclass0.set(0,true);
-                        doneAtm0 = true;
-                    }
-                    if (id == atm1)
-                    {
-                        subclass0.set(1,true);
-                        doneAtm1 = true;
-                    }
-                }
-                // just to speed up
-                if (doneAtm0 & doneAtm1)
-                    break;
-            }
-        }
-        subclassesVSatms.put(0,subclass0);
+        return (membership & (1 << (2*subClass + atm))) != 0;
+    }
 
-        // Which atom matches subclass 1?
-        List<Boolean> subclass1 = new ArrayList<Boolean>(Arrays.asList(false,false));
-        if (found1)
-        {
-            listOfCouples1 = msq.getMatchesOfSMARTS(subclass1Name);
-            boolean doneAtm0 = false;
-            boolean doneAtm1 = false;
-            // For each group of indeces
-            for (int im = 0; im < numMatches1; im++)
-            {
-                List<Integer> sublist = listOfCouples1.get(im);
+//-----------------------------------------------------------------------------
 
-                // For each index in the group
-                for (int id : sublist)
-                {
-                    if (id == atm0)
-                    {
-                        subclass1.set(0,true);
-                        doneAtm0 = true;
-                    }
-                    if (id == atm1)
-                    {
-                        subclass1.set(1,true);
-                        doneAtm1 = true;
-                    }
-                }
-                if (doneAtm0 & doneAtm1)
-                    break;
-            }
-        }
-        subclassesVSatms.put(1,subclass1);
-        
-        return subclassesVSatms;
+    /**
+     * Format the subclass membership matrix as a map of lists of booleans
+     */
+    private static String membershipToString(int membership)
+    {
+        return "{0=[" + isMember(membership,0,0) + ", " + isMember(membership,0,1)
+               + "], 1=[" + isMember(membership,1,0) + ", " + isMember(membership,1,1)
+               + "]}";
     }
 
 //-----------------------------------------------------------------------------
@@ -1668,60 +2564,87 @@ IOtools.pause();
     }
 
 */
+//-----------------------------------------------------------------------------
+
+    /**
+     * Matches of the simplified SMARTS queries on one molecule. The queries
+     * are parsed when the cutting rules are loaded. Each one is matched only
+     * when it is needed for the first time, and the result is re-used for 
+     * all the ambiguous bonds of the molecule.
+     */
+    private static class SimplerSMARTSMatches
+    {
+        private IAtomContainer mol;
+        private SMARTSRegistry queries;
+        private MoleculePerception perception;
+        private Map<String,ManySMARTSQuery> matches = 
+                                        new HashMap<String,ManySMARTSQuery>();
+
+        SimplerSMARTSMatches(IAtomContainer mol, SMARTSRegistry queries,
+                                                 MoleculePerception perception)
+        {
+            this.mol = mol;
+            this.queries = queries;
+            this.perception = perception;
+        }
+
+        IAtomContainer getMolecule()
+        {
+            return mol;
+        }
+
+        ManySMARTSQuery getMatches(String simpler)
+        {
+            String ref = GM3DSMARTS.getQueryRef(simpler);
+            ManySMARTSQuery msq = matches.get(ref);
+            if (msq == null)
+            {
+                msq = new ManySMARTSQuery(mol,queries,
+                                       Collections.singleton(ref),perception);
+                matches.put(ref,msq);
+            }
+            return msq;
+        }
+    }
+
 //-----------------------------------------------------------------------------
 
     /**
      * Try to define subClass membership by recursive simplification of the
      * SMARTS string
-     * @param mol the molecule
+     * @param simplerMatches the matches of the simplified SMARTS on the
+     * molecule
      * @param atm0 atom in first position in pair of matches
      * @param atm1 atom in second position in pair of matches
      * @param smarts SMARTS string to be simplified
+     * @param ladder the simplified versions of <code>smarts</code>
+     * @param fragRes the collector of the outcome of the fragmentation
      * @return the index of the atom matched  or -1 in case of no match
      */
 
-    private int matchSimplifiedSMARTS(IAtomContainer mol, int atm0, int atm1, String smarts)
+    private int matchSimplifiedSMARTS(SimplerSMARTSMatches simplerMatches, int atm0, int atm1, String smarts, List<String> ladder, FragmentationResult fragRes)
     {
-
-        GM3DSMARTS s = new GM3DSMARTS(smarts);
         if (repOnScreen >= 2)        
         System.out.println("Trying to semplify GM3DSMARTS: "+smarts.toString());
 
         int res = -1;
-        Map<String,String> simplerSmarts = new HashMap<String,String>();
-        for (int i=0; i<s.getMaxNumSemplification(); i++)
+        for (String simpler : ladder)
         {
-            String simpler = s.getSimplerSMARTS();
-            simplerSmarts.put(Integer.toString(i),simpler);
-        }
-
-        // Get all the matches
-        ManySMARTSQuery msq = new ManySMARTSQuery(mol,simplerSmarts);
-
-        if (msq.hasProblems())
-        {
-            String cause = msq.getMessage();
-            rejectMol(mol,cause);
-        }
-
-        for (int i=0; i<s.getMaxNumSemplification(); i++)
-        {
-            // Get matches for the simplitied queri corresponding to 'i'
-            String ref = Integer.toString(i);
+            // Get matches for the simplitied query
+            ManySMARTSQuery msq = simplerMatches.getMatches(simpler);
+            if (msq.hasProblems())
+            {
+                String cause = msq.getMessage();
+                fragRes.addRejection(simplerMatches.getMolecule(),cause);
+                break;
+            }
+            String ref = GM3DSMARTS.getQueryRef(simpler);
             if(!msq.hasMatches(ref))
                 continue;
 
-            boolean matches0 = false;
-            boolean matches1 = false;
-            List<List<Integer>> listOfMatches = msq.getMatchesOfSMARTS(ref);
-            for (int im = 0; im < msq.getNumMatchesOfQuery(ref); im++)
-            {
-                List<Integer> sublist = listOfMatches.get(im);
-                if (sublist.contains(atm0))
-                    matches0 = true;
-                if (sublist.contains(atm1))
-                    matches1 = true;
-            }
+            BitSet atmsInMatches = msq.getAtomsInMatches(ref);
+            boolean matches0 = atmsInMatches.get(atm0);
+            boolean matches1 = atmsInMatches.get(atm1);
 
             if (matches0)
             {
@@ -1791,19 +2714,9 @@ IOtools.pause();
      * @param matrix coordinates used to identify the subCLASS
      * @return the number of true entries 
      */
-    private int howManyTrueEntries(Map<Integer,List<Boolean>> matrix)
+    private int howManyTrueEntries(int matrix)
     {
-        int numTrue = 0;
-        for (Integer i : matrix.keySet())
-        {
-            for (Boolean entry : matrix.get(i))
-            {
-                if (entry)
-                    numTrue++;
-            }
-        }
-
-        return numTrue;
+        return Integer.bitCount(matrix);
     }
 
 //-----------------------------------------------------------------------------
@@ -1924,6 +2837,11 @@ System.out.println("numFalse: "+numFalse);
      * a chemical system. If a portion of the system is 
      * completely disconnected to the rest of the 
      * chemical system, it becomes a new fragment. 
+     * The connected components are labelled in a single pass over the
+     * bonds (union-find on atom indexes) and each fragment is built
+     * directly from its atoms, bonds, lone pairs and single electrons.
+     * Atoms are not cloned, so their properties (i.e., attachment points)
+     * are carried over to the fragments.
      * @param mol atom container to analyse looking from
      *  disconnected fragments
      * @return the Set containing all the fragments as 
@@ -1932,117 +2850,86 @@ System.out.println("numFalse: "+numFalse);
 
     private AtomContainerSet isolateFrags(IAtomContainer mol)
     {
-        AtomContainerSet frags = new AtomContainerSet();
-        int num = 0;
-        for (IAtom a : mol.atoms()) 
+        int numAtms = mol.getAtomCount();
+        Map<IAtom,Integer> atmIds = new HashMap<IAtom,Integer>();
+        for (int i = 0; i < numAtms; i++)
+            atmIds.put(mol.getAtom(i),i);
+
+        // Label connected components
+        int[] parent = new int[numAtms];
+        for (int i = 0; i < numAtms; i++)
+            parent[i] = i;
+        for (IBond bnd : mol.bonds())
         {
-            num++;
-
-            if (repOnScreen >= 3)
-                System.out.println("Isolating fragments - Attempt "+num);
-
-            if (!a.getFlag(0)) {
-                try {
-                    // Clone the molecule to generate a new fragment
-                    IAtomContainer frag = (IAtomContainer) mol.clone();
-
-                    // As an oil drop, we will identify the fragment by esploring
-                    // the still connected neighbourhood of a firstly picked atom.
-                    // This atom is the root of the current exploration
-                    IAtom af = frag.getAtom(mol.getAtomNumber(a));
-                    af.setFlag(10,true);
-
-                    // Debuging
-                    if (repOnScreen >= 3) 
-                    {
-                        System.out.println(" DEBUG - FRAG before exploring the nighbouthood of atoms");
-                        fragDEBUG(frag);
-                    }
-
-                    // Set label by exploring the neighbour atoms 
-                    exploreNeighbour(af,frag,10);
-
-                    // Debuging After
-                    if (repOnScreen >= 3) 
-                    { 
-                        System.out.println(" DEBUG - FRAG after exploring the nighbouthood of atoms");
-                        fragDEBUG(frag);
-                    }
-
-                    // Check for possible incompatibilities
-                    if (mol.getAtomCount() != frag.getAtomCount()) 
-                    {
-                        System.out.println("ERROR! Unexpected mismatch between MOL and FRAG. Please send this error to the author.");
-                        System.exit(0);
-                    }
-
-                    // Transfer info on fragment membership to mol
-                    for (int i = 0; i < mol.getAtomCount(); i++) 
-                    {
-                        if (!mol.getAtom(i).getFlag(0))
-                            mol.getAtom(i).setFlag(0,frag.getAtom(i).getFlag(10));
-                    }
-
-/*
-System.out.println("BEFORE \nbonds: "+frag.getBondCount()+
-                          "\natoms: "+frag.getAtomCount()+
-                          "\nLP : "+frag.getLonePairCount()+
-                          "\nEC : "+frag.getElectronContainerCount()+
-                          "\nSEC: "+frag.getSingleElectronCount());
-*/
-                    // Remove all atoms and related objecte that do NOT belong to the fragment
-                    boolean goon = true;
-                    while (goon) 
-                    {
-                        for (IAtom delAtm : frag.atoms()) 
-                        {
-                            if (!delAtm.getFlag(10)) 
-                            {
-                                //bonds
-                                for (IBond delBond : frag.getConnectedBondsList(delAtm))
-                                    frag.removeBond(delBond);
-                                //electroncontainers
-                                for (IElectronContainer  delEC : frag.getConnectedElectronContainersList(delAtm))
-                                    frag.removeElectronContainer(delEC);
-                                //Lone Pairs
-                                for (ILonePair delLP : frag.getConnectedLonePairsList(delAtm))
-                                    frag.removeLonePair(delLP);
-                                //SingleElectronContainers
-                                for (ISingleElectron delSE : frag.getConnectedSingleElectronsList(delAtm))
-                                    frag.removeSingleElectron(delSE);
-                                frag.removeAtom(delAtm);
-                            }
-                        }
-                        if (!MolecularUtils.containsFalseFlag(frag,10))
-                            goon = false;
-                    }
-/*
-System.out.println("AFTER \nbonds: "+frag.getBondCount()+
-                          "\natoms: "+frag.getAtomCount()+
-                          "\nLP : "+frag.getLonePairCount()+
-                          "\nEC : "+frag.getElectronContainerCount()+
-                          "\nSEC: "+frag.getSingleElectronCount()); 
-*/
-
-                    // Store fragment
-                    frags.addAtomContainer(frag);
+            int root = findRoot(parent,atmIds.get(bnd.getAtom(0)));
+            for (int j = 1; j < bnd.getAtomCount(); j++)
+            {
+                int other = findRoot(parent,atmIds.get(bnd.getAtom(j)));
+                if (other != root)
+                    parent[other] = root;
+            }
+        }
 
-                    if (repOnScreen >= 3) 
-                    {
-                        System.out.println("\n NEW FRAGMET counts "+frag.getAtomCount()+" atoms and Bonds: "+frag.getBondCount());
-                        fragDEBUG(frag);
-                    }
-                } catch (Throwable t) {
-                    System.err.println("CLONING molecule failed! "+t);
-                    System.exit(0);
-                }
+        // Create one container per component, in order of first atom
+        AtomContainerSet frags = new AtomContainerSet();
+        Map<Integer,IAtomContainer> fragOfRoot = new HashMap<Integer,IAtomContainer>();
+        IAtomContainer[] fragOfAtm = new IAtomContainer[numAtms];
+        for (int i = 0; i < numAtms; i++)
+        {
+            int root = findRoot(parent,i);
+            IAtomContainer frag = fragOfRoot.get(root);
+            if (frag == null)
+            {
+                frag = new AtomContainer();
+                frag.setProperties(mol.getProperties());
+                fragOfRoot.put(root,frag);
+                frags.addAtomContainer(frag);
             }
+            frag.addAtom(mol.getAtom(i));
+            fragOfAtm[i] = frag;
         }
+
+        // Distribute bonds and other electron containers
+        for (IBond bnd : mol.bonds())
+            fragOfAtm[atmIds.get(bnd.getAtom(0))].addBond(bnd);
+        for (ILonePair lp : mol.lonePairs())
+            fragOfAtm[atmIds.get(lp.getAtom())].addLonePair(lp);
+        for (ISingleElectron se : mol.singleElectrons())
+            fragOfAtm[atmIds.get(se.getAtom())].addSingleElectron(se);
+
         if (repOnScreen >= 3)
+        {
+            int num = 0;
+            for (IAtomContainer frag : frags.atomContainers())
+            {
+                num++;
+                System.out.println("\n NEW FRAGMET "+num+" counts "+frag.getAtomCount()+" atoms and Bonds: "+frag.getBondCount());
+                fragDEBUG(frag);
+            }
             System.out.println("Got "+frags.getAtomContainerCount()+" fragments!");
+        }
         return frags;
     }
 
+//---------------------------------------------------------------------------------------
+    /**
+     * Finds the representative of the set containing an atom. Compresses
+     * the path on the way.
+     * @param parent the parent of each atom in the union-find forest
+     * @param i index of the atom
+     * @return the index of the representative atom
+     */
+
+    private int findRoot(int[] parent, int i)
+    {
+        while (parent[i] != i)
+        {
+            parent[i] = parent[parent[i]];
+            i = parent[i];
+        }
+        return i;
+    }
+
 //---------------------------------------------------------------------------------------
     /**
      * Identifies atoms involved in the same n-hapto ligand of 
@@ -2078,51 +2965,6 @@ System.out.println("AFTER \nbonds: "+frag.getBondCount()+
         return atmsInHapto;
     }
 
-//---------------------------------------------------------------------------------------
-
-    /**
-     * Identifies all the atoms that can be reached by moving only 
-     * along the existing connections (any bond in the connectivity 
-     * matrix) starting from atom <code>root</code>.
-     * For each reachable atom sets the flag number <code>flag</code>
-     * of the container <code>frag</code> to <code>true</code>.
-     * @param root atom used to start the exploration
-     * @param frag the molecular container
-     * @param flag identifier of the flag to be used to keep track 
-     * of the exploration
-     */
-
-    private void exploreNeighbour(IAtom root, IAtomContainer frag, int flag)
-    {
-        if (repOnScreen >= 3)
-            System.out.println("EXPLORATION on atom: "+frag.getAtomNumber(root)+" is "+root.getSymbol());
-
-        for (IAtom connectedAtom : frag.getConnectedAtomsList(root))
-        {
-            String recFlag = "";
-            for (int ri = 0; ri < recNum; ri++)
-                recFlag = recFlag+"-";
-
-            if (repOnScreen >= 3)
-                System.out.println(recFlag+"> connected atom: "+frag.getAtomNumber(connectedAtom)+" is "+connectedAtom.getSymbol()+" Branches: "+frag.getConnectedAtomsCount(connectedAtom)+" Flag: "+connectedAtom.getFlag(flag));
-
-            // in case of rings, avoid to bite your tail!
-            if (connectedAtom.getFlag(flag))
-                continue;
-            connectedAtom.setFlag(flag,true);
-
-            // move to the next shell of atoms
-            if (frag.getConnectedAtomsCount(connectedAtom) > 1)
-            {
-                recNum++;
-                if (repOnScreen >= 3)
-                    System.out.println(recFlag+"> resursion on atom "+frag.getAtomNumber(connectedAtom)+" which is "+connectedAtom.getSymbol());
-                exploreNeighbour(connectedAtom,frag,flag);
-                recNum--;
-            }
-        }
-    }
-
 //-----------------------------------------------------------------------------
 /*
 //TODO delete: moved to other file
@@ -2337,79 +3179,51 @@ System.out.println("AFTER \nbonds: "+frag.getBondCount()+
 //-----------------------------------------------------------------------------
 
     /**
-     * Compare fragment <code>frag</code> to the list of fragments 
-     * in the library <code>libFile</code>
+     * Compare fragment <code>frag</code> to the fragments already stored
+     * in the library. The comparison is done only against the fragments
+     * having the same invariants (see <code>FragmentIndex</code>), and new
+     * fragments are added to the index.
      * @param frag candidate new <code>GM3DFragment</code>
-     * @param libFile name of SDF file containing the existing library 
-     * <code>GM3DFragment</code>
      * @return <code>true</code> if <code>frag</code> is not found in
-     * <code>list</code>, so it's a new molecular entity
+     * the library, so it's a new molecular entity
      */
 
-    private boolean newFragment(GM3DFragment frag, String libFile)
+    private boolean newFragment(GM3DFragment frag)
     {
-        try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(libFile), DefaultChemObjectBuilder.getInstance());
-//            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile),NoNotificationChemObjectBuilder.getInstance()); // returns ERROR! AtomContainer does'n looks like a fragment in 'DENOPTIM' format!
-            while (reader.hasNext())
-            {
-                GM3DFragment oldFrag = new GM3DFragment(reader.next(),inFormat);
-                if (oldFrag.sameFragOf(frag))
-		{
-                    return false;
-		}
-            }
-        } catch (FileNotFoundException fnf) {
-            if (repOnScreen >= 1)
-                System.out.println("NO previous library found - Create NEW file: "+libFile);
-            return true;
-        } catch (Throwable t) {
-	    System.err.println("\nPROBLEM in reading library "+libFile+" with Iterator. "+t);
-            t.printStackTrace();
-            System.out.println("\nERROR: cannot iterate through MDL file. This "
-                                + "might be becouse the MDL format is prior to "
-                                + "V2000 or because there are bond with "
-                                + "type='any' (type=8 in connectivity matrix). "                                + "Please, try to provide a V2000 format and "
-                                + "convert avoid bond type=8.");
-            System.exit(0);
-        }
+        if (fragIndex.contains(frag))
+            return false;
 
+        fragIndex.addFragment(frag);
         return true;
     }
 
 //-----------------------------------------------------------------------------
 
     /**
-     * Compare a <code>GM3DFragment</code> with the fragments the user wants
-     * to ignore, which are provided as SDF library.
-     * @param frag candidate <code>GM3DFragment</code> 
-     * @param libIngorable name of SDF file containing all the fragment that 
-     * can be ignored
-     * @param libFormat format of fragments in <code>libIgnorable</code>
-     * @return <code>true</code> if <code>frag</code> matches a fragment in
-     * <code>libIgnorable</code>
+     * Reads a library of fragments and collects all its fragments in an
+     * index that allows fast comparison with new fragments
+     * @param libFile name of the library (SDF or binary) of fragments
+     * @param libFormat format of fragments in <code>libFile</code>
+     * @param kind type of library (used only for reporting)
+     * @return the index of the fragments in the library
      */
 
-    private boolean hitIgnorableFragment(GM3DFragment frag, String libIgnorable, String libFormat) 
+    private FragmentIndex loadLibraryIndex(String libFile, String libFormat, String kind)
     {
+        FragmentIndex index = new FragmentIndex();
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(libIgnorable), DefaultChemObjectBuilder.getInstance());
+            FragmentLibraryReader reader = new FragmentLibraryReader(libFile,Parameters.numThreads);
             while (reader.hasNext())
             {
-                GM3DFragment oldFrag = new GM3DFragment(reader.next(),libFormat);
-                if (oldFrag.sameFragOf(frag))
-                {
-                    String hit =  MolecularUtils.getNameOrID(oldFrag);
-                    frag.setProperty("IGNORABLE",hit);
-                    return true;
-                }
+                index.addFragment(GM3DFragment.asFragment(reader.next(),libFormat));
             }
+            reader.close();
         } catch (FileNotFoundException fnf) {
-            System.out.println("\nLibrary of ignorable fragsmets '"+libIgnorable+"' NOT FOUND!");
+            System.out.println("\nLibrary of "+kind+" fragsmets '"+libFile+"' NOT FOUND!");
             fnf.printStackTrace();
             System.exit(0);
         } catch (Throwable t) {
-            System.err.println("\nPROBLEM in reading library "+libIgnorable+" with Iterator. "+t);
+            System.err.println("\nPROBLEM in reading library "+libFile+" with Iterator. "+t);
             t.printStackTrace();
             System.out.println("\nERROR: cannot iterate through MDL file. This "
                                 + "might be becouse the MDL format is prior to "
@@ -2419,54 +3233,96 @@ System.out.println("AFTER \nbonds: "+frag.getBondCount()+
             System.exit(0);
         }
 
-        return false;
+        if (repOnScreen >= 1)
+            System.out.println("Loaded "+index.size()+" "+kind+" fragments ("
+                                 +index.getNumberOfBuckets()+" buckets) from "
+                                 +libFile);
+        return index;
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Compare a <code>GM3DFragment</code> with the fragments the user wants
+     * to ignore, which are provided as SDF library and loaded once when 
+     * this <code>Fragmenter</code> is created.
+     * A dedicated property will be modified/created in <code>frag</code>
+     * to record the ID of the ignorable fragment matched.
+     * @param frag candidate <code>GM3DFragment</code> 
+     * @return <code>true</code> if <code>frag</code> matches a fragment in
+     * the library of ignorable fragments
+     */
+
+    private boolean hitIgnorableFragment(GM3DFragment frag) 
+    {
+        GM3DFragment oldFrag = ignorableIndex.getSameFrag(frag);
+        if (oldFrag == null)
+            return false;
+
+        String hit =  MolecularUtils.getNameOrID(oldFrag);
+        frag.setProperty("IGNORABLE",hit);
+        return true;
     }
 
 //-----------------------------------------------------------------------------
 
     /**
-     * Compare a <code>GM3DFragment</code> to the target fragments
-     * in the SDF library <code>libTargets</code> in which fragments are
-     * reported with the format <code>format</code>.  
+     * Compare a <code>GM3DFragment</code> to the target fragments, which
+     * are provided as SDF library and loaded once when this 
+     * <code>Fragmenter</code> is created.
      * A dedicated property will be modified/created in <code>frag</code>
      * to record the ID of the target fragment matched.
      * @param frag candidate <code>GM3DFragment</code>
-     * @param libTargets name of SDF file containing the target fragments
-     * @param libFormat format of fragments in <code>libFile</code>
      * @return <code>true</code> if <code>frag</code> matches a fragment in
-     * <code>libFile</code>
+     * the library of target fragments
      */
 
-    private boolean hitTargetFragment(GM3DFragment frag, String libTargets, String libFormat)
+    private boolean hitTargetFragment(GM3DFragment frag)
     {
-        try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(libTargets), DefaultChemObjectBuilder.getInstance());
-            while (reader.hasNext())
-            {
-                GM3DFragment oldFrag = new GM3DFragment(reader.next(),libFormat);
-                if (oldFrag.sameFragOf(frag))
-                {
-		    String hit =  MolecularUtils.getNameOrID(oldFrag);
-		    frag.setProperty("TARGETHIT",hit);
-                    return true;
-                }
-            }
-        } catch (FileNotFoundException fnf) {
-            System.out.println("\nLibrary of target fragsmets '"+libTargets+"' NOT FOUND!");
-            fnf.printStackTrace();
-            System.exit(0);
-        } catch (Throwable t) {
-            System.err.println("\nPROBLEM in reading library "+libTargets+" with Iterator. "+t);
-            t.printStackTrace();
-            System.out.println("\nERROR: cannot iterate through MDL file. This "
-                                + "might be becouse the MDL format is prior to "
-                                + "V2000 or because there are bond with "
-                                + "type='any' (type=8 in connectivity matrix). "                                + "Please, try to provide a V2000 format and "
-                                + "convert avoid bond type=8.");
-            System.exit(0);
-        }
+        GM3DFragment oldFrag = targetIndex.getSameFrag(frag);
+        if (oldFrag == null)
+            return false;
+
+        String hit =  MolecularUtils.getNameOrID(oldFrag);
+        frag.setProperty("TARGETHIT",hit);
+        return true;
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Copies the record of a molecule that exceeded its time budget from
+     * the input to the quarantine file, adding the stage in which the
+     * budget ran out. The record is copied as text because the molecule
+     * may have been modified.
+     * @param res the outcome of the abandoned fragmentation
+     */
 
-        return false;
+    private void quarantineMol(FragmentationResult res)
+    {
+        numQuarantined++;
+        String stage = StageTimes.NAMES[res.getTimedOutStage()];
+        if (repOnScreen >= 1)
+            System.out.println("Molecule "+res.getName()+" exceeded the "
+                                         +"time budget in stage "+stage);
+        long start = res.getInputRecordOffset();
+        long end = res.getInputOffset();
+        if (start < 0 || end <= start)
+        {
+            System.out.println("WARNING! Unable to find molecule "
+                      +res.getName()+" in "+inFile+". Not quarantined.");
+            return;
+        }
+        String record = IOtools.readTXTRange(inFile,start,(int) (end - start));
+        int endOfData = record.lastIndexOf("$$$$");
+        if (endOfData < 0)
+        {
+            endOfData = record.length();
+            record = record + "$$$$\n";
+        }
+        String tag = "> <TIMEOUT_STAGE>\n"+stage+"\n\n";
+        IOtools.writeSDFText(quarantineFile,record.substring(0,endOfData)
+                                           +tag+record.substring(endOfData));
     }
 
 //-----------------------------------------------------------------------------
@@ -2513,9 +3369,9 @@ System.out.println("AFTER \nbonds: "+frag.getBondCount()+
      * @param atmid atom number of the two atoms to be checked
      */
 
-    private void printInfosDEBUG(Map<Integer,List<Boolean>> matrix)
+    private void printInfosDEBUG(int matrix)
     {
-        System.out.println("Case detected "+matrix);
+        System.out.println("Case detected "+membershipToString(matrix));
     }
 
 //-----------------------------------------------------------------------------
@@ -16,7 +16,9 @@
  *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
 
+import java.util.List;
 import java.util.ArrayList;
+import java.util.BitSet;
 
 /**
  * A cutting rule with three SMARTS queries (atom 1, bond, atom2) and options
@@ -46,6 +48,13 @@ public class GM3DCuttingRule
     // Options
     private ArrayList<String> opts;
 
+    // Elements that can be matched by the two atoms (null for any element)
+    private BitSet elements0;
+    private BitSet elements1;
+
+    // Simplified SMARTS of the two atoms in order of simplification
+    private List<String> simplerSmarts0;
+    private List<String> simplerSmarts1;
 
 //------------------------------------------------------------------------------
 
@@ -64,6 +73,10 @@ public class GM3DCuttingRule
 	} else {
 	    apc1 = null;
 	}
+	this.elements0 = ElementFingerprint.getElementsOfFirstAtom(smartsAtm0);
+	this.elements1 = ElementFingerprint.getElementsOfFirstAtom(smartsAtm1);
+	this.simplerSmarts0 = new GM3DSMARTS(smartsAtm0).getAllSimplerSMARTS();
+	this.simplerSmarts1 = new GM3DSMARTS(smartsAtm1).getAllSimplerSMARTS();
     }
 
 //------------------------------------------------------------------------------
@@ -174,6 +187,28 @@ public class GM3DCuttingRule
 
 //------------------------------------------------------------------------------
 
+/**
+ * Get the simplified versions of the SMARTS query of the first atom 
+ * (SubClass 0) in order of increasing simplification
+ */
+    public List<String> getSimplerSMARTSSubClass0()
+    {
+        return simplerSmarts0;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Get the simplified versions of the SMARTS query of the second atom
+ * (SubClass 1) in order of increasing simplification
+ */
+    public List<String> getSimplerSMARTSSubClass1()
+    {
+        return simplerSmarts1;
+    }
+
+//------------------------------------------------------------------------------
+
 /**
  * Get the SMARTS query of the bond
  */
@@ -292,6 +327,28 @@ public class GM3DCuttingRule
 
 //------------------------------------------------------------------------------
 
+/**
+ * Checks the element requirements of this rule against the elements of a
+ * molecule. A <code>false</code> means that the SMARTS queries of this
+ * rule cannot match the molecule, while <code>true</code> does not
+ * guarantee any match.
+ * @param fp the elements of the molecule
+ * @return <code>false</code> if the rule cannot match the molecule
+ */
+    public boolean canMatch(ElementFingerprint fp)
+    {
+	if (!fp.containsAnyOf(elements0) || !fp.containsAnyOf(elements1))
+	    return false;
+
+	//Disconnected atoms do not require a bond
+	if (smartsBnd.contains("."))
+	    return true;
+
+	return fp.hasBondBetween(elements0,elements1);
+    }
+
+//------------------------------------------------------------------------------
+
 /**
  * Returns the string representing this rule
  */
@@ -74,6 +74,12 @@ public class GM3DFragment extends AtomContainer implements IAtomContainer
     //Dimensionality: 2 or 3 (-1 if error)
     private int dimensions;
 
+    //Canonical representation including attachment points (see getCanonicalKey)
+    private String canonicalKey = null;
+
+    //Key of the invariants used to index the fragment (see FragmentIndex)
+    private String invariantKey = null;
+
     //Utilities
     //Level or information printed on screen
     private int repOnScreen = 0;
@@ -131,6 +137,51 @@ public class GM3DFragment extends AtomContainer implements IAtomContainer
         makeAPPseudoAtoms();
     }
 
+//------------------------------------------------------------------------------
+
+    /**
+     * Builds a fragment from a molecule and its attachment points without
+     * reading the attachment points from the properties, e.g., when
+     * reading a binary library of fragments
+     * @param mol the molecule
+     * @param aps the attachment points with 0-based atom indexes
+     */
+
+    public GM3DFragment(IAtomContainer mol, List<GM3DAttachmentPoint> aps)
+    {
+        super(mol);
+        repOnScreen = Parameters.report;
+
+        dimensions = getDimensions(mol);
+
+        this.setProperties(mol.getProperties());
+
+        allAPs.addAll(aps);
+        Collections.sort(allAPs, new GM3DAttachmentPointComparator());
+        writeAPsOnAtoms();
+
+        apOnMol = new AtomContainer(mol);
+        makeAPPseudoAtoms();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Returns the given molecule if it is already a fragment, or builds a
+     * fragment from it
+     * @param mol the molecule or fragment
+     * @param format the format of the attachment points in the properties
+     * of <code>mol</code>
+     * @return the fragment
+     */
+
+    public static GM3DFragment asFragment(IAtomContainer mol, String format)
+    {
+        if (mol instanceof GM3DFragment)
+            return (GM3DFragment) mol;
+        return new GM3DFragment(mol,format);
+    }
+
 //------------------------------------------------------------------------------
 
     public int getNumberOfAttachmentPoints()
@@ -198,12 +249,24 @@ public class GM3DFragment extends AtomContainer implements IAtomContainer
             return false;
         }
 
+        //Canonical keys (already available when the fragments are indexed)
+        if (this.hasCanonicalKey() && other.hasCanonicalKey())
+        {
+            String keyThis = this.getCanonicalKey();
+            String keyOther = other.getCanonicalKey();
+            if (!keyThis.equals("") && !keyOther.equals("") 
+                                              && !keyThis.equals(keyOther))
+            {
+                if (repOnScreen >= 2)
+                    System.out.println(preComp+"Different canonical key.");
+                return false;
+            }
+        }
+
         //Compare molecular structure and AP location
 
         //Couples of similar AP on 'this' and 'other'
         ArrayList<ArrayList<GM3DAttachmentPoint>> likeAPs = new ArrayList<ArrayList<GM3DAttachmentPoint>>();
-        //Prepare list of classes (used for the next comparison approach using InChi)
-        Set<String> allClasses = new HashSet<String>();
 
         //Identify similar Attachment Points
         for (int i = 0; i<allAPs.size(); i++)
@@ -218,7 +281,6 @@ public class GM3DFragment extends AtomContainer implements IAtomContainer
                     couple.add(ap);
                     couple.add(otherap);
                     likeAPs.add(couple);
-		    allClasses.add(ap.getAPClass());
                 }
             }
         }
@@ -340,24 +402,14 @@ public class GM3DFragment extends AtomContainer implements IAtomContainer
             }
         }
 
-        //Use InChi on 'apOnMol' to compare the two fragments
-        String inchiThis = "";
-        String inchiOther = "";
-        boolean inchiDone = false;
-        Map<String,String> classToElement = getClassToElement(allClasses,this,other);
-        inchiThis = this.getInChiForFragmentWithAP(classToElement);
-        inchiOther = other.getInChiForFragmentWithAP(classToElement);
-	if (inchiThis.equals("") || inchiOther.equals(""))
+        //Use canonical keys (InChI on 'apOnMol') to compare the two fragments
+        String keyThis = this.getCanonicalKey();
+        String keyOther = other.getCanonicalKey();
+	if (keyThis.equals("") || keyOther.equals(""))
 	{
 	    if (repOnScreen >= 1)
                 System.out.println(preComp+"INCHI representation FAILED. Fragments will be sees as equal! (see "+checkfile+") ");
-		rejectMol(this.apOnMol,"INCHI FAILED");
-		inchiDone = false;
-	} else {
-	    inchiDone = true;
-	}
-        if (inchiDone & !(inchiThis.equals(inchiOther)))
-        {
+	} else if (!keyThis.equals(keyOther)) {
             if (repOnScreen >= 2)
                 System.out.println(preComp+"Not same InChi representation - Fragments differ."); 
             return false;
@@ -589,6 +641,96 @@ public class GM3DFragment extends AtomContainer implements IAtomContainer
         return outList;
     }
 
+//------------------------------------------------------------------------------
+    /**
+     * Returns the canonical key of this fragment. The key is built from
+     * the InChI of the fragment where attachment points and dummy atoms
+     * are replaced by uncommon elements. The replacing elements are 
+     * chosen according to the sorted list of AP classes so that equal 
+     * fragments get equal keys. The key is generated only once and 
+     * stored, thus the fragment must not be modified afterwards.
+     * @return the canonical key or an empty string if the InChI could not
+     * be generated
+     */
+
+    public String getCanonicalKey()
+    {
+        if (canonicalKey != null)
+            return canonicalKey;
+
+        //Sorted list of AP classes
+        List<String> classes = new ArrayList<String>();
+        for (GM3DAttachmentPoint ap : allAPs)
+        {
+            if (!classes.contains(ap.getAPClass()))
+                classes.add(ap.getAPClass());
+        }
+        Collections.sort(classes);
+
+        Map<String,String> classToElement = getClassToElement(classes,this);
+        String inchi = getInChiForFragmentWithAP(classToElement);
+        if (inchi.equals(""))
+        {
+            if (repOnScreen >= 1)
+                System.out.println(pre+"INCHI representation FAILED (see "+checkfile+") ");
+            rejectMol(this.apOnMol,"INCHI FAILED");
+            canonicalKey = "";
+        } else {
+            String mapping = "";
+            for (String apClass : classes)
+                mapping = mapping + " " + apClass + ":" + classToElement.get(apClass);
+            canonicalKey = inchi + mapping;
+        }
+
+        return canonicalKey;
+    }
+
+//------------------------------------------------------------------------------
+    /**
+     * @return <code>true</code> if the canonical key of this fragment has 
+     * been already generated
+     */
+
+    public boolean hasCanonicalKey()
+    {
+        return canonicalKey != null;
+    }
+
+//------------------------------------------------------------------------------
+    /**
+     * Sets the canonical key calculated elsewhere, e.g., stored in a binary
+     * library of fragments
+     * @param key the canonical key
+     */
+
+    public void setCanonicalKey(String key)
+    {
+        canonicalKey = key;
+    }
+
+//------------------------------------------------------------------------------
+    /**
+     * @return the key of the invariants of this fragment, or
+     * <code>null</code> if not calculated yet (see FragmentIndex)
+     */
+
+    public String getInvariantKey()
+    {
+        return invariantKey;
+    }
+
+//------------------------------------------------------------------------------
+    /**
+     * Stores the key of the invariants of this fragment. As for the
+     * canonical key, the fragment must not be modified afterwards.
+     * @param key the key of the invariants
+     */
+
+    public void setInvariantKey(String key)
+    {
+        invariantKey = key;
+    }
+
 //------------------------------------------------------------------------------
     /**
      * Generated the INCHI code for a this fragments using pseuso atoms
@@ -681,12 +823,17 @@ IOtools.pause();
 
 //------------------------------------------------------------------------------
 
-    private Map<String,String> getClassToElement(Set<String> classSet, IAtomContainer molA, IAtomContainer molB) 
+    private Map<String,String> getClassToElement(List<String> classes, IAtomContainer mol) 
     {
         Map<String,String> c2e = new HashMap<String,String>();
-        Set<String> oneCandEls = new HashSet<String>(Arrays.asList("D","T","He","Ne","Ar","Kr","Xe","Rn","Cs","Fr"));
+        List<String> oneCandEls = new ArrayList<String>(Arrays.asList("D","T","He","Ne","Ar","Kr","Xe","Rn","Cs","Fr"));
 
-        for (String apClass : classSet)
+        //Elements already in the molecule cannot be used
+        Set<String> elsInMol = new HashSet<String>();
+        for (IAtom a : mol.atoms())
+            elsInMol.add(a.getSymbol());
+
+        for (String apClass : classes)
         {
             boolean foundOneFree = false;
             for (String el : oneCandEls)
@@ -695,18 +842,8 @@ IOtools.pause();
                 if (c2e.containsValue(el))
                     continue;
 
-                //Check if the molecules already contain this element
-                boolean useIt = true;
-                for (IAtom a : molA.atoms())
-                    if (a.getSymbol().equals(el))
-                        useIt = false;
-
-                for (IAtom b : molB.atoms())
-                    if (b.getSymbol().equals(el))
-                        useIt = false;
-                
                 //OK, now you can use it!
-                if (useIt)
+                if (!elsInMol.contains(el))
                 {
                     if (repOnScreen >= 3)
                         System.out.println(pre+"Using element "+el+" for class "+apClass);
@@ -842,21 +979,7 @@ IOtools.pause();
             Collections.sort(allAPs, new GM3DAttachmentPointComparator());
 
 	    //Write attachment points also on the atoms
-            for (int i = 0; i < allAPs.size(); i++)
-            {
-                GM3DAttachmentPoint ap = allAPs.get(i);
-                int atmID = ap.getAPAtm();
-                IAtom atm = this.getAtom(atmID);
-                try {
-                    ArrayList<GM3DAttachmentPoint> oldAPs = (ArrayList<GM3DAttachmentPoint>)atm.getProperty("AttachmentPoints");
-                    oldAPs.add(ap);
-                    atm.setProperty("AttachmentPoints",oldAPs);
-                } catch (Throwable t ) {
-                    ArrayList<GM3DAttachmentPoint> aps = new ArrayList<GM3DAttachmentPoint>();
-                    aps.add(ap);
-                    atm.setProperty("AttachmentPoints",aps);
-                }
-	    } 
+            writeAPsOnAtoms();
 
 
 //TODO add other fragments here
@@ -871,6 +994,26 @@ IOtools.pause();
 	}
     }
 
+//------------------------------------------------------------------------------
+    private void writeAPsOnAtoms()
+    {
+        for (int i = 0; i < allAPs.size(); i++)
+        {
+            GM3DAttachmentPoint ap = allAPs.get(i);
+            int atmID = ap.getAPAtm();
+            IAtom atm = this.getAtom(atmID);
+            try {
+                ArrayList<GM3DAttachmentPoint> oldAPs = (ArrayList<GM3DAttachmentPoint>)atm.getProperty("AttachmentPoints");
+                oldAPs.add(ap);
+                atm.setProperty("AttachmentPoints",oldAPs);
+            } catch (Throwable t ) {
+                ArrayList<GM3DAttachmentPoint> aps = new ArrayList<GM3DAttachmentPoint>();
+                aps.add(ap);
+                atm.setProperty("AttachmentPoints",aps);
+            }
+        }
+    }
+
 //-------------------------------------------------------------------
 
 /**
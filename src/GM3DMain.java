@@ -68,26 +68,36 @@ public class GM3DMain
 
 	//Check the quality of the 3D structures from CCDC
 	StructureChecker stuChk = new StructureChecker();
-        if (Parameters.chkFormula)
-        {
-            stuChk.check3DvsFormula();
-        }
-	if (Parameters.analyzeAndFix) 
-	{
-            stuChk.fixChemicalRepresentation();
-        }
-
-	//Prefilter
-	if (Parameters.preFiltering)
-	{
-	    stuChk.preFilter();
-	}
-
-	//Now chop the molecules generating the fragments
-	if (Parameters.chopMols)
+	if (Parameters.streaming)
 	{
+	    //Checks and fragmentation of one molecule at a time
 	    Fragmenter fr = new Fragmenter();
-	    fr.chopMolecules();
+	    fr.chopMolecules(stuChk);
+	} else {
+	    //When resuming, the checked structures are those of the checkpoint
+	    boolean resuming = Parameters.resume && new File(
+			Checkpoint.getFileName(Parameters.getJobName())).exists();
+            if (Parameters.chkFormula && !resuming)
+            {
+                stuChk.check3DvsFormula();
+            }
+	    if (Parameters.analyzeAndFix && !resuming) 
+	    {
+                stuChk.fixChemicalRepresentation();
+            }
+
+	    //Prefilter
+	    if (Parameters.preFiltering && !resuming)
+	    {
+	        stuChk.preFilter();
+	    }
+
+	    //Now chop the molecules generating the fragments
+	    if (Parameters.chopMols)
+	    {
+	        Fragmenter fr = new Fragmenter();
+	        fr.chopMolecules();
+	    }
 	}
 
 	Librarian lib = new Librarian();
@@ -115,6 +125,10 @@ public class GM3DMain
         if (Parameters.groupingRotamers & !Parameters.mergeLibraries)
             lib.groupRotamers();
 
+	//Convert format of the library
+	if (Parameters.covertLibrary)
+	    lib.convertLibrary();
+
 	//Extract Classes
 	if (Parameters.extractClass)
 	    lib.extractClass();
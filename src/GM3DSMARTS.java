@@ -152,6 +152,36 @@ public class GM3DSMARTS
         return simplerSmarts;
     }
 
+//-----------------------------------------------------------------------------
+
+    /**
+     * Returns the whole sequence of simplified SMARTS, that is, the strings
+     * returned by calling <code>getSimplerSMARTS</code> 
+     * <code>getMaxNumSemplification</code> times on a new object. This
+     * object is not affected.
+     */
+    public List<String> getAllSimplerSMARTS()
+    {
+        GM3DSMARTS fresh = new GM3DSMARTS(smarts);
+        List<String> ladder = new ArrayList<String>();
+        for (int i=0; i<fresh.getMaxNumSemplification(); i++)
+        {
+            ladder.add(fresh.getSimplerSMARTS());
+        }
+        return ladder;
+    }
+
+//-----------------------------------------------------------------------------
+
+    /**
+     * Returns the reference name used to register a simplified SMARTS
+     * among the queries parsed only once.
+     */
+    public static String getQueryRef(String simplerSmarts)
+    {
+        return "Simplified:" + simplerSmarts;
+    }
+
 //-----------------------------------------------------------------------------
 
     private void updateSimpler()
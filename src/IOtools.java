@@ -17,6 +17,10 @@
  */
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.Writer;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.FileInputStream;
@@ -24,12 +28,17 @@ import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.FileReader;
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 
 import java.util.List;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.openscience.cdk.ChemObject;
 import org.openscience.cdk.interfaces.IAtomContainer;
@@ -48,6 +57,23 @@ import org.openscience.cdk.exception.CDKException;
 
 public class IOtools
 {
+    //Open writing sessions of SDF files
+    private static Map<String,SDFSession> sdfSessions = 
+                                new ConcurrentHashMap<String,SDFSession>();
+
+    //Flag: open sessions get closed when the program terminates
+    private static boolean closerRegistered = false;
+
+    //SDF sessions with an open file, in order of last use
+    private static Map<String,SDFSession> openSessions = 
+                         new LinkedHashMap<String,SDFSession>(16,0.75f,true);
+
+    //Max number of SDF sessions keeping their file open
+    private static final int MAXOPENSDFFILES = 128;
+
+    //Size (characters) of the buffer of SDF sessions
+    private static final int SDFBUFFERSIZE = 262144;
+
 //------------------------------------------------------------------------------
 
 /**
@@ -149,15 +175,75 @@ public class IOtools
 //------------------------------------------------------------------------------
 
 /**
- * Writes on SDF a new file or appends to an existing file
+ * Writes on SDF a new file or appends to an existing file.
+ * If a writing session is open for <code>filename</code> (see
+ * <code>openSDFWriter</code>) the molecule is written by the persistent
+ * writer of the session and <code>append</code> is ignored.
+ * Files with the extension of binary libraries of fragments are written
+ * in binary format (see <code>FragmentLibrary</code>).
  * @param filename target SDF file (new or existing)
  * @param mol atom container to be written on the SDF file
  * @param append <code>true</code> to append to existing file
  */
 
     public static void writeSDFAppend(String filename, IAtomContainer mol,
-                                      boolean append)
+                                                               boolean append)
+    {
+        //The conversion may terminate the program, so it is done before
+        //taking the lock on the writers
+        if (FragmentLibrary.isBinaryName(filename))
+            mol = GM3DFragment.asFragment(mol,Parameters.getLibFormat());
+        exitIfError(appendMolecule(filename,mol,append));
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Writes a molecule holding the lock on the writers.
+ * @return the description of the failure, or <code>null</code>
+ */
+
+    private static synchronized String appendMolecule(String filename, 
+                                      IAtomContainer mol, boolean append)
     {
+        SDFSession session = sdfSessions.get(filename);
+        if (session != null)
+        {
+            try {
+                getSession(filename,session).write(mol);
+            } catch (CDKException e) {
+                if (e.getMessage().contains("For input string: \"#\""))
+                {
+                    System.err.println("CDK unable to write MDL file for "+MolecularUtils.getNameOrID(mol));
+                }
+            } catch (Throwable t2) {
+                return "Failure in writing SDF: " + t2;
+            }
+            return null;
+        }
+
+        String error = null;
+        if (FragmentLibrary.isBinaryName(filename))
+        {
+            DataOutputStream out = null;
+            try {
+                out = new DataOutputStream(new BufferedOutputStream(
+                                   new FileOutputStream(filename,append)));
+                FragmentLibrary.writeRecord(out,mol);
+            } catch (Throwable t2) {
+                error = "Failure in writing binary library: " + t2;
+            } finally {
+                try {
+                    if (out != null)
+                        out.close();
+                } catch (IOException ioe) {
+                    if (error == null)
+                        error = "Error in writing: " + ioe;
+                }
+            }
+            return error;
+        }
+
         SDFWriter sdfWriter = null;
         try {
             sdfWriter = new SDFWriter(new FileWriter(new File(filename), append));
@@ -169,17 +255,475 @@ public class IOtools
 	    }
 	    
         } catch (Throwable t2) {
-            System.err.println("Failure in writing SDF: " + t2);
-            System.exit(-1);
+            error = "Failure in writing SDF: " + t2;
         } finally {
              try {
                  if(sdfWriter != null)
                      sdfWriter.close();
              } catch (IOException ioe) {
-                 System.err.println("Error in writing: " + ioe);
-                 System.exit(-1);
+                 if (error == null)
+                     error = "Error in writing: " + ioe;
              }
         }
+        return error;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Opens a writing session for an SDF file. Until the session is closed,
+ * all molecules sent to <code>writeSDFAppend</code> for this file are
+ * written by the same, heavily buffered writer, thus avoiding to open
+ * and close the file for each molecule. The file is created only when the
+ * first molecule is written. Sessions that are still open when the
+ * program terminates are closed automatically.
+ * Nothing is done if a session is already open for this file.
+ * @param filename target SDF file (new or existing)
+ * @param append <code>true</code> to append to existing file
+ */
+
+    public static synchronized void openSDFWriter(String filename, 
+                                                                boolean append)
+    {
+        if (sdfSessions.containsKey(filename))
+            return;
+
+        if (!closerRegistered)
+        {
+            Runtime.getRuntime().addShutdownHook(new Thread()
+            {
+                public void run()
+                {
+                    //The sessions are closed holding the lock on the
+                    //writers, so no molecule is being written meanwhile.
+                    //System.exit is never called while holding that lock.
+                    closeSessionsOnExit();
+                }
+            });
+            closerRegistered = true;
+        }
+        sdfSessions.put(filename,new SDFSession(filename,append));
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Writes to disk all the molecules buffered by the writing session of an
+ * SDF file. The session remains open.
+ * @param filename the SDF file
+ */
+
+    public static void flushSDFWriter(String filename)
+    {
+        exitIfError(flushSession(filename));
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Flushes a writing session holding the lock on the writers.
+ * @return the description of the failure, or <code>null</code>
+ */
+
+    private static synchronized String flushSession(String filename)
+    {
+        SDFSession session = sdfSessions.get(filename);
+        if (session == null)
+            return null;
+        try {
+            session.flush();
+        } catch (IOException ioe) {
+            return "Error in writing: " + ioe;
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Closes the writing session of an SDF file. Nothing is done if no session
+ * is open for this file.
+ * @param filename the SDF file
+ */
+
+    public static void closeSDFWriter(String filename)
+    {
+        exitIfError(closeSession(filename));
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Closes a writing session holding the lock on the writers.
+ * @return the description of the failure, or <code>null</code>
+ */
+
+    private static synchronized String closeSession(String filename)
+    {
+        SDFSession session = sdfSessions.remove(filename);
+        if (session == null)
+            return null;
+        openSessions.remove(filename);
+        try {
+            session.close();
+        } catch (IOException ioe) {
+            return "Error in writing: " + ioe;
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Writes to disk all the molecules buffered by the writing sessions of the
+ * given files and measures the length of the files. No other thread can
+ * write to the files in between. The sessions remain open.
+ * @param filenames the files
+ * @return the length (bytes) of each file, 0 for files not yet created
+ */
+
+    public static Map<String,Long> flushAndGetLengths(
+                                                  Collection<String> filenames)
+    {
+        Map<String,Long> lengths = new LinkedHashMap<String,Long>();
+        exitIfError(flushAndMeasure(filenames,lengths));
+        return lengths;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static synchronized String flushAndMeasure(
+                       Collection<String> filenames, Map<String,Long> lengths)
+    {
+        for (String filename : filenames)
+        {
+            String error = flushSession(filename);
+            if (error != null)
+                return error;
+            lengths.put(filename,new File(filename).length());
+        }
+        return null;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Cuts a file to a given length discarding anything written beyond it.
+ * Nothing is done if the file does not exist.
+ * @param filename the file to cut
+ * @param length the new length in bytes
+ */
+
+    public static void truncateFile(String filename, long length)
+    {
+        File file = new File(filename);
+        if (!file.exists())
+            return;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file,"rw");
+            raf.setLength(length);
+        } catch (Throwable t) {
+            System.err.println("Unable to truncate file " + filename + ": " + t);
+            System.exit(-1);
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException ioe) {
+                System.err.println("Error in writing: " + ioe);
+                System.exit(-1);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Reads a portion of a text file, e.g., a single record of an SDF file
+ * @param filename the file to read
+ * @param offset the position (in bytes) where the portion begins
+ * @param length the length (in bytes) of the portion
+ * @return the text in the portion
+ */
+
+    public static String readTXTRange(String filename, long offset, int length)
+    {
+        byte[] buf = new byte[length];
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(filename,"r");
+            raf.seek(offset);
+            raf.readFully(buf);
+        } catch (Throwable t) {
+            System.err.println("Unable to read file " + filename + ": " + t);
+            System.exit(-1);
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException ioe) {
+                System.err.println("Error in reading: " + ioe);
+                System.exit(-1);
+            }
+        }
+        return new String(buf);
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Closes all the writing sessions of SDF files. All sessions are closed
+ * even if closing any of them fails.
+ */
+
+    public static void closeAllSDFWriters()
+    {
+        exitIfError(closeAllSessions());
+    }
+
+//------------------------------------------------------------------------------
+
+    private static synchronized String closeAllSessions()
+    {
+        String firstError = null;
+        List<String> names = new ArrayList<String>(sdfSessions.keySet());
+        for (String filename : names)
+        {
+            String error = closeSession(filename);
+            if (firstError == null)
+                firstError = error;
+        }
+        return firstError;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Closes all the writing sessions of SDF files when the program
+ * terminates. Unlike <code>closeAllSDFWriters</code>, errors are only
+ * reported, as <code>System.exit</code> cannot be called during the
+ * shutdown.
+ */
+
+    private static synchronized void closeSessionsOnExit()
+    {
+        for (SDFSession session : sdfSessions.values())
+        {
+            try {
+                session.close();
+            } catch (IOException ioe) {
+                System.err.println("Error in writing: " + ioe);
+            }
+        }
+        sdfSessions.clear();
+        openSessions.clear();
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Appends a text record, e.g., a record copied from another SDF file, to
+ * an SDF file. If a writing session is open for <code>filename</code> the
+ * text is written by the writer of the session, in order with the
+ * molecules sent to <code>writeSDFAppend</code>.
+ * @param filename target SDF file (new or existing)
+ * @param txt the text to be written
+ */
+
+    public static void writeSDFText(String filename, String txt)
+    {
+        exitIfError(appendText(filename,txt));
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Writes a text record holding the lock on the writers.
+ * @return the description of the failure, or <code>null</code>
+ */
+
+    private static synchronized String appendText(String filename, String txt)
+    {
+        SDFSession session = sdfSessions.get(filename);
+        if (session != null)
+        {
+            try {
+                getSession(filename,session).writeText(txt);
+            } catch (Throwable t2) {
+                return "Failure in writing SDF: " + t2;
+            }
+            return null;
+        }
+
+        String error = null;
+        FileWriter writer = null;
+        try {
+            writer = new FileWriter(filename,true);
+            writer.write(txt);
+        } catch (Throwable t) {
+            error = "Failure in writing TXT: " + t;
+        } finally {
+            try {
+                if (writer != null)
+                    writer.close();
+            } catch (IOException ioe) {
+                if (error == null)
+                    error = "Error in writing: " + ioe;
+            }
+        }
+        return error;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Terminates the program if a writing operation failed. This is never
+ * called while holding the lock on the writers, which the closing of the
+ * sessions at the end of the program needs.
+ * @param error the description of the failure, or <code>null</code>
+ */
+
+    private static void exitIfError(String error)
+    {
+        if (error == null)
+            return;
+        System.err.println(error);
+        System.exit(-1);
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Returns an SDF session making sure its file is open.
+ * To limit the number of open files, the file of the session that has 
+ * not been used for the longest time is closed (and re-opened for 
+ * appending when needed).
+ * @param filename the SDF file
+ * @param session the session of <code>filename</code>
+ * @return the session ready for writing
+ */
+
+    private static SDFSession getSession(String filename, 
+                                  SDFSession session) throws IOException
+    {
+        if (!session.isOpen() && openSessions.size() >= MAXOPENSDFFILES)
+        {
+            String oldest = openSessions.keySet().iterator().next();
+            openSessions.remove(oldest).close();
+        }
+        openSessions.put(filename,session);
+        session.open();
+        return session;
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Persistent writer of an SDF file, or of a binary library of fragments.
+ * The file is opened only when the first molecule is written. Once closed,
+ * the file is re-opened for appending.
+ */
+
+    private static class SDFSession
+    {
+        private String filename;
+        private boolean append;
+        private boolean binary;
+        private PostponedFlushWriter buffer = null;
+        private SDFWriter sdfWriter = null;
+        private DataOutputStream binOut = null;
+
+        public SDFSession(String filename, boolean append)
+        {
+            this.filename = filename;
+            this.append = append;
+            this.binary = FragmentLibrary.isBinaryName(filename);
+        }
+
+        public boolean isOpen()
+        {
+            return sdfWriter != null || binOut != null;
+        }
+
+        public void open() throws IOException
+        {
+            if (isOpen())
+                return;
+            if (binary)
+            {
+                binOut = new DataOutputStream(new BufferedOutputStream(
+                     new FileOutputStream(filename,append),SDFBUFFERSIZE));
+            } else {
+                buffer = new PostponedFlushWriter(
+                               new FileWriter(new File(filename),append));
+                sdfWriter = new SDFWriter(buffer);
+            }
+            append = true;
+        }
+
+        public void write(IAtomContainer mol) throws IOException, 
+                                                               CDKException
+        {
+            if (binary)
+                FragmentLibrary.writeRecord(binOut,mol);
+            else
+                sdfWriter.write(mol);
+        }
+
+        public void writeText(String txt) throws IOException
+        {
+            if (binary)
+                throw new IOException("cannot write text to binary library "
+                                                                   +filename);
+            buffer.write(txt);
+        }
+
+        public void flush() throws IOException
+        {
+            if (buffer != null)
+                buffer.flushNow();
+            if (binOut != null)
+                binOut.flush();
+        }
+
+        public void close() throws IOException
+        {
+            if (sdfWriter != null)
+                sdfWriter.close();
+            if (binOut != null)
+                binOut.close();
+            sdfWriter = null;
+            buffer = null;
+            binOut = null;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+/**
+ * Buffered writer that ignores the requests to flush the buffer. 
+ * CDK's writers flush their output after each molecule, while the 
+ * buffer of an SDF session is written to disk only when full, upon explicit
+ * request (<code>flushNow</code>) or when closing the writer.
+ */
+
+    private static class PostponedFlushWriter extends BufferedWriter
+    {
+        public PostponedFlushWriter(Writer out)
+        {
+            super(out,SDFBUFFERSIZE);
+        }
+
+        public void flush()
+        {
+            //Postponed until flushNow() or close()
+        }
+
+        public void flushNow() throws IOException
+        {
+            super.flush();
+        }
     }
 
 //------------------------------------------------------------------------------
@@ -25,6 +25,7 @@ import java.util.Set;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 
 import org.openscience.cdk.AtomContainer;
 import org.openscience.cdk.AtomContainerSet;
@@ -87,8 +88,10 @@ class Librarian
         inFile = Parameters.getCurrentSDFile();
         inFormat = Parameters.getLibFormat();
         String txtFile = Parameters.txtFile;
-        String keepFile = "keptMols.sdf";
-        String rejFile = "rejectedMols.sdf";
+        String keepFile = FragmentLibrary.getFileName("keptMols");
+        String rejFile = FragmentLibrary.getFileName("rejectedMols");
+        IOtools.openSDFWriter(keepFile,true);
+        IOtools.openSDFWriter(rejFile,true);
 
         if (repOnScreen >= 0)
             System.out.println("\n==== Filtering Library of Fragments ====");
@@ -97,7 +100,7 @@ class Librarian
         int rejNum = 0;
         int keptNum = 0;
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile), DefaultChemObjectBuilder.getInstance());
+            FragmentLibraryReader reader = new FragmentLibraryReader(inFile,Parameters.numThreads);
             while (reader.hasNext())
             {
                 i++;
@@ -106,7 +109,7 @@ class Librarian
                     System.out.println("Evaluating entry "+i+": '"+MolecularUtils.getNameOrID(mol)+"'");
 
 //TODO: add automatic detection of fragment's format
-                GM3DFragment frag = new GM3DFragment(mol,"DENOPTIM");
+                GM3DFragment frag = GM3DFragment.asFragment(mol,"DENOPTIM");
 
                 if (FragmentFilter.keepFragment(frag))
                 {
@@ -134,6 +137,7 @@ class Librarian
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         if (repOnScreen >= 0)
         {
@@ -160,8 +164,10 @@ class Librarian
         inFile = Parameters.getCurrentSDFile();
         inFormat = Parameters.getLibFormat();
         String txtFile = Parameters.txtFile;
-        String trgtFile = "targets.sdf";
-        String othersFile = "others.sdf";
+        String trgtFile = FragmentLibrary.getFileName("targets");
+        String othersFile = FragmentLibrary.getFileName("others");
+        IOtools.openSDFWriter(trgtFile,true);
+        IOtools.openSDFWriter(othersFile,true);
 
         if (repOnScreen >= 0)
             System.out.println("\n=== Filtering Library (using SMARTS) ====");
@@ -177,7 +183,7 @@ class Librarian
         int mi = 0;
         int nmi = 0;
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile), DefaultChemObjectBuilder.getInstance());
+            FragmentLibraryReader reader = new FragmentLibraryReader(inFile,Parameters.numThreads);
             while (reader.hasNext())
             {
                 i++;
@@ -216,6 +222,7 @@ class Librarian
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         if (repOnScreen >= 0)
         {
@@ -242,8 +249,10 @@ class Librarian
         inFile = Parameters.getCurrentSDFile();
         inFormat = Parameters.getLibFormat();
         String txtFile = Parameters.txtFile;
-        String trgtFile = "targets.sdf";
-        String othersFile = "others.sdf";
+        String trgtFile = FragmentLibrary.getFileName("targets");
+        String othersFile = FragmentLibrary.getFileName("others");
+        IOtools.openSDFWriter(trgtFile,true);
+        IOtools.openSDFWriter(othersFile,true);
 
         if (repOnScreen >= 0)
             System.out.println("\n==== Filtering Library (using CLASS) ====");
@@ -253,7 +262,7 @@ class Librarian
         int mi = 0;
         int nmi = 0;
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile), DefaultChemObjectBuilder.getInstance());
+            FragmentLibraryReader reader = new FragmentLibraryReader(inFile,Parameters.numThreads);
             while (reader.hasNext())
             {
                 i++;
@@ -262,7 +271,7 @@ class Librarian
                 if (repOnScreen >= 1)
                     System.out.println("Evaluating entry "+i+": '"+MolecularUtils.getNameOrID(mol)+"'");
 
-                GM3DFragment frag = new GM3DFragment(mol,inFormat);
+                GM3DFragment frag = GM3DFragment.asFragment(mol,inFormat);
 
                 if (frag.getNumberOfAttachmentPoints() == 0)
                 {
@@ -315,6 +324,7 @@ class Librarian
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         if (repOnScreen >= 0)
 	{
@@ -349,6 +359,14 @@ class Librarian
         String uniqueLib = Parameters.uniqueLibrary; //list of unique fragments
         String outUniqueLib = "Update-"+jobName+"_"+uniqueLib;
         outFile = "Combined_"+jobName+"_"+oldFile;
+
+        //Libraries are concatenated, so they must have the same format
+        if (isBinaryLibrary(oldFile) != isBinaryLibrary(inFile))
+        {
+            System.err.println("\nERROR! Libraries "+oldFile+" and "+inFile
+                                +" have different formats (see CONVERTLIBRARY)");
+            System.exit(-1);
+        }
         
         //Decide the type of job accordingly to the existence of a previous list of unique fragments
         if (uniqueLib == null)
@@ -399,7 +417,7 @@ class Librarian
         Map<String,String> binAndJob = getMWBinAndJob(thisJob);
         String bin = binAndJob.get("bin");
         int numMWBin = files.size();
-        outFile = "AllMWBin_"+thisJob+".sdf";
+        outFile = FragmentLibrary.getFileName("AllMWBin_"+thisJob);
         String isoCount = "IsomerCounts-AllMWBin_"+thisJob+".txt";
         String frgIsoKeyConverter ="RunAllFrgKeyConversion.sh";
 
@@ -428,6 +446,13 @@ class Librarian
         boolean first = true;
         String propName = "ISOMER";
         Map<String,Integer> counts = new HashMap<String,Integer>();
+        //Unique fragments indexed by their invariants
+        FragmentIndex unqIndex = new FragmentIndex();
+        IOtools.openSDFWriter(outFile,true);
+        ProgressReporter progress = ProgressReporter.start("MW merge",
+                                          files.toArray(new String[0]));
+        long numFrags = 0;
+        long doneBytes = 0;
 //        Map<String,ArrayList<String>> listIDequivalence = new HashMap<String,ArrayList<String>>();
         for (String subLibName : files)
         {
@@ -442,10 +467,13 @@ class Librarian
             {
                 //Append ALL Frags from the first library
                 try {
-                    IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(subLibName), DefaultChemObjectBuilder.getInstance());
+                    FragmentLibraryReader reader = new FragmentLibraryReader(subLibName,Parameters.numThreads);
                     while (reader.hasNext())
                     {
                         IAtomContainer frag = reader.next();
+                        numFrags++;
+                        progress.update(numFrags,-1,counts.size(),
+                                              doneBytes + reader.getOffset());
 
                         //TODO add automated detection of the fragment format
                         String fragFormat = "DENOPTIM";
@@ -461,9 +489,12 @@ class Librarian
 //                        equivKeys.add(oldKey);
 //                        listIDequivalence.put(oldKey,equivKeys);
                         counts.put(oldKey,localCount);
+                        GM3DFragment unqFrag = GM3DFragment.asFragment(frag,fragFormat);
+                        unqIndex.addFragment(unqFrag);
 //                        frag.setProperty(propName,groupID);
 //         System.err.println("oldKey = "+oldKey+" groupID= "+groupID);
-                        IOtools.writeSDFAppend(outFile,frag,true);
+                        //The fragment carries its keys to binary libraries
+                        IOtools.writeSDFAppend(outFile,unqFrag,true);
                     }
                     reader.close();
 	        } catch (FileNotFoundException fnf) {
@@ -484,49 +515,43 @@ class Librarian
                 first=false;
             } else {
                 try {
-                    IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(subLibName), DefaultChemObjectBuilder.getInstance());
+                    FragmentLibraryReader reader = new FragmentLibraryReader(subLibName,Parameters.numThreads);
                     while (reader.hasNext())
                     {
                         IAtomContainer mol = reader.next();
+                        numFrags++;
+                        progress.update(numFrags,-1,counts.size(),
+                                              doneBytes + reader.getOffset());
                         boolean isUnique = true;
                         String oldKey = mol.getProperty(propName).toString();
                         int localCount = getLocalCount(oldKey);
 
                         //TODO add automated detection of the fragment format
                         String fragFormat = "DENOPTIM";
-                        GM3DFragment frag = new GM3DFragment(mol,fragFormat);                        
+                        GM3DFragment frag = GM3DFragment.asFragment(mol,fragFormat);                        
 
-                        IteratingMDLReader readUnq = new IteratingMDLReader(new FileInputStream(outFile), DefaultChemObjectBuilder.getInstance());
-                        while (readUnq.hasNext())
+                        GM3DFragment fragUnq = unqIndex.getSameFrag(frag);
+                        if (fragUnq != null)
                         {
-                            IAtomContainer molUnq = readUnq.next();
-                            GM3DFragment fragUnq = new GM3DFragment(molUnq,fragFormat);
-                            if (frag.sameFragOf(fragUnq))
-                            {
-                                //Get the ID of the uniqueFragment
-                                String unqKey = fragUnq.getProperty(propName).toString();
-                                //Update count of group members
-                                int oldCount = counts.get(unqKey);
-                                int newCount = oldCount + localCount;
-                                counts.put(unqKey,newCount);
-                                //Set equivalence key
-//                                if (!listIDequivalence.get(unqKey).contains(oldKey))
-//                                    listIDequivalence.get(unqKey).add(oldKey);
-                                //Add Isomer Key conversion
-                                IOtools.writeTXTAppend(frgIsoKeyConverter,"sed -i -e 's/^"+oldKey+"$/"+unqKey+"/g' "+allFrgInBinFile+" \n",true);
-                                //Set flag to avoid reporting it as unique
-                                isUnique = false;
-                                break;
-                            }
+                            //Get the ID of the uniqueFragment
+                            String unqKey = fragUnq.getProperty(propName).toString();
+                            //Update count of group members
+                            int oldCount = counts.get(unqKey);
+                            int newCount = oldCount + localCount;
+                            counts.put(unqKey,newCount);
+                            //Add Isomer Key conversion
+                            IOtools.writeTXTAppend(frgIsoKeyConverter,"sed -i -e 's/^"+oldKey+"$/"+unqKey+"/g' "+allFrgInBinFile+" \n",true);
+                            //Set flag to avoid reporting it as unique
+                            isUnique = false;
                         }
-                        readUnq.close();
                         //Report as unique
                         if (isUnique)
                         {
 //                            ArrayList<String> equivKeys = new ArrayList<String>();
 //                            listIDequivalence.put(oldKey,equivKeys);
                             counts.put(oldKey,localCount);
-                            IOtools.writeSDFAppend(outFile,mol,true);
+                            IOtools.writeSDFAppend(outFile,frag,true);
+                            unqIndex.addFragment(frag);
                         } 
                     }
                     reader.close();
@@ -546,7 +571,11 @@ class Librarian
                     System.exit(0);
                 }
             }
+            doneBytes = doneBytes + new File(subLibName).length();
         }
+        progress.stop();
+
+        IOtools.closeAllSDFWriters();
 
         //Report isomer counting
         int tot = 0;
@@ -703,7 +732,7 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
         inFile = Parameters.getCurrentSDFile();
         jobName = Parameters.getJobName();
         outFile = "RotoGrouped-"+inFile;
-        String uniqueFile = "UniqueFrags-"+jobName+".sdf";
+        String uniqueFile = FragmentLibrary.getFileName("UniqueFrags-"+jobName);
 
         inFormat = Parameters.getLibFormat();
         outFormat = Parameters.getLibFormat();
@@ -729,22 +758,26 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
         String propName = "ISOMER";
         SortedMap<Integer,Integer> counts = new TreeMap<Integer,Integer>();
         int groupID = -1;
+        //Unique fragments indexed by their invariants
+        FragmentIndex unqIndex = new FragmentIndex();
         //get previously existing count of unique fragments, if any
         File unqFile = new File(uniqueFile);
         if (unqFile.exists())
         {
             try {
-                IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(unqFile), DefaultChemObjectBuilder.getInstance());
+                FragmentLibraryReader reader = new FragmentLibraryReader(uniqueFile,Parameters.numThreads);
                 while (reader.hasNext())
                 {
-                        String prop = reader.next().getProperty(propName).toString();
-                        int oldGroupID = Integer.parseInt(prop);
+                    GM3DFragment fragUnq = GM3DFragment.asFragment(reader.next(),inFormat);
+                    String prop = fragUnq.getProperty(propName).toString();
+                    int oldGroupID = Integer.parseInt(prop);
                     if (!counts.keySet().contains(oldGroupID))
                         counts.put(oldGroupID,1);
                     else {
                         System.err.println("\nERROR! File "+uniqueFile+" contains dublicated "+propName+"-ID"); 
                         System.exit(0);
                     }
+                    unqIndex.addFragment(fragUnq);
                 }
                 reader.close();
             } catch (FileNotFoundException fnf) {
@@ -764,64 +797,48 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
         }
 
         //Loop over input fragments
+        IOtools.openSDFWriter(outFile,true);
+        IOtools.openSDFWriter(uniqueFile,true);
+        ProgressReporter progress = ProgressReporter.start("Group rotamers",
+                                                                     inFile);
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inFile), DefaultChemObjectBuilder.getInstance());
+            FragmentLibraryReader reader = new FragmentLibraryReader(inFile,Parameters.numThreads);
             while (reader.hasNext())
             {
                 totFrags++;
                 if (repOnScreen >= 2)
                     System.out.println("Check fragment "+totFrags);
                 IAtomContainer mol = reader.next();
-                GM3DFragment frag = new GM3DFragment(mol,inFormat);
-                boolean isUnique = true;
-                if (unqFile.exists())
-                {
-                //Compare the fragment with the unique fragments
-                IteratingMDLReader readUnq = new IteratingMDLReader(new FileInputStream(unqFile), DefaultChemObjectBuilder.getInstance());
-                while (readUnq.hasNext())
-                {
-                    //Compare the fragment with the unique fragments
-                    IAtomContainer molUnq = readUnq.next();
-
-//TODO does this really speed up the execution?
-//TODO It was designed before having all this file reading/writing
-                    //Rough compatison to speed up the loop
-                    if (mol.getAtomCount() != molUnq.getAtomCount())
-                        continue;                        
-
-                    //Deep comparison
-                    GM3DFragment fragUnq = new GM3DFragment(molUnq,inFormat);
-                    if (frag.sameFragOf(fragUnq))
-                    {
-                        //Get the ID of the uniqueFragment
-                        String prop = fragUnq.getProperty(propName).toString();
-                        int existingGroupID = Integer.parseInt(prop);
-                        //Update count of group members
-                        int oldCount = counts.get(existingGroupID);
-                        counts.put(existingGroupID,oldCount + 1);
-                        //Set the flag of the new fragment
-                        mol.setProperty(propName,existingGroupID);
-                        //Store the new fragment
-                        IOtools.writeSDFAppend(outFile,mol,true);
-                        isUnique = false;
-                        break;
-                    }
-                } 
-                readUnq.close();
-                }
+                progress.update(totFrags,-1,counts.size(),reader.getOffset());
+                GM3DFragment frag = GM3DFragment.asFragment(mol,inFormat);
 
-                //Add a new unique fragment
-                if (isUnique)
+                //Compare the fragment with the unique fragments
+                GM3DFragment fragUnq = unqIndex.getSameFrag(frag);
+                if (fragUnq != null)
                 {
+                    //Get the ID of the uniqueFragment
+                    String prop = fragUnq.getProperty(propName).toString();
+                    int existingGroupID = Integer.parseInt(prop);
+                    //Update count of group members
+                    int oldCount = counts.get(existingGroupID);
+                    counts.put(existingGroupID,oldCount + 1);
+                    //Set the flag of the new fragment
+                    mol.setProperty(propName,existingGroupID);
+                    //Store the new fragment
+                    IOtools.writeSDFAppend(outFile,mol,true);
+                } else {
+                    //Add a new unique fragment
                     groupID++;
                     frag.setProperty(propName,groupID);
                     mol.setProperty(propName,groupID);
                     IOtools.writeSDFAppend(outFile,mol,true);
                     IOtools.writeSDFAppend(uniqueFile,frag.toIAtomContainer(outFormat),true);
                     counts.put(groupID,1);
+                    unqIndex.addFragment(frag);
                 }
             }
             reader.close();
+            progress.stop();
         } catch (FileNotFoundException fnf) {
             System.err.println("File Not Found: " + inFile);
             System.err.println(fnf.getMessage());
@@ -836,6 +853,7 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         //Print a summary
         if (repOnScreen >= 1)
@@ -845,6 +863,99 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
         }
     }
 
+//-------------------------------------------------------------------
+
+    /**
+     * Converts the library of fragments between SDF (DENOPTIM format) and
+     * binary format (see <code>FragmentLibrary</code>). When writing the
+     * binary format the keys used to identify duplicate fragments are
+     * calculated, so that they are stored in the library.
+     */
+
+    public void convertLibrary()
+    {
+        inFile = Parameters.getCurrentSDFile();
+        inFormat = Parameters.getOldFormat();
+        outFormat = Parameters.getNewFormat();
+        outFile = FragmentLibrary.changeExtension("Converted-"+inFile,outFormat);
+        String fragFormat = Parameters.getLibFormat();
+        boolean toBinary = outFormat.equals(FragmentLibrary.FORMAT);
+
+        if (repOnScreen >= 1)
+        {
+            System.out.println("\n======== Converting library of fragments ========");
+            System.out.println("From "+inFormat+": "+inFile+"\nTo "+outFormat+": "+outFile);
+        }
+
+        if (isBinaryLibrary(inFile) != inFormat.equals(FragmentLibrary.FORMAT))
+        {
+            System.err.println("\nERROR! Library "+inFile+" is not in "+inFormat+" format!");
+            System.exit(-1);
+        }
+
+        int totFrags = 0;
+        IOtools.openSDFWriter(outFile,false);
+        ProgressReporter progress = ProgressReporter.start("Conversion",inFile);
+        try {
+            FragmentLibraryReader reader = new FragmentLibraryReader(inFile,Parameters.numThreads);
+            while (reader.hasNext())
+            {
+                IAtomContainer mol = reader.next();
+                totFrags++;
+                progress.update(totFrags,-1,-1,reader.getOffset());
+                if (toBinary)
+                {
+                    GM3DFragment frag = GM3DFragment.asFragment(mol,fragFormat);
+                    //Calculates (and keeps) the canonical key
+                    frag.getCanonicalKey();
+                    mol = frag;
+                }
+                IOtools.writeSDFAppend(outFile,mol,true);
+            }
+            reader.close();
+            progress.stop();
+        } catch (FileNotFoundException fnf) {
+            System.err.println("File Not Found: " + inFile);
+            System.err.println(fnf.getMessage());
+            System.exit(-1);
+        } catch (Throwable t) {
+            System.err.println("\nERROR in converting the library "+inFile+". "+t);
+            t.printStackTrace();
+            System.exit(0);
+        }
+        IOtools.closeAllSDFWriters();
+
+        if (repOnScreen >= 1)
+        {
+            System.out.println("Total number of fragments converted: "+totFrags);
+            System.out.println("\n============== Conversion DONE ==============");
+        }
+
+        //Redirect name of input SDF file
+        Parameters.updateStructureFilePointer(outFile);
+    }
+
+//-------------------------------------------------------------------
+
+    /**
+     * Looks at the content of a library to find out its format
+     * @param file the library
+     * @return <code>true</code> if the library is in binary format
+     */
+
+    private static boolean isBinaryLibrary(String file)
+    {
+        boolean binary = false;
+        try {
+            binary = FragmentLibrary.isBinaryFile(file);
+        } catch (IOException ioe) {
+            System.err.println("File Not Found: " + file);
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        }
+        return binary;
+    }
+
 //-------------------------------------------------------------------
 
     /**
@@ -887,7 +998,7 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
     {
 
         //get input
-        ArrayList<IAtomContainer> listIn = IOtools.readSDF(fileIn);
+        ArrayList<IAtomContainer> listIn = FragmentLibraryReader.readAll(fileIn);
 
         //sort the list
         Collections.sort(listIn, new MWComparator());
@@ -896,10 +1007,12 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
             Collections.reverse(listIn);
 
         //report output
+        IOtools.openSDFWriter(outFile,true);
         for (int i = 0; i<listIn.size(); i++)
         {
             IOtools.writeSDFAppend(outFile,listIn.get(i),true);
         }
+        IOtools.closeSDFWriter(outFile);
     }
 
 //-------------------------------------------------------------------
@@ -944,6 +1057,8 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
         String propName = "ISOMER";
         SortedMap<Integer,Integer> counts = new TreeMap<Integer,Integer>();
         Map<Integer,String> isomerProp = new HashMap<Integer,String>();
+        //Unique fragments of each sub library indexed by their invariants
+        Map<String,FragmentIndex> unqIndexes = new HashMap<String,FragmentIndex>();
         //Get job details
         Map<String,String> binAndJob = getMWBinAndJob(inLib);
         String jobUnq = binAndJob.get("jobUnq");
@@ -969,11 +1084,16 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
 */
 
         //Read the library and generate sub libraries covering a range of MW
+        ProgressReporter progress = ProgressReporter.start("MW splitting",
+                                                                      inLib);
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(inLib), DefaultChemObjectBuilder.getInstance());
+            FragmentLibraryReader reader = new FragmentLibraryReader(inLib,Parameters.numThreads);
             while (reader.hasNext())
             {
                 IAtomContainer mol = reader.next();
+                totFrags++;
+                progress.update(totFrags,-1,keepClones ? -1 : groupID + 1,
+                                                          reader.getOffset());
 
                 //TODO add automated detection of the fragment format
                 String fragFormat = "DENOPTIM";
@@ -988,59 +1108,41 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
                 }
                 double ratio = mw / (double) binSize;
                 int subLibIdx = (int) ratio;
-                String subLibName = "MWBin_"+subLibIdx+"_Job_"+thisJob+".sdf";
+                String subLibName = FragmentLibrary.getFileName("MWBin_"+subLibIdx+"_Job_"+thisJob);
                 String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
+                IOtools.openSDFWriter(subLibName,true);
+                IOtools.openSDFWriter(allFrgBin,true);
                 if (!keepClones)
                 {
-                    File f = new File(subLibName);
-                    if (f.exists())
+                    FragmentIndex unqIndex = unqIndexes.get(subLibName);
+                    if (unqIndex == null)
+                    {
+                        unqIndex = new FragmentIndex();
+                        unqIndexes.put(subLibName,unqIndex);
+                    }
+                    GM3DFragment frag = GM3DFragment.asFragment(mol,fragFormat);
+                    GM3DFragment fragUnq = unqIndex.getSameFrag(frag);
+                    if (fragUnq == null)
                     {
-                        boolean isUnique = true;
-                        GM3DFragment frag = new GM3DFragment(mol,fragFormat);
-                        IteratingMDLReader readUnq = new IteratingMDLReader(new FileInputStream(subLibName), DefaultChemObjectBuilder.getInstance());
-
-                        String frgUnqID = "";
-                        while (readUnq.hasNext())
-                        {
-                            IAtomContainer molUnq = readUnq.next();
-                            GM3DFragment fragUnq = new GM3DFragment(molUnq,fragFormat);
-                            if (frag.sameFragOf(fragUnq))
-                                {
-                                //Get the ID of the uniqueFragment
-                                frgUnqID = fragUnq.getProperty(propName).toString();
-                                String[] pw = frgUnqID.split("-");
-                                int existingGroupID = Integer.parseInt(pw[1]);
-                                //Update count of group members
-                                int oldCount = counts.get(existingGroupID);
-                                counts.put(existingGroupID,oldCount + 1);
-                                isUnique = false;
-                                break;
-                            }
-                        }
-                        readUnq.close();
-
-                        if (isUnique)
-                        {
-                            groupID++;
-                            counts.put(groupID,1);
-                            String isomerName = thisJob+"-"+groupID;
-                            String props = " Ref:"+isomerName+" BIN:"+subLibIdx+" MW:"+mw;
-                            isomerProp.put(groupID,props);
-                            mol.setProperty(propName,isomerName);
-                            IOtools.writeSDFAppend(subLibName,mol,true);
-                            IOtools.writeSDFAppend(allFrgBin,mol,true);
-                        } else {
-                            mol.setProperty(propName,frgUnqID);
-                            IOtools.writeSDFAppend(allFrgBin,mol,true);                            
-                        }
-                    } else {
                         groupID++;
                         counts.put(groupID,1);
                         String isomerName = thisJob+"-"+groupID;
                         String props = " Ref:"+isomerName+" BIN:"+subLibIdx+" MW:"+mw;
                         isomerProp.put(groupID,props);
                         mol.setProperty(propName,isomerName);
-                        IOtools.writeSDFAppend(subLibName,mol,true);
+                        frag.setProperty(propName,isomerName);
+                        IOtools.writeSDFAppend(subLibName,frag,true);
+                        IOtools.writeSDFAppend(allFrgBin,mol,true);
+                        unqIndex.addFragment(frag);
+                    } else {
+                        //Get the ID of the uniqueFragment
+                        String frgUnqID = fragUnq.getProperty(propName).toString();
+                        String[] pw = frgUnqID.split("-");
+                        int existingGroupID = Integer.parseInt(pw[1]);
+                        //Update count of group members
+                        int oldCount = counts.get(existingGroupID);
+                        counts.put(existingGroupID,oldCount + 1);
+                        mol.setProperty(propName,frgUnqID);
                         IOtools.writeSDFAppend(allFrgBin,mol,true);
                     }
                 } else {
@@ -1049,6 +1151,7 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
                 }
             }
             reader.close();
+            progress.stop();
         } catch (FileNotFoundException fnf) {
             System.err.println("File Not Found: " + inFile);
             System.err.println(fnf.getMessage());
@@ -1063,6 +1166,7 @@ String allFrgBin = "MWBin_"+subLibIdx+"_AllFrg_Job_"+thisJob+".sdf";
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         //Report counting
         String countsReport = "IsomerCountsJob_"+thisJob+".dat";
@@ -17,9 +17,12 @@
  */
 
 import java.util.List;
+import java.util.BitSet;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Collection;
 
 import org.openscience.cdk.AtomContainer;
 import org.openscience.cdk.interfaces.IAtomContainer;
@@ -42,6 +45,10 @@ class ManySMARTSQuery
     //Counts
     private int totNum;
     private Map<String,Integer> numMatches = new HashMap<String,Integer>();
+    //Atoms involved in the matches of each query
+    private Map<String,BitSet> atomsInMatches = new HashMap<String,BitSet>();
+    //Time (ns) spent matching each query (only when profiling the rules)
+    private Map<String,Long> matchTimes = new HashMap<String,Long>();
 
     //Problems
     private boolean problems = false;
@@ -61,23 +68,120 @@ class ManySMARTSQuery
 //------------------------------------------------------------------------------
 
     public ManySMARTSQuery(IAtomContainer mol, Map<String,String> smarts)
+    {
+        this(mol,smarts,null);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Match a list of SMARTS using the ring perception and aromaticity
+     * detection already done on the molecule.
+     * @param mol the molecule to analyze
+     * @param smarts the SMARTS queries by reference name
+     * @param perception the perception of <code>mol</code> or
+     * <code>null</code> to let each query perceive the molecule
+     */
+
+    public ManySMARTSQuery(IAtomContainer mol, Map<String,String> smarts, MoleculePerception perception)
+    {
+        super();
+        repOnScreen = Parameters.report;
+	findMatches(mol,smarts,null,perception);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Match all the queries of a registry. The SMARTS of the registry have
+     * been already parsed and are not parsed again.
+     * @param mol the molecule to analyze
+     * @param registry the collection of queries
+     */
+
+    public ManySMARTSQuery(IAtomContainer mol, SMARTSRegistry registry)
+    {
+        this(mol,registry,registry.getRefs());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Match all the queries of a registry using the ring perception and
+     * aromaticity detection already done on the molecule.
+     * @param mol the molecule to analyze
+     * @param registry the collection of queries
+     * @param perception the perception of <code>mol</code> or
+     * <code>null</code> to let each query perceive the molecule
+     */
+
+    public ManySMARTSQuery(IAtomContainer mol, SMARTSRegistry registry, MoleculePerception perception)
+    {
+        this(mol,registry,registry.getRefs(),perception);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Match only some of the queries of a registry. The queries are
+     * considered in the order they have in the registry.
+     * @param mol the molecule to analyze
+     * @param registry the collection of queries
+     * @param refs the reference names of the queries to match
+     */
+
+    public ManySMARTSQuery(IAtomContainer mol, SMARTSRegistry registry, Collection<String> refs)
+    {
+        this(mol,registry,refs,null);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Match only some of the queries of a registry using the ring
+     * perception and aromaticity detection already done on the molecule.
+     * @param mol the molecule to analyze
+     * @param registry the collection of queries
+     * @param refs the reference names of the queries to match
+     * @param perception the perception of <code>mol</code> or
+     * <code>null</code> to let each query perceive the molecule
+     */
+
+    public ManySMARTSQuery(IAtomContainer mol, SMARTSRegistry registry, Collection<String> refs, MoleculePerception perception)
     {
         super();
         repOnScreen = Parameters.report;
+	Map<String,String> smarts = new LinkedHashMap<String,String>();
+	for (String ref : registry.getRefs())
+	{
+	    if (refs.contains(ref))
+	        smarts.put(ref,registry.getSMARTS(ref));
+	}
+	findMatches(mol,smarts,registry,perception);
+    }
+
+//------------------------------------------------------------------------------
+
+    private void findMatches(IAtomContainer mol, Map<String,String> smarts, SMARTSRegistry registry, MoleculePerception perception)
+    {
 	totNum = 0;
 	String blankSmarts = "[*]";
 
 	String err="";
+	boolean timing = Parameters.profileRules;
 
 	try {
                 SMARTSQueryTool query = new SMARTSQueryTool(blankSmarts);
 		query.setAllRingsFinderTimeout(Parameters.maxTimeAllRingFinder);
                 query.setMaxRingSize(Parameters.maxRingSizeMF);
+		if (perception != null)
+		    query.setInitializedMolecule(mol);
 		for (String smartsRef : smarts.keySet())
 		{
 		    //get the new query
                     String oneSmarts = smarts.get(smartsRef);
 		    err = smartsRef;
+		    long t0 = timing ? System.nanoTime() : 0;
 
                     if (repOnScreen >= 3)
                     {
@@ -86,9 +190,15 @@ class ManySMARTSQuery
                     }
 
                     //Update the query tool
-		    query.setSmarts(oneSmarts);
+		    if (registry != null && registry.getQuery(smartsRef) != null)
+		        query.setQuery(oneSmarts,registry.getQuery(smartsRef));
+		    else
+		        query.setSmarts(oneSmarts);
+
+		    //Rings and aromaticity are perceived only once
+		    if (perception != null)
+		        perception.perceive(mol);
 
-		    
 		    if (query.matches(mol))
 		    {
 			//Store matches
@@ -106,6 +216,8 @@ class ManySMARTSQuery
 			    System.out.println("Matches for query '"+smartsRef+"': "+num+" => Atoms: "+listOfIds);
 			}
  		    }
+		    if (timing)
+		        matchTimes.put(smartsRef,System.nanoTime() - t0);
 		}
         } catch (CDKException cdkEx) {
                 String cause = cdkEx.getCause().getMessage();
@@ -171,6 +283,20 @@ class ManySMARTSQuery
 	    return 0;
     }
 
+//------------------------------------------------------------------------------
+
+    /**
+     * @param query the reference name of the query
+     * @return the time (ns) spent matching the query, or 0 if the time has
+     * not been measured (see <code>Parameters.profileRules</code>)
+     */
+
+    public long getMatchingTime(String query)
+    {
+        Long t = matchTimes.get(query);
+        return t == null ? 0 : t;
+    }
+
 //------------------------------------------------------------------------------
 
     public boolean hasMatches(String query)
@@ -188,5 +314,34 @@ class ManySMARTSQuery
         return allMatches.get(ref);
     }
 
+//------------------------------------------------------------------------------
+
+    /**
+     * Get the indexes of all the atoms involved in any match of a query.
+     * The set is built on the first request and then re-used, so it must
+     * not be modified.
+     * @param ref the reference name of the query
+     * @return the set of atom indexes (empty if the query has no match)
+     */
+
+    public BitSet getAtomsInMatches(String ref)
+    {
+        BitSet atoms = atomsInMatches.get(ref);
+        if (atoms == null)
+        {
+            atoms = new BitSet();
+            if (allMatches.containsKey(ref))
+            {
+                for (List<Integer> match : allMatches.get(ref))
+                {
+                    for (int id : match)
+                        atoms.set(id);
+                }
+            }
+            atomsInMatches.put(ref,atoms);
+        }
+        return atoms;
+    }
+
 //------------------------------------------------------------------------------
 }
@@ -245,6 +245,20 @@ public class MolecularUtils
      * given size
      */
     public static int getSmallestOMRing(IAtom atmS, IAtom atmT, IAtomContainer mol, int maxSz)
+    {
+        return getSmallestOMRing(atmS,atmT,mol,maxSz,null);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Same as {@link #getSmallestOMRing(IAtom,IAtom,IAtomContainer,int)}
+     * but the rings are taken from the ring perception already done on the
+     * molecule.
+     * @param perception the rings perceived on <code>mol</code> or
+     * <code>null</code> to run the ring perception here
+     */
+    public static int getSmallestOMRing(IAtom atmS, IAtom atmT, IAtomContainer mol, int maxSz, MoleculePerception perception)
     {
         if (repOnScreen >= 3)
             System.out.println("Looking for OM-ring involving "
@@ -269,11 +283,16 @@ public class MolecularUtils
 	}
 
 	// Find smallest om-rings
-        AllRingsFinder arf = new AllRingsFinder();
         IRingSet allRings;
         try {
-            arf.setTimeout(Parameters.maxTimeAllRingFinder);
-            allRings = arf.findAllRings(mol,maxSz);
+            if (perception != null)
+            {
+                allRings = perception.getRings(mol,maxSz);
+            } else {
+                AllRingsFinder arf = new AllRingsFinder();
+                arf.setTimeout(Parameters.maxTimeAllRingFinder);
+                allRings = arf.findAllRings(mol,maxSz);
+            }
         } catch (CDKException e) {
             System.err.println("Unable to identify OM-ring");
             e.printStackTrace();
@@ -0,0 +1,195 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Map;
+import java.util.HashMap;
+import java.util.WeakHashMap;
+
+import org.openscience.cdk.RingSet;
+import org.openscience.cdk.exception.CDKException;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.interfaces.IRingSet;
+import org.openscience.cdk.ringsearch.AllRingsFinder;
+import org.openscience.cdk.smiles.smarts.SMARTSQueryTool;
+
+/**
+ * Ring perception, aromaticity detection, and atom properties needed by
+ * SMARTS matching done once per molecule. The outcome, including any
+ * failure (i.e., timeout of the AllRingsFinder), is kept and re-used by
+ * all the SMARTS queries and ring-size filters applied to the same
+ * molecule. The perception is valid only as long as the molecule is not
+ * modified: whoever changes the connectivity has to call
+ * {@link #forget(IAtomContainer)}.
+ * <p>
+ * To allow the perception to be shared by different stages of the
+ * process (i.e., the pre-filter and the fragmentation) the instances are
+ * registered by molecule identity in a weak map, so that they are
+ * discarded together with the molecule. For this reason the molecule
+ * is not referenced by this class but given to each method.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class MoleculePerception
+{
+    //Flag: perception done
+    private boolean perceived = false;
+
+    //Rings found by the AllRingsFinder within Parameters.maxRingSizeMF
+    private IRingSet allRings = null;
+
+    //Problem occurred in the perception
+    private CDKException failure = null;
+
+    //Rings found by size limit
+    private Map<Integer,IRingSet> ringsBySize = new HashMap<Integer,IRingSet>();
+
+    //Problems occurred in the search for rings by size limit
+    private Map<Integer,CDKException> failuresBySize =
+                                         new HashMap<Integer,CDKException>();
+
+    //Perceptions registered by molecule
+    private static final Map<IAtomContainer,MoleculePerception> registry =
+                                 new WeakHashMap<IAtomContainer,MoleculePerception>();
+
+//------------------------------------------------------------------------------
+
+    private MoleculePerception()
+    {
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Get the perception registered for a molecule, or a new one if
+     * there is none.
+     * @param mol the molecule
+     * @return the perception of the molecule
+     */
+
+    public static MoleculePerception getFor(IAtomContainer mol)
+    {
+        synchronized (registry)
+        {
+            MoleculePerception p = registry.get(mol);
+            if (p == null)
+            {
+                p = new MoleculePerception();
+                registry.put(mol,p);
+            }
+            return p;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Discard the perception of a molecule. To be called before modifying
+     * the molecule.
+     * @param mol the molecule
+     */
+
+    public static void forget(IAtomContainer mol)
+    {
+        synchronized (registry)
+        {
+            registry.remove(mol);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Perform ring perception, aromaticity detection, and setting of atom
+     * properties as done by the <code>SMARTSQueryTool</code>. Only the
+     * first call does the job, the following ones return immediately or
+     * throw the same exception.
+     * @param mol the molecule this perception refers to
+     * @throws CDKException if the perception failed
+     */
+
+    public synchronized void perceive(IAtomContainer mol) throws CDKException
+    {
+        if (!perceived)
+        {
+            perceived = true;
+            try {
+                allRings = SMARTSQueryTool.initializeMolecule(mol,
+                                              Parameters.maxTimeAllRingFinder,
+                                              Parameters.maxRingSizeMF);
+            } catch (CDKException cdkEx) {
+                failure = cdkEx;
+            }
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Get all the rings up to a given size. Whenever possible, the rings
+     * are taken from the perception, otherwise they are searched only once
+     * per size limit. Also a failed search is not repeated.
+     * @param mol the molecule this perception refers to
+     * @param maxSz the maximum ring size
+     * @return the set of rings
+     * @throws CDKException if the rings could not be found
+     */
+
+    public synchronized IRingSet getRings(IAtomContainer mol, int maxSz)
+                                                            throws CDKException
+    {
+        if (ringsBySize.containsKey(maxSz))
+        {
+            return ringsBySize.get(maxSz);
+        }
+        if (failuresBySize.containsKey(maxSz))
+        {
+            throw failuresBySize.get(maxSz);
+        }
+
+        IRingSet rings;
+        boolean withinPerceived = Parameters.maxRingSizeMF <= 0
+                                  || maxSz <= Parameters.maxRingSizeMF;
+        if (perceived && failure == null && withinPerceived)
+        {
+            rings = new RingSet();
+            for (IAtomContainer ring : allRings.atomContainers())
+            {
+                if (ring.getAtomCount() <= maxSz)
+                    rings.addAtomContainer(ring);
+            }
+        } else {
+            AllRingsFinder arf = new AllRingsFinder();
+            arf.setTimeout(Parameters.maxTimeAllRingFinder);
+            try {
+                rings = arf.findAllRings(mol,maxSz);
+            } catch (CDKException cdkEx) {
+                failuresBySize.put(maxSz,cdkEx);
+                throw cdkEx;
+            }
+        }
+        ringsBySize.put(maxSz,rings);
+        return rings;
+    }
+
+//------------------------------------------------------------------------------
+}
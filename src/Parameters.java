@@ -87,6 +87,9 @@ public class Parameters
     //Flag: change format of Fragment library
     public static boolean covertLibrary;
 
+    //Flag: write libraries of fragments in binary format
+    public static boolean binaryLibrary;
+
     //Flag: reorder according to MW 
     public static boolean orderMW;
     public static boolean MWascending;
@@ -101,6 +104,12 @@ public class Parameters
     //Flag: delete intermediate files
     public static boolean removeIntermFiles;
 
+    //Flag: check and fragment each molecule in memory (no intermediate files)
+    public static boolean streaming;
+
+    //Flag: write intermediate files also when streaming
+    public static boolean writeIntermFiles;
+
     //Extraction of fragments from libraries
     public static boolean extractClass;
     public static boolean extractSMARTS;
@@ -118,6 +127,47 @@ public class Parameters
     //(0=minimum, 1=intermediate,  2=maximum, 3=only_for_debug)
     public static int report = 0;
 
+    //Number of threads used to fragment molecules in parallel
+    public static int numThreads = 1;
+
+    //Number of molecules between checkpoints of the fragmentation (0=none)
+    public static int checkpointFreq = 0;
+
+    //Flag: resume the fragmentation from the last checkpoint
+    public static boolean resume;
+
+    //Folder of the cache of fragmentation results (null=no cache)
+    public static String fragCacheDir = null;
+
+    //Flag: collect statistics on the time spent in each stage
+    public static boolean runStatistics = false;
+
+    //Number of molecules between reports of the statistics (0=only at end)
+    public static int statisticsFreq = 0;
+
+    //Flag: profile the cost and hit rate of the cutting rules
+    public static boolean profileRules = false;
+
+    //Seconds between reports of the progress of long stages (0=no report)
+    public static int progressInterval = 0;
+
+    //Wall-clock time (s) allowed for the fragmentation of each molecule
+    //(0=no limit)
+    public static double molTimeBudget = 0.0;
+
+    //Flag: start the most expensive molecules first in parallel runs, and
+    //number of molecules in the reorder buffer (0=default)
+    public static boolean largestFirst = false;
+    public static int schedulingWindow = 0;
+
+    //Rules file of a previous run to re-use its cached results
+    //(null=no incremental fragmentation)
+    public static String previousRulesFile = null;
+
+    //First and last (1-based) input structures to fragment (0=all)
+    public static int firstStructure = 0;
+    public static int lastStructure = 0;
+
 //FILE NAMES
     //KeyFile - User defined parameters
     public static String input;
@@ -154,12 +204,19 @@ public class Parameters
 
     // pre-filtering of molecules with SMARTS
     public static Set<String> preFilterSMARTS = new HashSet<String>();
+    public static SMARTSRegistry preFilterQueries = new SMARTSRegistry();
 
 //COMMON STUFF STORAGE
     //Storage for cutting rules
     public static Map<String,GM3DCuttingRule> rules = new HashMap<String,GM3DCuttingRule>();
     public static SortedMap<Integer,String> sortedRules = new TreeMap();
     public static List<String> anyAtm = new ArrayList<String>();
+    //Cutting rules of a previous run (incremental fragmentation)
+    public static Map<String,GM3DCuttingRule> previousRules = new HashMap<String,GM3DCuttingRule>();
+    public static SortedMap<Integer,String> previousSortedRules = new TreeMap();
+    public static List<String> previousAnyAtm = new ArrayList<String>();
+    //Parsed SMARTS of cutting rules (whole rule and subclasses)
+    public static SMARTSRegistry rulesQueries = new SMARTSRegistry();
 
     //Storage for found CLASSes (<rule_name>+<SubClass_flag>)
     public static ArrayList<String> classes = new ArrayList<String>();
@@ -275,18 +332,37 @@ public class Parameters
         orderMW = false;
         mergeLibraries = false;
         covertLibrary = false;        
+        binaryLibrary = false;
+        oldFormat = "DENOPTIM";
+        newFormat = "DENOPTIM";
         MWascending = true;
         MWsplitting = false;
         MWMerge = false;
         extractClass = false;
         extractSMARTS = false;
         removeIntermFiles = false;
+        streaming = false;
+        writeIntermFiles = false;
         sdfInFile = "structures.sdf";        
         rulesFile = "cuttingrules.rul";
         readRules = true;
 	makeCPMap = false;
 	onlyFiltering = false;
         report = 0;
+        numThreads = 1;
+        checkpointFreq = 0;
+        resume = false;
+        firstStructure = 0;
+        lastStructure = 0;
+        fragCacheDir = null;
+        previousRulesFile = null;
+        runStatistics = false;
+        statisticsFreq = 0;
+        profileRules = false;
+        progressInterval = 0;
+        molTimeBudget = 0.0;
+        largestFirst = false;
+        schedulingWindow = 0;
 
         //Read User's params from input file
         if (CLOpts.length > 0)
@@ -312,6 +388,17 @@ public class Parameters
         if (readRules)
             setCuttingRules();
 
+        // Parse SMARTS for pre-filtering
+        if (preFiltering)
+        {
+            int is = 0;
+            for (String smarts : preFilterSMARTS)
+            {
+                is++;
+                preFilterQueries.addQuery(Integer.toString(is),smarts);
+            }
+        }
+
         //Reporting
         if (report >=1)
             printParameters();
@@ -420,21 +507,59 @@ public class Parameters
                 if (words.length < 3)
                     killDueToParams("Missing library format for conversion");
                 else {
-                    oldFormat = words[2];
-                    newFormat = words[3];
+                    oldFormat = words[1];
+                    newFormat = words[2];
                 }
+            } else if (words[0].equals("BINARYLIBRARY"))
+            {
+                binaryLibrary = true;
             } else if (words[0].equals("REVERSEMWORDER"))
             {
                 MWascending = false;
             } else if (words[0].equals("REMOVEINTERFILES"))
             {
                 removeIntermFiles = true;
+            } else if (words[0].equals("STREAMING"))
+            {
+                streaming = true;
+            } else if (words[0].equals("WRITEINTERFILES"))
+            {
+                writeIntermFiles = true;
             } else if (words[0].equals("FORMULATXTFILE"))
             {
                 txtFile = words[1];
             } else if (words[0].equals("STRUCTURESFILE"))
             {
                 sdfInFile = words[1];
+            } else if (words[0].equals("FRAGMENTATIONCACHE"))
+            {
+                fragCacheDir = words[1];
+            } else if (words[0].equals("RUNSTATISTICS"))
+            {
+                runStatistics = true;
+                if (words.length > 1)
+                    statisticsFreq = Integer.parseInt(words[1]);
+            } else if (words[0].equals("PROFILERULES"))
+            {
+                profileRules = true;
+            } else if (words[0].equals("LARGESTFIRST"))
+            {
+                largestFirst = true;
+                if (words.length > 1)
+                    schedulingWindow = Integer.parseInt(words[1]);
+            } else if (words[0].equals("MOLTIMEBUDGET"))
+            {
+                molTimeBudget = Double.parseDouble(words[1]);
+            } else if (words[0].equals("PROGRESS"))
+            {
+                progressInterval = Integer.parseInt(words[1]);
+            } else if (words[0].equals("PREVIOUSRULESFILE"))
+            {
+                previousRulesFile = words[1];
+            } else if (words[0].equals("STRUCTURESRANGE"))
+            {
+                firstStructure = Integer.parseInt(words[1]);
+                lastStructure = Integer.parseInt(words[2]);
             } else if (words[0].equals("REPORT"))
             {
                 report = Integer.parseInt(words[1]);
@@ -544,6 +669,15 @@ public class Parameters
             } else if (words[0].equals("ADDIDTOAPCLASS"))
             {
                 addIDtoAPClass = true;
+            } else if (words[0].equals("NUMTHREADS"))
+            {
+                numThreads = Integer.parseInt(words[1]);
+            } else if (words[0].equals("CHECKPOINTFREQ"))
+            {
+                checkpointFreq = Integer.parseInt(words[1]);
+            } else if (words[0].equals("RESUME"))
+            {
+                resume = true;
 
 /*
             } else if (words[0].equals(""))
@@ -561,6 +695,66 @@ public class Parameters
             killDueToParams("Check Fragments Size Requirements");
         if (rmDuplicates & groupingRotamers)
             killDueToParams("Check keywords: I cannot goup the rotamers if I have to delete the duplicates fragments");
+        if (numThreads < 1)
+            killDueToParams("Keyword 'NUMTHREADS' requires a positive integer");
+        if (addIDtoAPClass && numThreads > 1)
+        {
+            //The unique indexes would depend on the order of execution
+            System.out.println("WARNING! Keyword 'ADDIDTOAPCLASS' requires "
+                              + "serial fragmentation. Using only one thread.");
+            numThreads = 1;
+        }
+        if (checkpointFreq < 0)
+            killDueToParams("Keyword 'CHECKPOINTFREQ' requires a non-negative integer");
+        if (resume && !chopMols)
+        {
+            System.out.println("WARNING! Keyword 'RESUME' requires the "
+                          + "fragmentation. Ignoring it.");
+            resume = false;
+        }
+        if (streaming && !chopMols)
+        {
+            System.out.println("WARNING! Keyword 'STREAMING' requires the "
+                          + "fragmentation. Checks will write their files.");
+            streaming = false;
+        }
+        if (fragCacheDir != null && addIDtoAPClass)
+        {
+            //The classes would depend on the order of execution
+            System.out.println("WARNING! Keyword 'FRAGMENTATIONCACHE' cannot "
+                              + "be used with 'ADDIDTOAPCLASS'. Ignoring it.");
+            fragCacheDir = null;
+        }
+        if (statisticsFreq < 0)
+            killDueToParams("Keyword 'RUNSTATISTICS' requires a non-negative integer");
+        if (progressInterval < 0)
+            killDueToParams("Keyword 'PROGRESS' requires a non-negative integer");
+        if (schedulingWindow < 0)
+            killDueToParams("Keyword 'LARGESTFIRST' requires a non-negative integer");
+        if (largestFirst && numThreads == 1)
+            System.out.println("WARNING! Keyword 'LARGESTFIRST' has no "
+                                      + "effect with a single thread.");
+        if (molTimeBudget < 0.0)
+            killDueToParams("Keyword 'MOLTIMEBUDGET' requires a non-negative number");
+        if (covertLibrary)
+        {
+            for (String f : new String[] {oldFormat, newFormat})
+            {
+                if (!f.equals("DENOPTIM") && !f.equals(FragmentLibrary.FORMAT))
+                    killDueToParams("Keyword 'CONVERTLIBRARY': unknown format '"+f+"'");
+            }
+        }
+        if (previousRulesFile != null && fragCacheDir == null)
+            killDueToParams("Keyword 'PREVIOUSRULESFILE' requires 'FRAGMENTATIONCACHE'");
+        if (firstStructure != 0 || lastStructure != 0)
+        {
+            if (firstStructure < 1 || lastStructure < firstStructure)
+                killDueToParams("Keyword 'STRUCTURESRANGE' requires two positive integers (first <= last)");
+            if (!chopMols)
+                killDueToParams("Keyword 'STRUCTURESRANGE' requires the fragmentation");
+            if (!streaming && (chkFormula || analyzeAndFix || preFiltering))
+                killDueToParams("Keyword 'STRUCTURESRANGE' refers to the structures in 'STRUCTURESFILE': checks of the structures require 'STREAMING'");
+        }
     }
 //------------------------------------------------------------------------------
 
@@ -577,14 +771,61 @@ public class Parameters
 
     public static void setCuttingRules()
     {
+        readCuttingRules(rulesFile,anyAtm,rules,sortedRules);
 
+        //Rules of a previous run, for incremental fragmentation
+        if (previousRulesFile != null)
+            readCuttingRules(previousRulesFile,previousAnyAtm,previousRules,
+                                                          previousSortedRules);
+
+        //Parse the SMARTS queries once for all
+        for (int ir : sortedRules.keySet())
+        {
+            GM3DCuttingRule rule = rules.get(sortedRules.get(ir));
+            rulesQueries.addQuery(rule.getName(),rule.getWholeSMARTSRule());
+            rulesQueries.addQuery(rule.getSubClassName0(),rule.getSMARTSSubClass0());
+            rulesQueries.addQuery(rule.getSubClassName1(),rule.getSMARTSSubClass1());
+        }
+
+        //Also the simplified SMARTS used to resolve ambiguous subclasses.
+        // These are not required to be parsable, as failures are reported
+        // for the single molecule.
+        for (int ir : sortedRules.keySet())
+        {
+            GM3DCuttingRule rule = rules.get(sortedRules.get(ir));
+            List<String> ladder = new ArrayList<String>();
+            ladder.addAll(rule.getSimplerSMARTSSubClass0());
+            ladder.addAll(rule.getSimplerSMARTSSubClass1());
+            for (String simpler : ladder)
+            {
+                String ref = GM3DSMARTS.getQueryRef(simpler);
+                if (!rulesQueries.contains(ref))
+                    rulesQueries.addQuery(ref,simpler,false);
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the any-atom labels and the cutting rules from a rules file
+     * @param file the rules file
+     * @param anyList collector of the any-atom labels
+     * @param ruleMap collector of the rules
+     * @param sorted collector of the rule names sorted by priority
+     */
+
+    private static void readCuttingRules(String file, List<String> anyList,
+                                         Map<String,GM3DCuttingRule> ruleMap,
+                                         SortedMap<Integer,String> sorted)
+    {
         //Store all-atoms rules: the rule's components used to match any element
         ArrayList<String> keyLinesA = new ArrayList<String>();
-        keyLinesA = IOtools.readTXTKeyword(rulesFile,"ANY");
+        keyLinesA = IOtools.readTXTKeyword(file,"ANY");
         if (keyLinesA.size() == 0)
         {
-            anyAtm.add("[$([*;!#1])]");
-            anyAtm.add("[$(*)]");
+            anyList.add("[$([*;!#1])]");
+            anyList.add("[$(*)]");
         } else {
             for (int i = 0; i<keyLinesA.size(); i++)
             {
@@ -592,10 +833,10 @@ public class Parameters
                 {
                     String[] words = keyLinesA.get(i).split("\\s+");
                     String anyAtmRule = words[1]; //rule's component matching any atom
-                    anyAtm.add(anyAtmRule);
+                    anyList.add(anyAtmRule);
                 } catch (Throwable t) {
                     System.out.println("ERROR in getting 'any-atom' labels!");
-                    System.out.println("Chech KEYWORD-labelled line of file \n "+rulesFile+"\n > "+keyLinesA.get(i));
+                    System.out.println("Chech KEYWORD-labelled line of file \n "+file+"\n > "+keyLinesA.get(i));
                     System.out.println("Program will terminate now."+t);
                     t.printStackTrace();
                     System.exit(-1);
@@ -605,7 +846,7 @@ public class Parameters
 
         //Now get the list of cutting rules
         ArrayList<String> keyLines = new ArrayList<String>();
-        keyLines = IOtools.readTXTKeyword(rulesFile,"CTR");
+        keyLines = IOtools.readTXTKeyword(file,"CTR");
         for (int i = 0; i<keyLines.size(); i++)
         {
             try
@@ -639,11 +880,11 @@ public class Parameters
 						priority,  
 						opts);     
 
-		rules.put(name,rule);
+		ruleMap.put(name,rule);
 
 		// ordered list of rules
-                if (!sortedRules.containsKey(priority))
-                    sortedRules.put(priority,name);
+                if (!sorted.containsKey(priority))
+                    sorted.put(priority,name);
                 else {
                     System.out.println("ERROR in getting the cutting rules!");
                     System.out.println("Check priority of rule "+name);
@@ -651,7 +892,7 @@ public class Parameters
                 }
             } catch (Throwable t) {
                 System.out.println("ERROR in getting the cutting rules!");
-                System.out.println("Chech KEYWORD-labelled line number "+(i+1)+" of file \n "+rulesFile+"\n > "+keyLines.get(i));
+                System.out.println("Chech KEYWORD-labelled line number "+(i+1)+" of file \n "+file+"\n > "+keyLines.get(i));
                 System.out.println("Program will terminate now."+t);
                 t.printStackTrace();
                 System.exit(-1);
@@ -674,8 +915,8 @@ public class Parameters
     }
 
 //------------------------------------------------------------------------------
-//TODO prepared for library conversion
-/*    public static String getOldFormat()
+
+    public static String getOldFormat()
     {
         return oldFormat;
     }
@@ -684,7 +925,7 @@ public class Parameters
     public static String getNewFormat()
     {
         return newFormat;
-    }*/
+    }
 //------------------------------------------------------------------------------
 
     public static String getLibFormat()
@@ -725,7 +966,38 @@ public class Parameters
         System.out.println(" - remove duplicates:          "+rmDuplicates);
         System.out.println(" - reorder according to MW:    "+orderMW);
         System.out.println(" - remove intermediate files:  "+removeIntermFiles);
+        System.out.println(" - streaming:                  "+streaming);
         System.out.println(" - reporting on screen level:  "+report);
+        System.out.println(" - number of threads:          "+numThreads);
+        System.out.println(" - checkpoint every (mols):    "+checkpointFreq);
+        System.out.println(" - resume from checkpoint:     "+resume);
+        if (fragCacheDir != null)
+            System.out.println(" - fragmentation cache:        "+fragCacheDir);
+        if (previousRulesFile != null)
+            System.out.println(" - rules of the previous run:  "
+                                                         +previousRulesFile);
+        if (profileRules)
+            System.out.println(" - profile cutting rules:      "+profileRules);
+        if (largestFirst)
+            System.out.println(" - largest first (window):     "
+                                                          +schedulingWindow);
+        if (molTimeBudget > 0.0)
+            System.out.println(" - time budget per mol (s):    "
+                                                             +molTimeBudget);
+        if (progressInterval > 0)
+            System.out.println(" - progress every (s):         "
+                                                          +progressInterval);
+        if (binaryLibrary)
+            System.out.println(" - binary libraries:           "+binaryLibrary);
+        if (covertLibrary)
+            System.out.println(" - convert library:            "+oldFormat
+                                                          +" -> "+newFormat);
+        if (runStatistics)
+            System.out.println(" - statistics every (mols):    "
+                                                            +statisticsFreq);
+        if (firstStructure > 0)
+            System.out.println(" - range of input structures:  "+firstStructure
+                                                         +"-"+lastStructure);
 //        System.out.println(" -   :"+);
         System.out.println("\n # Input files #");
         System.out.println(" 3D structures from file -> "+sdfInFile);
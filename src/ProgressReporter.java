@@ -0,0 +1,239 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Periodic report of the progress of a long-running stage: throughput of
+ * molecules, fragments, and unique fragments, heap usage, and estimated
+ * time to completion based on the position in the input file(s), or in
+ * the slice of the input that is processed.
+ * The stage only publishes its counters with {@link #update}, which
+ * does ordered stores and no other work; the progress line is
+ * computed and printed by a timer thread every
+ * <code>Parameters.progressInterval</code> seconds. When the interval
+ * is zero no timer is started and updates are ignored.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class ProgressReporter
+{
+    //Name of the stage
+    private String stage;
+
+    //Positions (bytes) in the input where the stage begins and ends
+    private long startPosition = 0;
+    private long endPosition = 0;
+
+    //Counters published by the stage: items, fragments, unique fragments,
+    //and position (bytes) in the input
+    private AtomicLongArray counters = new AtomicLongArray(4);
+    private static final int ITEMS = 0;
+    private static final int FRAGS = 1;
+    private static final int UNIQUE = 2;
+    private static final int POSITION = 3;
+
+    //Values at the previous report
+    private long[] previous = new long[4];
+    private long previousTime;
+
+    //Beginning of the stage
+    private long startTime;
+
+    //Timer printing the reports (null if disabled)
+    private Timer timer = null;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Starts reporting the progress of a stage, if requested by
+     * <code>Parameters.progressInterval</code>
+     * @param stage the name of the stage
+     * @param inputFiles the files read by the stage, used to estimate the
+     * time to completion
+     * @return the reporter, to be stopped at the end of the stage
+     */
+
+    public static ProgressReporter start(String stage, String... inputFiles)
+    {
+        ProgressReporter pr = new ProgressReporter();
+        for (String f : inputFiles)
+            pr.endPosition = pr.endPosition + new File(f).length();
+        return pr.begin(stage);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Starts reporting the progress of a stage that processes only a slice
+     * of one input file (e.g., restarting from a checkpoint, or working on
+     * a range of structures), if requested by
+     * <code>Parameters.progressInterval</code>. The time to completion is
+     * estimated from the fraction of the slice that has been processed.
+     * @param stage the name of the stage
+     * @param inputFile the file read by the stage
+     * @param startPosition position (bytes) where the slice begins
+     * @param endPosition position (bytes) where the slice ends, or -1 for
+     * the end of the file
+     * @param startItems number of items preceding the slice
+     * @return the reporter, to be stopped at the end of the stage
+     */
+
+    public static ProgressReporter start(String stage, String inputFile,
+                                      long startPosition, long endPosition,
+                                                            long startItems)
+    {
+        ProgressReporter pr = new ProgressReporter();
+        pr.startPosition = startPosition;
+        pr.endPosition = endPosition;
+        if (endPosition < 0)
+            pr.endPosition = new File(inputFile).length();
+        pr.previous[ITEMS] = startItems;
+        return pr.begin(stage);
+    }
+
+//------------------------------------------------------------------------------
+
+    private ProgressReporter begin(String stage)
+    {
+        this.stage = stage;
+        startTime = System.nanoTime();
+        previousTime = startTime;
+        int interval = Parameters.progressInterval;
+        if (interval > 0)
+        {
+            final ProgressReporter fpr = this;
+            timer = new Timer("ProgressReporter",true);
+            timer.scheduleAtFixedRate(new TimerTask()
+            {
+                public void run()
+                {
+                    fpr.report();
+                }
+            }, interval * 1000L, interval * 1000L);
+        }
+        return this;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Publishes the counters of the stage. Negative values are not
+     * reported.
+     * @param items number of items (molecules or fragments) processed
+     * @param frags number of fragments produced
+     * @param unique number of unique fragments
+     * @param position position (bytes) in the input, for multiple input
+     * files the sum of the sizes of the completed files plus the position
+     * in the current one
+     */
+
+    public void update(long items, long frags, long unique, long position)
+    {
+        if (timer == null)
+            return;
+        counters.lazySet(ITEMS,items);
+        counters.lazySet(FRAGS,frags);
+        counters.lazySet(UNIQUE,unique);
+        counters.lazySet(POSITION,position);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Stops the reports
+     */
+
+    public void stop()
+    {
+        if (timer != null)
+            timer.cancel();
+        timer = null;
+    }
+
+//------------------------------------------------------------------------------
+
+    private void report()
+    {
+        long now = System.nanoTime();
+        double dt = (now - previousTime) / 1.0e9;
+        double elapsed = (now - startTime) / 1.0e9;
+        long[] current = new long[4];
+        for (int i=0; i<current.length; i++)
+            current[i] = counters.get(i);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Progress [").append(stage).append("] ");
+        sb.append(formatTime(elapsed));
+        sb.append(" | ").append(current[ITEMS]).append(" items (");
+        sb.append(rate(current[ITEMS] - previous[ITEMS],dt)).append("/s)");
+        if (current[FRAGS] >= 0)
+        {
+            sb.append(" | ").append(current[FRAGS]).append(" frags (");
+            sb.append(rate(current[FRAGS] - previous[FRAGS],dt));
+            sb.append("/s)");
+        }
+        if (current[UNIQUE] >= 0)
+        {
+            sb.append(" | ").append(current[UNIQUE]).append(" unique (+");
+            sb.append(rate(current[UNIQUE] - previous[UNIQUE],dt));
+            sb.append("/s)");
+        }
+        Runtime rt = Runtime.getRuntime();
+        long usedMB = (rt.totalMemory() - rt.freeMemory()) / 1048576L;
+        sb.append(" | heap ").append(usedMB).append("/");
+        sb.append(rt.maxMemory() / 1048576L).append(" MB");
+        long sliceSize = endPosition - startPosition;
+        long done = current[POSITION] - startPosition;
+        if (sliceSize > 0 && done > 0)
+        {
+            double fraction = Math.min(1.0, (double) done / sliceSize);
+            sb.append(" | ").append(String.format("%.1f",fraction * 100.0));
+            sb.append("% | ETA ");
+            sb.append(formatTime(elapsed * (1.0 - fraction) / fraction));
+        }
+        System.out.println(sb.toString());
+
+        previous = current;
+        previousTime = now;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String rate(long delta, double seconds)
+    {
+        if (seconds <= 0.0)
+            return "-";
+        return String.format("%.1f",delta / seconds);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String formatTime(double seconds)
+    {
+        long s = (long) seconds;
+        return String.format("%d:%02d:%02d",s / 3600,(s / 60) % 60,s % 60);
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,182 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Cost and hit rate of each cutting rule. A profile is filled for each
+ * molecule, by the thread fragmenting it, and then merged into the
+ * profile of the whole run, which is written as a tab-separated table
+ * with one row per rule.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class RuleProfile
+{
+    //Columns
+    public static final int TESTED = 0;
+    public static final int SKIPPED = 1;
+    public static final int MATCHINGTIME = 2;
+    public static final int SUBCLASS0TIME = 3;
+    public static final int SUBCLASS1TIME = 4;
+    public static final int OPTIONSTIME = 5;
+    public static final int MOLSMATCHED = 6;
+    public static final int MATCHES = 7;
+    public static final int MATCHESAFTEROPTIONS = 8;
+    public static final int REJECTEDBYSUBCLASS = 9;
+    public static final int CUTS = 10;
+
+    //Headers of the columns
+    private static final String[] HEADERS = new String[] {"tested",
+             "skipped", "matching_ms", "subClass0_ms", "subClass1_ms",
+             "options_ms", "molsMatched", "matches", "matchesAfterOptions",
+             "rejectedBySubClass", "cuts"};
+
+    //Columns with times (ns, written in ms)
+    private static final int[] TIMECOLUMNS = new int[] {MATCHINGTIME,
+                                   SUBCLASS0TIME, SUBCLASS1TIME, OPTIONSTIME};
+
+    //Values by rule name
+    private Map<String,long[]> values = new HashMap<String,long[]>();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Adds a value to a column of a rule
+     * @param ruleName the name of the rule
+     * @param column the column
+     * @param value the value to add
+     */
+
+    public void add(String ruleName, int column, long value)
+    {
+        getValues(ruleName)[column] += value;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Adds all the values of another profile to this one
+     * @param other the other profile
+     */
+
+    public void merge(RuleProfile other)
+    {
+        for (Map.Entry<String,long[]> e : other.values.entrySet())
+        {
+            long[] mine = getValues(e.getKey());
+            for (int i=0; i<HEADERS.length; i++)
+                mine[i] += e.getValue()[i];
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private long[] getValues(String ruleName)
+    {
+        long[] v = values.get(ruleName);
+        if (v == null)
+        {
+            v = new long[HEADERS.length];
+            values.put(ruleName,v);
+        }
+        return v;
+    }
+
+//------------------------------------------------------------------------------
+
+    private long getTotalTime(String ruleName)
+    {
+        long total = 0;
+        for (int col : TIMECOLUMNS)
+            total = total + getValues(ruleName)[col];
+        return total;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the profile as a tab-separated table, with the most expensive
+     * rules first
+     * @param fileName the name of the file
+     * @param rules the cutting rules
+     * @param sortedRules the names of the cutting rules sorted by priority
+     */
+
+    public void write(String fileName, Map<String,GM3DCuttingRule> rules,
+                                         SortedMap<Integer,String> sortedRules)
+    {
+        final Map<String,Integer> priorities = new HashMap<String,Integer>();
+        for (Integer priority : sortedRules.keySet())
+            priorities.put(sortedRules.get(priority),priority);
+
+        List<String> names = new ArrayList<String>(rules.keySet());
+        Collections.sort(names,new Comparator<String>()
+        {
+            public int compare(String a, String b)
+            {
+                long ta = getTotalTime(a);
+                long tb = getTotalTime(b);
+                if (ta != tb)
+                    return ta > tb ? -1 : 1;
+                return priorities.get(a).compareTo(priorities.get(b));
+            }
+        });
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("rule\tpriority\ttotal_ms");
+        for (String header : HEADERS)
+            sb.append("\t").append(header);
+        sb.append("\thitRate\n");
+        for (String name : names)
+        {
+            long[] v = getValues(name);
+            sb.append(name).append("\t").append(priorities.get(name));
+            sb.append("\t").append(toMs(getTotalTime(name)));
+            for (int i=0; i<HEADERS.length; i++)
+            {
+                boolean isTime = false;
+                for (int col : TIMECOLUMNS)
+                    isTime = isTime || col == i;
+                sb.append("\t").append(isTime ? toMs(v[i]) :
+                                                       String.valueOf(v[i]));
+            }
+            long all = v[TESTED] + v[SKIPPED];
+            double hitRate = all == 0 ? 0.0 : (double) v[MOLSMATCHED] / all;
+            sb.append("\t").append(String.format("%.4f",hitRate));
+            sb.append("\n");
+        }
+        IOtools.writeTXTAppend(fileName,sb.toString(),false);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String toMs(long ns)
+    {
+        return String.format("%.3f",ns / 1.0e6);
+    }
+
+//------------------------------------------------------------------------------
+}
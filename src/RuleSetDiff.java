@@ -0,0 +1,135 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Differences between two sets of cutting rules. Rules are identified by
+ * name and compared by SMARTS, priority, and options. The outcome of the
+ * fragmentation of a molecule can change only if the molecule matches
+ * a rule that has been added, removed, or modified, or if the labels
+ * matching any atom have changed.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class RuleSetDiff
+{
+    //Names of the rules that are only in the new set
+    private Set<String> added = new TreeSet<String>();
+
+    //Names of the rules that are only in the old set
+    private Set<String> removed = new TreeSet<String>();
+
+    //Names of the rules that differ between the two sets
+    private Set<String> modified = new TreeSet<String>();
+
+    //Flag: the any-atom labels differ
+    private boolean anyChanged = false;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares two sets of cutting rules
+     * @param oldRules the old rules
+     * @param oldAny the old any-atom labels
+     * @param newRules the new rules
+     * @param newAny the new any-atom labels
+     */
+
+    public RuleSetDiff(Map<String,GM3DCuttingRule> oldRules,
+                       List<String> oldAny,
+                       Map<String,GM3DCuttingRule> newRules,
+                       List<String> newAny)
+    {
+        for (String name : newRules.keySet())
+        {
+            if (!oldRules.containsKey(name))
+                added.add(name);
+            else if (!oldRules.get(name).toString().equals(
+                                              newRules.get(name).toString()))
+                modified.add(name);
+        }
+        for (String name : oldRules.keySet())
+        {
+            if (!newRules.containsKey(name))
+                removed.add(name);
+        }
+        anyChanged = !oldAny.equals(newAny);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param matchedOldRules the rules matched by a molecule in the old set
+     * @return <code>true</code> if the molecule matched a rule that has
+     * been removed or modified, or if the any-atom labels have changed
+     */
+
+    public boolean affects(Collection<String> matchedOldRules)
+    {
+        if (anyChanged)
+            return true;
+        for (String name : matchedOldRules)
+        {
+            if (removed.contains(name) || modified.contains(name))
+                return true;
+        }
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the names of the new rules that have to be matched to decide
+     * if a molecule is affected: the added and modified ones
+     */
+
+    public Set<String> getRulesToMatch()
+    {
+        Set<String> names = new TreeSet<String>(added);
+        names.addAll(modified);
+        return names;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return <code>true</code> if the two sets are equivalent
+     */
+
+    public boolean isEmpty()
+    {
+        return !anyChanged && added.isEmpty() && removed.isEmpty()
+                                                       && modified.isEmpty();
+    }
+
+//------------------------------------------------------------------------------
+
+    public String toString()
+    {
+        return "added "+added+", removed "+removed+", modified "+modified
+                                        +(anyChanged ? ", any-atom labels" : "");
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,340 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Statistics of a fragmentation run: distribution of the time spent in
+ * each stage (see <code>StageTimes</code>) and per molecule, counters,
+ * and the slowest molecules. Distributions are kept in histograms with
+ * logarithmic bins (5% width), so the memory does not depend on the
+ * number of molecules. The report is written in JSON (everything) and
+ * CSV (distributions only) formats. Not thread-safe: results must be
+ * recorded by one thread, i.e., the one storing the results.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class RunStatistics
+{
+    //Distributions of the time spent in each stage and per molecule
+    private Histogram[] stages = new Histogram[StageTimes.NAMES.length];
+    private Histogram molecules = new Histogram();
+
+    //Counters
+    private Map<String,Long> counters = new LinkedHashMap<String,Long>();
+
+    //Slowest molecules, the fastest of which on top
+    private PriorityQueue<SlowMolecule> slowest;
+
+    //Max number of slowest molecules to report
+    private static final int NUMSLOWEST = 20;
+
+    //Time of the beginning of the run
+    private long startTime = System.nanoTime();
+
+    //Name of the distribution of the time per molecule
+    private static final String MOLECULE = "molecule";
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Time spent on a single molecule
+     */
+
+    private static class SlowMolecule
+    {
+        int molIdx;
+        String name;
+        StageTimes times;
+        long total;
+
+        SlowMolecule(FragmentationResult res)
+        {
+            this.molIdx = res.getMolIndex();
+            this.name = res.getName();
+            this.times = res.getStageTimes();
+            this.total = times.getTotal();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Distribution of times in bins of logarithmic width
+     */
+
+    private static class Histogram
+    {
+        //Bin i collects times t with BASE^i <= t < BASE^(i+1) (ns)
+        static final double BASE = 1.05;
+        static final double LOGBASE = Math.log(BASE);
+        long[] bins = new long[800];
+        long count = 0;
+        long sum = 0;
+        long max = 0;
+
+        void add(long t)
+        {
+            int bin = t < 1 ? 0 : (int) (Math.log(t) / LOGBASE);
+            bins[Math.min(bin,bins.length - 1)]++;
+            count++;
+            sum = sum + t;
+            max = Math.max(max,t);
+        }
+
+        /**
+         * @return the upper limit of the bin containing the given
+         * percentile, or the maximum if this is lower
+         */
+        long getPercentile(double p)
+        {
+            if (count == 0)
+                return 0;
+            long rank = (long) Math.ceil(p / 100.0 * count);
+            long seen = 0;
+            for (int i=0; i<bins.length; i++)
+            {
+                seen = seen + bins[i];
+                if (seen >= rank)
+                    return Math.min(max,(long) Math.pow(BASE,i + 1));
+            }
+            return max;
+        }
+
+        double getMean()
+        {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public RunStatistics()
+    {
+        for (int i=0; i<stages.length; i++)
+            stages[i] = new Histogram();
+        slowest = new PriorityQueue<SlowMolecule>(NUMSLOWEST + 1,
+                                                new Comparator<SlowMolecule>()
+        {
+            public int compare(SlowMolecule a, SlowMolecule b)
+            {
+                return a.total < b.total ? -1 : (a.total > b.total ? 1 : 0);
+            }
+        });
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Records the times and outcome of a molecule that has been stored
+     * @param res the outcome of the fragmentation of the molecule
+     */
+
+    public void record(FragmentationResult res)
+    {
+        StageTimes times = res.getStageTimes();
+        for (int i=0; i<stages.length; i++)
+        {
+            if (times.isDone(i))
+                stages[i].add(times.get(i));
+        }
+        molecules.add(times.getTotal());
+
+        slowest.add(new SlowMolecule(res));
+        if (slowest.size() > NUMSLOWEST)
+            slowest.poll();
+
+        count("molecules",1);
+        if (res.isCompleted())
+            count("completed",1);
+        if (res.getRejectedMols().size() > 0)
+            count("rejected",1);
+        if (res.getFailure() != null)
+            count("failed",1);
+        if (res.is2D())
+            count("2D",1);
+        if (res.getTimedOutStage() >= 0)
+            count("timedOut",1);
+        count("fragmentsKept",res.getFragments().size());
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Increments a counter
+     * @param name the name of the counter
+     * @param delta the increment
+     */
+
+    public void count(String name, long delta)
+    {
+        Long value = counters.get(name);
+        counters.put(name,(value == null ? 0 : value) + delta);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Sets the value of a counter
+     * @param name the name of the counter
+     * @param value the value
+     */
+
+    public void setCounter(String name, long value)
+    {
+        counters.put(name,value);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the report in JSON and CSV formats. Existing files are
+     * overwritten.
+     * @param jsonFile the name of the JSON file
+     * @param csvFile the name of the CSV file
+     */
+
+    public void writeReport(String jsonFile, String csvFile)
+    {
+        IOtools.writeTXTAppend(jsonFile,toJSON(),false);
+        IOtools.writeTXTAppend(csvFile,toCSV(),false);
+    }
+
+//------------------------------------------------------------------------------
+
+    private String toJSON()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\n");
+        sb.append("  \"elapsed_s\": ").append(String.format("%.3f",
+                              (System.nanoTime() - startTime) / 1.0e9));
+        sb.append(",\n  \"counters\": {");
+        boolean first = true;
+        for (String name : counters.keySet())
+        {
+            sb.append(first ? "" : ",");
+            sb.append("\n    ").append(quote(name)).append(": ");
+            sb.append(counters.get(name));
+            first = false;
+        }
+        sb.append("\n  },\n  \"stages\": [");
+        for (int i=0; i<stages.length; i++)
+        {
+            sb.append(i == 0 ? "\n    " : ",\n    ");
+            appendJSON(sb,StageTimes.NAMES[i],stages[i]);
+        }
+        sb.append(",\n    ");
+        appendJSON(sb,MOLECULE,molecules);
+        sb.append("\n  ],\n  \"slowest\": [");
+        List<SlowMolecule> list = getSlowest();
+        for (int j=0; j<list.size(); j++)
+        {
+            SlowMolecule sm = list.get(j);
+            sb.append(j == 0 ? "\n    " : ",\n    ");
+            sb.append("{\"index\": ").append(sm.molIdx);
+            sb.append(", \"name\": ").append(quote(sm.name));
+            sb.append(", \"total_ms\": ").append(toMs(sm.total));
+            for (int i=0; i<stages.length; i++)
+            {
+                if (!sm.times.isDone(i))
+                    continue;
+                sb.append(", ").append(quote(StageTimes.NAMES[i]+"_ms"));
+                sb.append(": ").append(toMs(sm.times.get(i)));
+            }
+            sb.append("}");
+        }
+        sb.append("\n  ]\n}\n");
+        return sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+
+    private void appendJSON(StringBuilder sb, String name, Histogram h)
+    {
+        sb.append("{\"name\": ").append(quote(name));
+        sb.append(", \"count\": ").append(h.count);
+        sb.append(", \"total_ms\": ").append(toMs(h.sum));
+        sb.append(", \"mean_ms\": ").append(toMs(h.getMean()));
+        sb.append(", \"p50_ms\": ").append(toMs(h.getPercentile(50)));
+        sb.append(", \"p90_ms\": ").append(toMs(h.getPercentile(90)));
+        sb.append(", \"p99_ms\": ").append(toMs(h.getPercentile(99)));
+        sb.append(", \"max_ms\": ").append(toMs(h.max)).append("}");
+    }
+
+//------------------------------------------------------------------------------
+
+    private String toCSV()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append("stage,count,total_ms,mean_ms,p50_ms,p90_ms,p99_ms,max_ms\n");
+        for (int i=0; i<stages.length; i++)
+            appendCSV(sb,StageTimes.NAMES[i],stages[i]);
+        appendCSV(sb,MOLECULE,molecules);
+        return sb.toString();
+    }
+
+//------------------------------------------------------------------------------
+
+    private void appendCSV(StringBuilder sb, String name, Histogram h)
+    {
+        sb.append(name).append(",").append(h.count);
+        sb.append(",").append(toMs(h.sum));
+        sb.append(",").append(toMs(h.getMean()));
+        sb.append(",").append(toMs(h.getPercentile(50)));
+        sb.append(",").append(toMs(h.getPercentile(90)));
+        sb.append(",").append(toMs(h.getPercentile(99)));
+        sb.append(",").append(toMs(h.max)).append("\n");
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the slowest molecules, the slowest first
+     */
+
+    private List<SlowMolecule> getSlowest()
+    {
+        List<SlowMolecule> list = new ArrayList<SlowMolecule>(slowest);
+        Collections.sort(list,Collections.reverseOrder(slowest.comparator()));
+        return list;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String toMs(double ns)
+    {
+        return String.format("%.3f",ns / 1.0e6);
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String quote(String s)
+    {
+        s = String.valueOf(s);
+        return "\"" + s.replace("\\","\\\\").replace("\"","\\\"") + "\"";
+    }
+
+//------------------------------------------------------------------------------
+}
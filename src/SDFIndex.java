@@ -0,0 +1,516 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+import java.util.Arrays;
+
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.tools.manipulator.MolecularFormulaManipulator;
+
+/**
+ * Index of the records of an SDF file. For each record the index stores
+ * the position and length (in bytes) in the file, the title, the number of
+ * atoms, the <code>ISOMER</code> property, and the molecular weight.
+ * The index is kept in a sidecar file (the name of the SDF file plus
+ * <code>.idx</code>) that is built once and re-used as long as the SDF file
+ * is not changed. With the index any record can be read without reading
+ * the preceding ones, and a slice of the file can be given to a reader
+ * without copying it into a separate file.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class SDFIndex
+{
+    //Name of the SDF file
+    private String sdfFile;
+
+    //Data of the records
+    private int size = 0;
+    private long[] offsets = new long[1024];
+    private long[] lengths = new long[1024];
+    private int[] atomCounts = new int[1024];
+    private double[] mws = new double[1024];
+    private String[] isomers = new String[1024];
+    private String[] titles = new String[1024];
+
+    //Extension of the sidecar file
+    private static final String EXTENSION = ".idx";
+
+    //Keyword for the description of the SDF file
+    private static final String SOURCEKEY = "SOURCE";
+
+    //Keyword for the number of records, which closes a complete sidecar file
+    private static final String ENDKEY = "END";
+
+    //Placeholder for missing ISOMER property
+    private static final String NOISOMER = "-";
+
+//------------------------------------------------------------------------------
+
+    private SDFIndex(String sdfFile)
+    {
+        this.sdfFile = sdfFile;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Get the index of an SDF file. The index is read from the sidecar
+     * file, if this exists and refers to the present version of the SDF
+     * file, or is built and written to the sidecar file.
+     * @param sdfFile the SDF file
+     * @return the index of the records in <code>sdfFile</code>
+     */
+
+    public static SDFIndex getIndex(String sdfFile)
+    {
+        String idxFile = getFileName(sdfFile);
+        SDFIndex index = null;
+        if (new File(idxFile).exists())
+            index = read(sdfFile,idxFile);
+        if (index == null)
+        {
+            index = build(sdfFile);
+            index.write(idxFile);
+        }
+        return index;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param sdfFile the SDF file
+     * @return the name of the sidecar file of <code>sdfFile</code>
+     */
+
+    public static String getFileName(String sdfFile)
+    {
+        return sdfFile + EXTENSION;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Builds the index by reading all the records of an SDF file
+     * @param sdfFile the SDF file
+     * @return the index
+     */
+
+    public static SDFIndex build(String sdfFile)
+    {
+        SDFIndex index = new SDFIndex(sdfFile);
+        try {
+            SDFRecordReader reader = new SDFRecordReader(sdfFile,
+                                                      Parameters.numThreads);
+            while (reader.hasNext())
+            {
+                IAtomContainer mol = reader.next();
+                Object isomer = mol.getProperty("ISOMER");
+                Object title = mol.getProperty("cdk:Title");
+                index.add(reader.getLastRecordOffset(),
+                          reader.getLastRecordLength(),
+                          mol.getAtomCount(),
+                          getMolecularWeight(mol),
+                          isomer == null ? NOISOMER : isomer.toString(),
+                          title == null ? "" : title.toString());
+            }
+            reader.close();
+        } catch (Throwable t) {
+            System.err.println("ERROR! Unable to index SDF file "+sdfFile
+                                                                   +". "+t);
+            System.exit(-1);
+        }
+        return index;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the sidecar file
+     * @return the index or <code>null</code> if the sidecar file does not
+     * refer to the present version of the SDF file, is incomplete, or
+     * cannot be read
+     */
+
+    private static SDFIndex read(String sdfFile, String idxFile)
+    {
+        File sdf = new File(sdfFile);
+        SDFIndex index = new SDFIndex(sdfFile);
+        BufferedReader br = null;
+        try {
+            br = new BufferedReader(new FileReader(idxFile));
+            String line = br.readLine();
+            while (line != null && line.startsWith("#"))
+                line = br.readLine();
+            if (line == null)
+                return null;
+            String[] words = line.split("\t");
+            if (!words[0].equals(SOURCEKEY)
+                || Long.parseLong(words[1]) != sdf.length()
+                || Long.parseLong(words[2]) != sdf.lastModified())
+            {
+                return null;
+            }
+            boolean complete = false;
+            while ((line = br.readLine()) != null)
+            {
+                words = line.split("\t",6);
+                if (words[0].equals(ENDKEY))
+                {
+                    complete = Integer.parseInt(words[1]) == index.size
+                                                 && br.readLine() == null;
+                    break;
+                }
+                if (words.length != 6)
+                    break;
+                index.add(Long.parseLong(words[0]),
+                          Long.parseLong(words[1]),
+                          Integer.parseInt(words[2]),
+                          Double.parseDouble(words[3]),
+                          words[4],
+                          words[5]);
+            }
+            if (!complete)
+            {
+                System.out.println("WARNING! Incomplete index file "+idxFile
+                                                   +". Rebuilding the index.");
+                return null;
+            }
+        } catch (Throwable t) {
+            System.out.println("WARNING! Unable to read index file "+idxFile
+                                           +" ("+t+"). Rebuilding the index.");
+            return null;
+        } finally {
+            try {
+                if (br != null)
+                    br.close();
+            } catch (IOException ioe) {
+                System.err.println("Error in reading: " + ioe);
+            }
+        }
+        return index;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the sidecar file. The file is first written with a temporary
+     * name, unique to this process, and then renamed, so that no reader
+     * sees it while incomplete, even when several jobs index the same SDF
+     * file at the same time.
+     * A failure does not affect the index, which will be rebuilt next time.
+     */
+
+    private void write(String idxFile)
+    {
+        File sdf = new File(sdfFile);
+        File tmp = null;
+        boolean written = false;
+        BufferedWriter bw = null;
+        try {
+            File idxDir = new File(idxFile).getAbsoluteFile().getParentFile();
+            tmp = File.createTempFile(new File(idxFile).getName()+".",".tmp",
+                                                                      idxDir);
+            bw = new BufferedWriter(new FileWriter(tmp,false));
+            bw.write("# Index of SDF file "+sdfFile);
+            bw.newLine();
+            bw.write("# offset length atoms MW ISOMER title");
+            bw.newLine();
+            bw.write(SOURCEKEY+"\t"+sdf.length()+"\t"+sdf.lastModified());
+            bw.newLine();
+            for (int i=0; i<size; i++)
+            {
+                bw.write(offsets[i]+"\t"+lengths[i]+"\t"+atomCounts[i]+"\t"
+                         +mws[i]+"\t"+isomers[i]+"\t"+titles[i]);
+                bw.newLine();
+            }
+            bw.write(ENDKEY+"\t"+size);
+            bw.newLine();
+            bw.close();
+            bw = null;
+            written = true;
+        } catch (Throwable t) {
+            System.out.println("WARNING! Unable to write index file "+idxFile
+                                                                 +". "+t);
+        } finally {
+            try {
+                if (bw != null)
+                    bw.close();
+            } catch (IOException ioe) {
+                System.out.println("WARNING! Unable to write index file "
+                                                       +idxFile+". "+ioe);
+            }
+        }
+
+        if (!written)
+        {
+            if (tmp != null)
+                tmp.delete();
+            return;
+        }
+        File idx = new File(idxFile);
+        if (!tmp.renameTo(idx))
+        {
+            idx.delete();
+            if (!tmp.renameTo(idx))
+            {
+                System.out.println("WARNING! Unable to write index file "
+                                                                  +idxFile);
+                tmp.delete();
+            }
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    private void add(long offset, long length, int atoms, double mw,
+                                                  String isomer, String title)
+    {
+        if (size == offsets.length)
+        {
+            int newSize = 2 * size;
+            offsets = Arrays.copyOf(offsets,newSize);
+            lengths = Arrays.copyOf(lengths,newSize);
+            atomCounts = Arrays.copyOf(atomCounts,newSize);
+            mws = Arrays.copyOf(mws,newSize);
+            isomers = Arrays.copyOf(isomers,newSize);
+            titles = Arrays.copyOf(titles,newSize);
+        }
+        offsets[size] = offset;
+        lengths[size] = length;
+        atomCounts[size] = atoms;
+        mws[size] = mw;
+        isomers[size] = isomer;
+        titles[size] = title.replaceAll("[\t\n\r]"," ");
+        size++;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Calculates the molecular weight as done for sorting libraries
+     * (see <code>MWComparator</code>)
+     * @return the molecular weight or -1 if it cannot be calculated
+     */
+
+    private static double getMolecularWeight(IAtomContainer mol)
+    {
+        double mw = -1.0;
+        try {
+            mw = MolecularFormulaManipulator.getNaturalExactMass(
+                     MolecularFormulaManipulator.getMolecularFormula(mol));
+        } catch (Throwable t) {
+            mw = -1.0;
+        }
+        return mw;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the name of the indexed SDF file
+     */
+
+    public String getSDFFile()
+    {
+        return sdfFile;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of records
+     */
+
+    public int size()
+    {
+        return size;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the position (in bytes) of the record in the file
+     */
+
+    public long getOffset(int i)
+    {
+        checkIndex(i);
+        return offsets[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the length (in bytes) of the record including the
+     * end-of-record line
+     */
+
+    public long getLength(int i)
+    {
+        checkIndex(i);
+        return lengths[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the position (in bytes) following the end of the record
+     */
+
+    public long getEndOffset(int i)
+    {
+        checkIndex(i);
+        return offsets[i] + lengths[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the title of the record
+     */
+
+    public String getTitle(int i)
+    {
+        checkIndex(i);
+        return titles[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the number of atoms
+     */
+
+    public int getAtomCount(int i)
+    {
+        checkIndex(i);
+        return atomCounts[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the <code>ISOMER</code> property or <code>null</code> if
+     * the record has no such property
+     */
+
+    public String getIsomer(int i)
+    {
+        checkIndex(i);
+        if (isomers[i].equals(NOISOMER))
+            return null;
+        return isomers[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the molecular weight or -1 if it could not be calculated
+     */
+
+    public double getMW(int i)
+    {
+        checkIndex(i);
+        return mws[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads a single record
+     * @param i the index of the record (0-based)
+     * @return the molecule
+     */
+
+    public IAtomContainer getMolecule(int i)
+    {
+        checkIndex(i);
+        IAtomContainer mol = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(sdfFile,"r");
+            byte[] record = new byte[(int) lengths[i]];
+            raf.seek(offsets[i]);
+            raf.readFully(record);
+            mol = SDFRecordReader.parseRecord(record);
+        } catch (Throwable t) {
+            System.err.println("ERROR! Unable to read record "+i+" of "
+                                                            +sdfFile+". "+t);
+            System.exit(-1);
+        } finally {
+            try {
+                if (raf != null)
+                    raf.close();
+            } catch (IOException ioe) {
+                System.err.println("Error in reading: " + ioe);
+            }
+        }
+        if (mol == null)
+        {
+            System.err.println("ERROR! Unable to read record "+i+" of "
+                                                                   +sdfFile);
+            System.exit(-1);
+        }
+        return mol;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens a reader for a slice of consecutive records
+     * @param first the index of the first record (0-based)
+     * @param last the index of the last record (0-based, inclusive)
+     * @return the reader of the records from <code>first</code> to
+     * <code>last</code>
+     * @throws IOException if the file cannot be opened
+     */
+
+    public SDFRecordReader getReader(int first, int last) throws IOException
+    {
+        checkIndex(first);
+        checkIndex(last);
+        return new SDFRecordReader(sdfFile,getOffset(first),getEndOffset(last));
+    }
+
+//------------------------------------------------------------------------------
+
+    private void checkIndex(int i)
+    {
+        if (i < 0 || i >= size)
+            throw new IndexOutOfBoundsException("Record "+i+" not in index of "
+                                      +sdfFile+" ("+size+" records)");
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,439 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.InputStream;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.StringReader;
+import java.io.IOException;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import org.openscience.cdk.DefaultChemObjectBuilder;
+import org.openscience.cdk.interfaces.IAtomContainer;
+import org.openscience.cdk.io.iterator.IteratingMDLReader;
+
+/**
+ * Iterator over the molecules of an SDF file that keeps track of the
+ * position (in bytes) of each record in the file. The reading can start
+ * from any position where a record begins, so that a file can be read
+ * again skipping the records that have been processed already.
+ * Each record is parsed by CDK's <code>IteratingMDLReader</code>.
+ * <p>
+ * When more than one thread is requested, the file is mapped in memory
+ * and scanned by the <code>SDFRecordScanner</code>, and the records are
+ * parsed by a pool of threads ahead of the consumer. The molecules are
+ * returned in the order of the file anyway.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class SDFRecordReader implements Iterator<IAtomContainer>
+{
+    //Name of the file
+    private String filename;
+
+    //Stream of bytes from the file
+    private InputStream in;
+
+    //Position of the next byte to read from the stream
+    private long position;
+
+    //Position where reading stops (-1 for end of file)
+    private long endOffset = -1;
+
+    //Record read but not yet returned
+    private IAtomContainer nextMol = null;
+    private long nextRecordStart = -1;
+    private long nextRecordLength = 0;
+
+    //Flag: no more records
+    private boolean endOfFile = false;
+
+    //Position and length of the last returned record
+    private long lastRecordStart = -1;
+    private long lastRecordLength = 0;
+
+    //Size (bytes) of the buffer
+    private static final int BUFFERSIZE = 65536;
+
+    //Parallel reading: records found in the mapped file, index of the
+    //next record to parse, and records being parsed
+    private SDFRecordScanner scanner = null;
+    private ExecutorService pool = null;
+    private int nextToParse = 0;
+    private int nextToReturn = 0;
+    private LinkedList<Future<IAtomContainer>> parsing =
+                                       new LinkedList<Future<IAtomContainer>>();
+
+    //Max number of records parsed ahead per each thread
+    private static final int RECORDSPERTHREAD = 8;
+
+    //End of record line
+    private static final String ENDOFRECORD = "$$$$";
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens an SDF file for reading from the beginning
+     * @param filename the SDF file
+     * @throws IOException if the file cannot be opened
+     */
+
+    public SDFRecordReader(String filename) throws IOException
+    {
+        this(filename,0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens an SDF file for reading from a given position
+     * @param filename the SDF file
+     * @param offset the position (in bytes) of the beginning of the first
+     * record to read
+     * @throws IOException if the file cannot be opened
+     */
+
+    public SDFRecordReader(String filename, long offset) throws IOException
+    {
+        this(filename,offset,-1);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens an SDF file for reading the records between two positions
+     * @param filename the SDF file
+     * @param offset the position (in bytes) of the beginning of the first
+     * record to read
+     * @param endOffset the position (in bytes) where reading stops, which
+     * should be the end of a record, or -1 to read up to the end of the file
+     * @throws IOException if the file cannot be opened
+     */
+
+    public SDFRecordReader(String filename, long offset, long endOffset)
+                                                            throws IOException
+    {
+        this(filename,offset,endOffset,1);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens an SDF file for reading from the beginning with many threads
+     * @param filename the SDF file
+     * @param numThreads the number of threads finding and parsing records
+     * @throws IOException if the file cannot be opened
+     */
+
+    public SDFRecordReader(String filename, int numThreads) throws IOException
+    {
+        this(filename,0,-1,numThreads);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Opens an SDF file for reading the records between two positions
+     * @param filename the SDF file
+     * @param offset the position (in bytes) of the beginning of the first
+     * record to read
+     * @param endOffset the position (in bytes) where reading stops, which
+     * should be the end of a record, or -1 to read up to the end of the file
+     * @param numThreads the number of threads finding and parsing records.
+     * With one thread the file is read as a stream
+     * @throws IOException if the file cannot be opened
+     */
+
+    public SDFRecordReader(String filename, long offset, long endOffset,
+                                          int numThreads) throws IOException
+    {
+        this.filename = filename;
+        this.endOffset = endOffset;
+        this.position = offset;
+        this.lastRecordStart = offset;
+        if (numThreads > 1)
+        {
+            scanner = new SDFRecordScanner(filename,offset,endOffset,
+                                                                 numThreads);
+            pool = Executors.newFixedThreadPool(numThreads,new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    //Do not prevent the exit of the program
+                    Thread t = new Thread(r);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+            parseAhead(RECORDSPERTHREAD * numThreads);
+        } else {
+            FileInputStream fis = new FileInputStream(filename);
+            fis.getChannel().position(offset);
+            this.in = new BufferedInputStream(fis,BUFFERSIZE);
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    public boolean hasNext()
+    {
+        if (nextMol == null && !endOfFile && scanner != null)
+        {
+            takeParsed();
+        }
+        else if (nextMol == null && !endOfFile)
+        {
+            byte[] record = null;
+            try {
+                record = readRecord();
+            } catch (IOException ioe) {
+                throw new IllegalStateException("Cannot read SDF file "
+                                                         +filename,ioe);
+            }
+            if (record != null)
+            {
+                nextMol = parseRecord(record);
+                if (nextMol == null)
+                {
+                    //Like IteratingMDLReader, stop at an unreadable record
+                    System.err.println("\nERROR! Unable to read the record "
+                               + "starting at byte "+nextRecordStart+" of "
+                               + filename+". Reading stops here.");
+                    endOfFile = true;
+                }
+            }
+        }
+        return nextMol != null;
+    }
+
+//------------------------------------------------------------------------------
+
+    public IAtomContainer next()
+    {
+        if (!hasNext())
+            throw new NoSuchElementException();
+
+        IAtomContainer mol = nextMol;
+        lastRecordStart = nextRecordStart;
+        lastRecordLength = nextRecordLength;
+        nextMol = null;
+        return mol;
+    }
+
+//------------------------------------------------------------------------------
+
+    public void remove()
+    {
+        throw new UnsupportedOperationException();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position (in bytes) where the record following the last
+     * returned one begins. This is the offset to use to read the rest of
+     * the file with a new reader.
+     */
+
+    public long getOffset()
+    {
+        return lastRecordStart + lastRecordLength;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the position (in bytes) of the last returned record
+     */
+
+    public long getLastRecordOffset()
+    {
+        return lastRecordStart;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the length (in bytes) of the last returned record, including
+     * the end-of-record line
+     */
+
+    public long getLastRecordLength()
+    {
+        return lastRecordLength;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Closes the file
+     * @throws IOException if the file cannot be closed
+     */
+
+    public void close() throws IOException
+    {
+        if (pool != null)
+            pool.shutdownNow();
+        if (in != null)
+            in.close();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Submits records to the parsing threads
+     * @param num the number of records to submit
+     */
+
+    private void parseAhead(int num)
+    {
+        for (int i=0; i<num && nextToParse<scanner.size(); i++)
+        {
+            final int idx = nextToParse;
+            parsing.add(pool.submit(new Callable<IAtomContainer>()
+            {
+                public IAtomContainer call()
+                {
+                    return parseRecord(scanner.getRecord(idx));
+                }
+            }));
+            nextToParse++;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Waits for the parsing of the next record and submits a new one
+     */
+
+    private void takeParsed()
+    {
+        if (parsing.isEmpty())
+        {
+            endOfFile = true;
+            pool.shutdown();
+            return;
+        }
+        int idx = nextToReturn;
+        nextToReturn++;
+        try {
+            nextMol = parsing.removeFirst().get();
+        } catch (Throwable t) {
+            nextMol = null;
+        }
+        nextRecordStart = scanner.getOffset(idx);
+        nextRecordLength = scanner.getLength(idx);
+        parseAhead(1);
+        if (nextMol == null)
+        {
+            //Like IteratingMDLReader, stop at an unreadable record
+            System.err.println("\nERROR! Unable to read the record "
+                       + "starting at byte "+nextRecordStart+" of "
+                       + filename+". Reading stops here.");
+            endOfFile = true;
+            pool.shutdownNow();
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the bytes of the next record up to, and including, the
+     * end-of-record line. Any trailing text that contains only white spaces
+     * is not considered a record.
+     * @return the bytes of the record or <code>null</code> if there are no
+     * more records
+     */
+
+    private byte[] readRecord() throws IOException
+    {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        long start = position;
+        boolean onlyBlanks = true;
+        int b;
+        while ((endOffset < 0 || position < endOffset) && (b = in.read()) != -1)
+        {
+            position++;
+            line.write(b);
+            if (b != '\n')
+                continue;
+
+            String txt = line.toString().trim();
+            line.writeTo(record);
+            line.reset();
+            if (txt.length() > 0)
+                onlyBlanks = false;
+            if (txt.equals(ENDOFRECORD))
+            {
+                nextRecordStart = start;
+                nextRecordLength = record.size();
+                return record.toByteArray();
+            }
+        }
+
+        //End of file or slice: last record may lack the end-of-record line
+        endOfFile = true;
+        if (line.toString().trim().length() > 0)
+            onlyBlanks = false;
+        line.writeTo(record);
+        if (onlyBlanks)
+            return null;
+        nextRecordStart = start;
+        nextRecordLength = record.size();
+        return record.toByteArray();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parse a single record
+     * @param record the bytes of the record
+     * @return the molecule or <code>null</code> if the record could not be
+     * read
+     */
+
+    public static IAtomContainer parseRecord(byte[] record)
+    {
+        IAtomContainer mol = null;
+        try {
+            IteratingMDLReader reader = new IteratingMDLReader(
+                                   new StringReader(new String(record)),
+                                   DefaultChemObjectBuilder.getInstance());
+            if (reader.hasNext())
+                mol = (IAtomContainer) reader.next();
+            reader.close();
+        } catch (Throwable t) {
+            mol = null;
+        }
+        return mol;
+    }
+
+//------------------------------------------------------------------------------
+}
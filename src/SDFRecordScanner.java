@@ -0,0 +1,331 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.RandomAccessFile;
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Finds the records of an SDF file by mapping the file in memory and
+ * searching the end-of-record lines (<code>$$$$</code>) in chunks of the
+ * file that are scanned in parallel. The bytes of each record can then be
+ * copied from the mapped file by any thread. Records are defined as in
+ * <code>SDFRecordReader</code>.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class SDFRecordScanner
+{
+    //Name of the file
+    private String filename;
+
+    //Mapped portions of the file
+    private MappedByteBuffer[] segments;
+
+    //Position and length of the records
+    private long[] offsets;
+    private long[] lengths;
+
+    //Size (bytes) of the mapped portions: must be a power of 2
+    private static final int SEGMENTBITS = 30;
+    private static final long SEGMENTSIZE = 1L << SEGMENTBITS;
+
+    //Minimum size (bytes) of a chunk scanned by one thread
+    private static final long MINCHUNKSIZE = 1L << 20;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Maps the given portion of an SDF file and finds its records
+     * @param filename the SDF file
+     * @param offset the position (in bytes) of the beginning of the first
+     * record
+     * @param endOffset the position (in bytes) where the last record ends,
+     * or -1 for the end of the file
+     * @param numThreads the number of threads scanning the file
+     * @throws IOException if the file cannot be mapped
+     */
+
+    public SDFRecordScanner(String filename, long offset, long endOffset,
+                                          int numThreads) throws IOException
+    {
+        this.filename = filename;
+        RandomAccessFile raf = new RandomAccessFile(filename,"r");
+        try {
+            FileChannel channel = raf.getChannel();
+            long fileSize = channel.size();
+            if (endOffset < 0 || endOffset > fileSize)
+                endOffset = fileSize;
+            if (offset > endOffset)
+                offset = endOffset;
+
+            //The mapping remains valid after closing the channel
+            int numSeg = (int) ((fileSize + SEGMENTSIZE - 1) / SEGMENTSIZE);
+            segments = new MappedByteBuffer[numSeg];
+            for (int i=0; i<numSeg; i++)
+            {
+                long start = i * SEGMENTSIZE;
+                long size = Math.min(SEGMENTSIZE,fileSize - start);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                                  start,size);
+            }
+        } finally {
+            raf.close();
+        }
+
+        findRecords(offset,endOffset,numThreads);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of records
+     */
+
+    public int size()
+    {
+        return offsets.length;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the position (in bytes) of the record in the file
+     */
+
+    public long getOffset(int i)
+    {
+        return offsets[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param i the index of the record (0-based)
+     * @return the length (in bytes) of the record including the
+     * end-of-record line
+     */
+
+    public long getLength(int i)
+    {
+        return lengths[i];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Copies the bytes of a record from the mapped file. Can be called
+     * by many threads at the same time.
+     * @param i the index of the record (0-based)
+     * @return the bytes of the record
+     */
+
+    public byte[] getRecord(int i)
+    {
+        byte[] record = new byte[(int) lengths[i]];
+        long pos = offsets[i];
+        int done = 0;
+        while (done < record.length)
+        {
+            ByteBuffer seg = segments[(int) (pos >>> SEGMENTBITS)].duplicate();
+            int inSeg = (int) (pos & (SEGMENTSIZE - 1));
+            int len = Math.min(record.length - done,seg.capacity() - inSeg);
+            seg.position(inSeg);
+            seg.get(record,done,len);
+            done += len;
+            pos += len;
+        }
+        return record;
+    }
+
+//------------------------------------------------------------------------------
+
+    private byte byteAt(long pos)
+    {
+        return segments[(int) (pos >>> SEGMENTBITS)].get(
+                                          (int) (pos & (SEGMENTSIZE - 1)));
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the records in the given portion of the file. The portion is
+     * divided in chunks and each chunk is searched by one thread for
+     * end-of-record lines beginning within the chunk.
+     */
+
+    private void findRecords(final long offset, final long endOffset,
+                                          int numThreads) throws IOException
+    {
+        long range = endOffset - offset;
+        int numChunks = (int) Math.max(1,Math.min(numThreads,
+                                                     range / MINCHUNKSIZE));
+        long chunkSize = range / numChunks;
+
+        List<long[]> ends = new ArrayList<long[]>();
+        if (numChunks == 1)
+        {
+            ends.add(findEnds(offset,endOffset,offset,endOffset));
+        } else {
+            ExecutorService pool = Executors.newFixedThreadPool(numChunks);
+            List<Future<long[]>> chunks = new ArrayList<Future<long[]>>();
+            for (int i=0; i<numChunks; i++)
+            {
+                final long from = offset + i * chunkSize;
+                final long to = (i == numChunks - 1) ? endOffset
+                                                     : from + chunkSize;
+                chunks.add(pool.submit(new Callable<long[]>()
+                {
+                    public long[] call()
+                    {
+                        return findEnds(from,to,offset,endOffset);
+                    }
+                }));
+            }
+            try {
+                for (Future<long[]> chunk : chunks)
+                {
+                    ends.add(chunk.get());
+                }
+            } catch (InterruptedException ie) {
+                throw new IOException("Interrupted while scanning "+filename);
+            } catch (ExecutionException ee) {
+                throw new IOException("Cannot scan "+filename+": "
+                                                              +ee.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        //Collect records in order
+        int numEnds = 0;
+        for (long[] chunkEnds : ends)
+            numEnds += chunkEnds.length;
+        long[] allEnds = new long[numEnds + 1];
+        int n = 0;
+        for (long[] chunkEnds : ends)
+        {
+            System.arraycopy(chunkEnds,0,allEnds,n,chunkEnds.length);
+            n += chunkEnds.length;
+        }
+
+        //Last record may lack the end-of-record line
+        long lastEnd = n > 0 ? allEnds[n-1] : offset;
+        for (long pos=lastEnd; pos<endOffset; pos++)
+        {
+            if (byteAt(pos) > ' ')
+            {
+                allEnds[n] = endOffset;
+                n++;
+                break;
+            }
+        }
+
+        offsets = new long[n];
+        lengths = new long[n];
+        long start = offset;
+        for (int i=0; i<n; i++)
+        {
+            offsets[i] = start;
+            lengths[i] = allEnds[i] - start;
+            start = allEnds[i];
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Finds the end-of-record lines beginning in a chunk of the file
+     * @param from the beginning of the chunk
+     * @param to the end of the chunk
+     * @param offset the beginning of the scanned portion of the file
+     * @param endOffset the end of the scanned portion of the file
+     * @return the positions following each end-of-record line
+     */
+
+    private long[] findEnds(long from, long to, long offset, long endOffset)
+    {
+        long[] ends = new long[64];
+        int n = 0;
+        for (long pos=from; pos<to; pos++)
+        {
+            if (pos != offset && byteAt(pos-1) != '\n')
+                continue;
+
+            long end = matchEndOfRecord(pos,endOffset);
+            if (end < 0)
+                continue;
+            if (n == ends.length)
+                ends = Arrays.copyOf(ends,2*n);
+            ends[n] = end;
+            n++;
+        }
+        return Arrays.copyOf(ends,n);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Checks if the line beginning at the given position is an
+     * end-of-record line, i.e., it contains only <code>$$$$</code> and
+     * white spaces
+     * @return the position following the line, or -1 if the line is not an
+     * end-of-record line
+     */
+
+    private long matchEndOfRecord(long pos, long endOffset)
+    {
+        //Leading white spaces
+        while (pos < endOffset && byteAt(pos) != '\n' && byteAt(pos) <= ' '
+                                                           && byteAt(pos) >= 0)
+            pos++;
+        for (int i=0; i<4; i++)
+        {
+            if (pos >= endOffset || byteAt(pos) != '$')
+                return -1;
+            pos++;
+        }
+        //Trailing white spaces
+        while (pos < endOffset && byteAt(pos) != '\n')
+        {
+            byte b = byteAt(pos);
+            if (b > ' ' || b < 0)
+                return -1;
+            pos++;
+        }
+        if (pos < endOffset)
+            pos++;
+        return pos;
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,197 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Set;
+import java.util.Map;
+import java.util.LinkedHashMap;
+
+import org.openscience.cdk.isomorphism.matchers.QueryAtomContainer;
+import org.openscience.cdk.smiles.smarts.parser.SMARTSParser;
+
+/**
+ * Collection of SMARTS queries that are parsed only once.
+ * The parsed queries (<code>QueryAtomContainer</code>) can be used by
+ * <code>ManySMARTSQuery</code> to match any number of molecules without
+ * parsing the SMARTS strings again.
+ * <b>WARNING!</b> The parsed queries keep a reference to the last
+ * molecule they have been matched against, thus the same registry should
+ * not be used by more than one thread at the same time.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class SMARTSRegistry
+{
+    //SMARTS strings
+    private Map<String,String> smarts = new LinkedHashMap<String,String>();
+
+    //Parsed queries
+    private Map<String,QueryAtomContainer> queries =
+                                  new LinkedHashMap<String,QueryAtomContainer>();
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates an empty registry
+     */
+
+    public SMARTSRegistry()
+    {
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a registry containing all the given SMARTS queries
+     * @param smarts map of the reference names and SMARTS strings
+     */
+
+    public SMARTSRegistry(Map<String,String> smarts)
+    {
+        for (String ref : smarts.keySet())
+        {
+            addQuery(ref,smarts.get(ref));
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a new registry parsing again all the SMARTS strings of this
+     * registry. The copy can be used by another thread.
+     * @return an independent copy of this registry
+     */
+
+    public SMARTSRegistry getCopy()
+    {
+        SMARTSRegistry copy = new SMARTSRegistry();
+        for (String ref : smarts.keySet())
+        {
+            copy.addQuery(ref,smarts.get(ref),queries.get(ref) != null);
+        }
+        return copy;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parse a SMARTS string and add the resulting query to the registry.
+     * Queries with a reference name that is already in the registry
+     * are replaced.
+     * @param ref the reference name of the query
+     * @param oneSmarts the SMARTS string
+     */
+
+    public void addQuery(String ref, String oneSmarts)
+    {
+        addQuery(ref,oneSmarts,true);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Parse a SMARTS string and add the resulting query to the registry.
+     * Queries with a reference name that is already in the registry
+     * are replaced.
+     * @param ref the reference name of the query
+     * @param oneSmarts the SMARTS string
+     * @param mustParse if <code>true</code> the program terminates when
+     * the SMARTS cannot be parsed. Otherwise, the SMARTS is kept without
+     * parsed query and the parsing error will be reported by
+     * <code>ManySMARTSQuery</code> for each molecule.
+     */
+
+    public void addQuery(String ref, String oneSmarts, boolean mustParse)
+    {
+        QueryAtomContainer query = null;
+        try {
+            query = SMARTSParser.parse(oneSmarts);
+        } catch (Throwable t) {
+            if (mustParse)
+            {
+                System.err.println("\nERROR! Unable to parse SMARTS query "
+                                                      +ref+": "+oneSmarts);
+                System.err.println("Program will terminate now. "+t);
+                System.exit(-1);
+            }
+        }
+        smarts.put(ref,oneSmarts);
+        queries.put(ref,query);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the set of reference names of the queries
+     */
+
+    public Set<String> getRefs()
+    {
+        return smarts.keySet();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param ref the reference name of the query
+     * @return the SMARTS string of the query
+     */
+
+    public String getSMARTS(String ref)
+    {
+        return smarts.get(ref);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param ref the reference name of the query
+     * @return <code>true</code> if the registry contains the query
+     */
+
+    public boolean contains(String ref)
+    {
+        return smarts.containsKey(ref);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param ref the reference name of the query
+     * @return the parsed query or <code>null</code> if the SMARTS could
+     * not be parsed
+     */
+
+    public QueryAtomContainer getQuery(String ref)
+    {
+        return queries.get(ref);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the number of queries in the registry
+     */
+
+    public int size()
+    {
+        return smarts.size();
+    }
+
+//------------------------------------------------------------------------------
+}
@@ -0,0 +1,126 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Time spent in each stage of the processing of a single molecule.
+ * Instances are filled by one thread at a time and are aggregated by
+ * <code>RunStatistics</code>.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class StageTimes
+{
+    //Stages
+    public static final int PERCEPTION = 0;
+    public static final int MATCHING = 1;
+    public static final int RINGOPTIONS = 2;
+    public static final int SUBCLASS = 3;
+    public static final int CUTTING = 4;
+    public static final int ISOLATION = 5;
+    public static final int FILTERING = 6;
+    public static final int DEDUPLICATION = 7;
+    public static final int WRITING = 8;
+
+    //Names of the stages
+    public static final String[] NAMES = new String[] {"perception",
+                        "matching", "ringOptions", "subclass", "cutting",
+                        "isolation", "filtering", "deduplication", "writing"};
+
+    //Time (ns) spent in each stage
+    private long[] times = new long[NAMES.length];
+
+    //Flags: stage executed
+    private boolean[] done = new boolean[NAMES.length];
+
+    //Time (ns) spent in the fragmentation of the molecule (-1 if unknown)
+    private long fragmentationTime = -1;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Adds the time elapsed since <code>start</code> to a stage
+     * @param stage the stage
+     * @param start the value of <code>System.nanoTime()</code> at the
+     * beginning of the stage
+     * @return the present value of <code>System.nanoTime()</code>, which can
+     * be used as the beginning of the next stage
+     */
+
+    public long add(int stage, long start)
+    {
+        long now = System.nanoTime();
+        times[stage] += now - start;
+        done[stage] = true;
+        return now;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param stage the stage
+     * @return the time (ns) spent in the stage
+     */
+
+    public long get(int stage)
+    {
+        return times[stage];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param stage the stage
+     * @return <code>true</code> if the stage has been executed
+     */
+
+    public boolean isDone(int stage)
+    {
+        return done[stage];
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @param time the time (ns) spent in the fragmentation of the molecule
+     */
+
+    public void setFragmentationTime(long time)
+    {
+        fragmentationTime = time;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the time (ns) spent on the molecule: the fragmentation plus
+     * the stages following it (de-duplication and writing)
+     */
+
+    public long getTotal()
+    {
+        long total = times[DEDUPLICATION] + times[WRITING];
+        if (fragmentationTime >= 0)
+            return total + fragmentationTime;
+        for (int i=0; i<DEDUPLICATION; i++)
+            total = total + times[i];
+        return total;
+    }
+
+//------------------------------------------------------------------------------
+}
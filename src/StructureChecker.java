@@ -31,6 +31,8 @@ import java.util.Map;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 import org.openscience.cdk.Atom;
 import org.openscience.cdk.AtomContainer;
@@ -70,6 +72,9 @@ public class StructureChecker
     //identification of the jobfiles
     private String jobName;
 
+    //Checks applied on the fly (streaming mode)
+    private CheckedMolecules stream;
+
 //------------------------------------------------------------------------------
 
     public StructureChecker()
@@ -127,45 +132,34 @@ public class StructureChecker
         int checkMols = 0;
         String checkfile = "check-preFilter_"+jobName+".sdf";
         String outSDfile = "3DreadyFixedFiltered_"+jobName+".sdf";
+        IOtools.openSDFWriter(checkfile,true);
+        IOtools.openSDFWriter(outSDfile,true);
+
+        ProgressReporter progress = ProgressReporter.start("Pre-filter",
+                                                               struct3dFile);
 
         //Iterate over structures
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(struct3dFile), DefaultChemObjectBuilder.getInstance());
+            SDFRecordReader reader = new SDFRecordReader(struct3dFile,Parameters.numThreads);
             //Analysis for each molecule
             while (reader.hasNext())
             {
                 totMols++;
                 IAtomContainer mol = reader.next();
+                progress.update(totMols,-1,-1,reader.getOffset());
                 if (repOnScreen >= 1)
                     System.out.println("Working on mol "+totMols+" -> "+MolecularUtils.getNameOrID(mol));
 
-		Map<String,String> smarts = new HashMap<String,String>();
-		int is = 0;
-		for (String s : Parameters.preFilterSMARTS)
+		if (!passesPreFilter(mol,checkfile,false))
 		{
-		    is++;
-		    smarts.put(Integer.toString(is),s);
-		}
-		ManySMARTSQuery msq = new ManySMARTSQuery(mol,smarts);
-	        if (msq.hasProblems())
-        	{
-	            String cause = msq.getMessage();
 		    checkMols++;
-		    if (repOnScreen >= 1)
-	                System.out.println("ERROR in detecting SMARTS for pre-filtering. Rejecting molecule ("+cause+")");
 		    continue;
-		} else if (msq.getTotalMatches() > 0) 
-		{
-                    checkMols++;
-                    if (repOnScreen >= 1)
-                        System.out.println("Molecule rejected during pre-filtering of structures");
-                    IOtools.writeSDFAppend(checkfile,mol,true);
-                    continue;
 		}
 
                 //Write out the surviving molecule
                 IOtools.writeSDFAppend(outSDfile,mol,true);
             }
+            progress.stop();
         } catch (FileNotFoundException fnf) {
             System.err.println("File Not Found: " + struct3dFile);
             System.err.println(fnf.getMessage());
@@ -180,6 +174,7 @@ public class StructureChecker
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         //Redirect name of input SDF file
         updateFileName(outSDfile);
@@ -212,15 +207,21 @@ public class StructureChecker
         int checkMols = 0;
         String checkfile = "check-AnalyzeAndFix_"+jobName+".sdf";
         String outSDfile = "3DreadyFixed_"+jobName+".sdf";
+        IOtools.openSDFWriter(checkfile,true);
+        IOtools.openSDFWriter(outSDfile,true);
+
+        ProgressReporter progress = ProgressReporter.start(
+                                     "Fix chemical representation",struct3dFile);
 
         //Iterate over structures
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(struct3dFile), DefaultChemObjectBuilder.getInstance());
+            SDFRecordReader reader = new SDFRecordReader(struct3dFile,Parameters.numThreads);
             //Analysis for each molecule
             while (reader.hasNext())
             {
                 totMols++;
                 IAtomContainer mol = reader.next();
+                progress.update(totMols,-1,-1,reader.getOffset());
                 if (repOnScreen >= 1)
                     System.out.println("Working on mol "+totMols+" -> "+MolecularUtils.getNameOrID(mol));
 
@@ -230,18 +231,10 @@ public class StructureChecker
                 {
                     //Try to fix it
                     fixedMols++;
-                    mol = MolecularUtils.fixSDAromaticity(mol);
-
-                    //Double check modified molecule
-                    String checkArom = MolecularUtils.missmatchingAromaticity(mol);
-                    if (!checkArom.equals(""))
+                    mol = fixAromaticity(mol,checkfile);
+                    if (mol == null)
                     {
                         checkMols++;
-                        if (repOnScreen >= 1)
-                            System.out.println("Check this molecule! "+checkArom);
-
-                        mol.setProperty("REJECTED",checkArom);
-                        IOtools.writeSDFAppend(checkfile,mol,true);
                         continue;
                     }
                 } else {
@@ -251,6 +244,7 @@ public class StructureChecker
                 //Write out the surviving molecule
                 IOtools.writeSDFAppend(outSDfile,mol,true);
             }
+            progress.stop();
         } catch (FileNotFoundException fnf) {
             System.err.println("File Not Found: " + struct3dFile);
             System.err.println(fnf.getMessage());
@@ -265,6 +259,7 @@ public class StructureChecker
                                 + "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         //Redirect name of input SDF file
         updateFileName(outSDfile);
@@ -311,15 +306,19 @@ public class StructureChecker
         boolean badStructures = false;
         String checkfile = "check-3DvsFORMULA_"+jobName+".sdf";
         String outSDfile = "3Dready_"+jobName+".sdf";
+        IOtools.openSDFWriter(checkfile,true);
         Set<String> bad3d = new HashSet<String>();
         List<Boolean> copyTXTMol = new ArrayList<Boolean>();
+        ProgressReporter progress = ProgressReporter.start("3D vs formula",
+                                                               struct3dFile);
         try {
-            IteratingMDLReader reader = new IteratingMDLReader(new FileInputStream(struct3dFile), DefaultChemObjectBuilder.getInstance());
+            SDFRecordReader reader = new SDFRecordReader(struct3dFile,Parameters.numThreads);
             //Element analysis for each molecule
             while (reader.hasNext())
             {
                 num3ds++;
                 IAtomContainer mol = reader.next();
+                progress.update(num3ds,-1,-1,reader.getOffset());
 
                 //Skip if Formula is missing
                 String refcode = mol.getProperty("cdk:Title").toString();
@@ -335,17 +334,10 @@ public class StructureChecker
                     System.out.println("\n===== CCDC object "+num3ds+" => "+refcode+" =====");
 
                 //Analysis and comparison of SD and Formula
-                ElementalAnalyser elAl = new ElementalAnalyser(oneForm,mol);
-
                 //Return problematic cases to the user with detailed information
-                if (!elAl.getAllElementsAgree())
+                if (!agreesWithFormula(mol,oneForm,checkfile))
                 {
                     badStructures = true;
-                    mol.setProperty("Formula",oneForm);
-                    mol.setProperty("ElementAnalysisOverview",elAl.getSDFormulaAgreeOnElement());
-                    mol.setProperty("fromFormula",elAl.getElemAnalFromFormula());
-                    mol.setProperty("fromSD",elAl.getElemAnalFromSD());
-                    IOtools.writeSDFAppend(checkfile,mol,true);
                     copyTXTMol.add(false);
                 } else {
 //                    mol.setProperty("Formula",oneForm);
@@ -356,6 +348,7 @@ public class StructureChecker
             }
 
             reader.close();
+            progress.stop();
 
             //Make a copy of input filtering the molecules
             //Here we work with TXT to avoid CDK limitations on dealing with bond order = 4
@@ -377,6 +370,7 @@ public class StructureChecker
 				+ "convert avoid bond type=8.");
             System.exit(0);
         }
+        IOtools.closeAllSDFWriters();
 
         //Redirect name of input SDF file
         updateFileName(outSDfile);
@@ -391,6 +385,330 @@ public class StructureChecker
            System.out.println("\nCheck the problematic cases in file "+checkfile);
     }
 
+//------------------------------------------------------------------------------
+
+    /**
+     * Compares the elements of a molecule with its declared molecular 
+     * formula. Molecules that do not agree are reported in the check file
+     * with detailed information.
+     * @param mol the molecule
+     * @param oneForm the molecular formula
+     * @param checkfile the file collecting the problematic cases
+     * @return <code>true</code> if all elements agree
+     */
+
+    private boolean agreesWithFormula(IAtomContainer mol, String oneForm,
+                                                             String checkfile)
+    {
+        ElementalAnalyser elAl = new ElementalAnalyser(oneForm,mol);
+        if (elAl.getAllElementsAgree())
+            return true;
+
+        mol.setProperty("Formula",oneForm);
+        mol.setProperty("ElementAnalysisOverview",elAl.getSDFormulaAgreeOnElement());
+        mol.setProperty("fromFormula",elAl.getElemAnalFromFormula());
+        mol.setProperty("fromSD",elAl.getElemAnalFromSD());
+        IOtools.writeSDFAppend(checkfile,mol,true);
+        return false;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Tries to fix the representation of aromatic systems. Molecules that
+     * cannot be fixed are reported in the check file.
+     * @param mol the molecule with mismatching aromaticity
+     * @param checkfile the file collecting the problematic cases
+     * @return the fixed molecule or <code>null</code> if the molecule 
+     * could not be fixed
+     */
+
+    private IAtomContainer fixAromaticity(IAtomContainer mol, String checkfile)
+    {
+        mol = MolecularUtils.fixSDAromaticity(mol);
+
+        //Double check modified molecule
+        String checkArom = MolecularUtils.missmatchingAromaticity(mol);
+        if (!checkArom.equals(""))
+        {
+            if (repOnScreen >= 1)
+                System.out.println("Check this molecule! "+checkArom);
+
+            mol.setProperty("REJECTED",checkArom);
+            IOtools.writeSDFAppend(checkfile,mol,true);
+            return null;
+        }
+        return mol;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Applies the pre-filtering SMARTS to a molecule. Molecules matching
+     * any of the SMARTS are reported in the check file.
+     * @param mol the molecule
+     * @param checkfile the file collecting the rejected molecules
+     * @param keepPerception <code>true</code> if the molecule, when not
+     * rejected, is fragmented next, so that the perception of rings and
+     * aromaticity can be re-used. Otherwise the perception is discarded.
+     * @return <code>true</code> if the molecule is not rejected
+     */
+
+    private boolean passesPreFilter(IAtomContainer mol, String checkfile,
+                                                      boolean keepPerception)
+    {
+        boolean passes = false;
+        try {
+            ManySMARTSQuery msq = new ManySMARTSQuery(mol,
+                  Parameters.preFilterQueries,MoleculePerception.getFor(mol));
+            if (msq.hasProblems())
+            {
+                String cause = msq.getMessage();
+                if (repOnScreen >= 1)
+                    System.out.println("ERROR in detecting SMARTS for pre-filtering. Rejecting molecule ("+cause+")");
+            } else if (msq.getTotalMatches() > 0) 
+            {
+                if (repOnScreen >= 1)
+                    System.out.println("Molecule rejected during pre-filtering of structures");
+                IOtools.writeSDFAppend(checkfile,mol,true);
+            } else {
+                passes = true;
+            }
+        } finally {
+            //The registered perception keeps the molecule in memory
+            if (!passes || !keepPerception)
+                MoleculePerception.forget(mol);
+        }
+        return passes;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Applies all the checks required by the parameters (formula, 
+     * representation, and pre-filter) to the molecules on the fly. 
+     * Rejected molecules are sent to the check files as soon as they are 
+     * found, while the others are returned by the iterator without writing
+     * any intermediate file unless requested with 
+     * <code>WRITEINTERFILES</code>.
+     * @param source the iterator over the input molecules
+     * @return the iterator over the molecules that passed all checks
+     */
+
+    public Iterator<IAtomContainer> getCheckedMolecules(
+                                               Iterator<IAtomContainer> source)
+    {
+        stream = new CheckedMolecules(source);
+        return stream;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * @return the files written by the checks applied on the fly
+     */
+
+    public List<String> getStreamingFiles()
+    {
+        if (stream == null)
+            return new ArrayList<String>();
+        return stream.getFiles();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Prints the summary of the checks applied on the fly
+     */
+
+    public void printStreamingSummary()
+    {
+        if (stream == null)
+            return;
+        stream.printSummary();
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Iterator applying the checks of the <code>StructureChecker</code>
+     * to each molecule as it is read.
+     */
+
+    private class CheckedMolecules implements Iterator<IAtomContainer>
+    {
+        private Iterator<IAtomContainer> source;
+        private IAtomContainer nextMol = null;
+
+        private Map<String,String> formulae = null;
+
+        //Files
+        private String checkfileFormula = "check-3DvsFORMULA_"+jobName+".sdf";
+        private String checkfileFix = "check-AnalyzeAndFix_"+jobName+".sdf";
+        private String checkfilePreFilter = "check-preFilter_"+jobName+".sdf";
+        private String outFormula = "3Dready_"+jobName+".sdf";
+        private String outFix = "3DreadyFixed_"+jobName+".sdf";
+        private String outPreFilter = "3DreadyFixedFiltered_"+jobName+".sdf";
+
+        //Counters
+        private int totMols = 0;
+        private int noFormula = 0;
+        private int badFormula = 0;
+        private int fixedMols = 0;
+        private int checkFix = 0;
+        private int preFiltered = 0;
+
+        public CheckedMolecules(Iterator<IAtomContainer> source)
+        {
+            this.source = source;
+            if (Parameters.chkFormula)
+            {
+                formulae = getFormulae(formulaeFile);
+                if (repOnScreen >= 1)
+                    System.out.println("Found "+formulae.keySet().size()
+                           +" chemical formulae in file "+formulaeFile);
+                IOtools.openSDFWriter(checkfileFormula,true);
+            }
+            if (Parameters.analyzeAndFix)
+                IOtools.openSDFWriter(checkfileFix,true);
+            if (Parameters.preFiltering)
+                IOtools.openSDFWriter(checkfilePreFilter,true);
+        }
+
+        public boolean hasNext()
+        {
+            while (nextMol == null && source.hasNext())
+            {
+                nextMol = check(source.next());
+            }
+            return nextMol != null;
+        }
+
+        public IAtomContainer next()
+        {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            IAtomContainer mol = nextMol;
+            nextMol = null;
+            return mol;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        /**
+         * @return the files written by the checks
+         */
+
+        public List<String> getFiles()
+        {
+            List<String> files = new ArrayList<String>();
+            if (Parameters.chkFormula)
+            {
+                files.add(checkfileFormula);
+                if (Parameters.writeIntermFiles)
+                    files.add(outFormula);
+            }
+            if (Parameters.analyzeAndFix)
+            {
+                files.add(checkfileFix);
+                if (Parameters.writeIntermFiles)
+                    files.add(outFix);
+            }
+            if (Parameters.preFiltering)
+            {
+                files.add(checkfilePreFilter);
+                if (Parameters.writeIntermFiles)
+                    files.add(outPreFilter);
+            }
+            return files;
+        }
+
+        /**
+         * @return the checked molecule or <code>null</code> if rejected
+         */
+
+        private IAtomContainer check(IAtomContainer mol)
+        {
+            totMols++;
+            if (Parameters.chkFormula)
+            {
+                String refcode = mol.getProperty("cdk:Title").toString();
+                if (!formulae.containsKey(refcode))
+                {
+                    if (repOnScreen >= 0)
+                        System.out.println("\nSkipping object "+totMols+": missing formula with jey '"+refcode+"'");
+                    noFormula++;
+                    return null;
+                }
+                if (!agreesWithFormula(mol,formulae.get(refcode),
+                                                            checkfileFormula))
+                {
+                    badFormula++;
+                    return null;
+                }
+                if (Parameters.writeIntermFiles)
+                    IOtools.writeSDFAppend(outFormula,mol,true);
+            }
+
+            if (Parameters.analyzeAndFix)
+            {
+                String aromErr = MolecularUtils.missmatchingAromaticity(mol);
+                if (!aromErr.equals(""))
+                {
+                    fixedMols++;
+                    mol = fixAromaticity(mol,checkfileFix);
+                    if (mol == null)
+                    {
+                        checkFix++;
+                        return null;
+                    }
+                }
+                if (Parameters.writeIntermFiles)
+                    IOtools.writeSDFAppend(outFix,mol,true);
+            }
+
+            if (Parameters.preFiltering)
+            {
+                if (!passesPreFilter(mol,checkfilePreFilter,true))
+                {
+                    preFiltered++;
+                    return null;
+                }
+                if (Parameters.writeIntermFiles)
+                    IOtools.writeSDFAppend(outPreFilter,mol,true);
+            }
+            return mol;
+        }
+
+        public void printSummary()
+        {
+            System.out.println("\n====== Results - Checks of structures =======");
+            System.out.println("Total number of molecules: "+totMols);
+            if (Parameters.chkFormula)
+            {
+                System.out.println("Missing formula:           "+noFormula);
+                System.out.println("Disagreeing with formula:  "+badFormula);
+                if (badFormula > 0)
+                    System.out.println(" Check the problematic cases in file "+checkfileFormula);
+            }
+            if (Parameters.analyzeAndFix)
+            {
+                System.out.println("Modified molecules:        "+(fixedMols-checkFix));
+                if (checkFix > 0)
+                    System.out.println(" Check "+checkFix+" problematic cases in "+checkfileFix);
+            }
+            if (Parameters.preFiltering)
+            {
+                System.out.println("Rejected by pre-filter:    "+preFiltered);
+                if (preFiltered > 0)
+                    System.out.println(" Check the rejected molecules in "+checkfilePreFilter);
+            }
+        }
+    }
+
 //------------------------------------------------------------------------------
 
     /**
@@ -0,0 +1,125 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Wall-clock time allowed for the processing of a single molecule. The
+ * budget is consumed only while running, so that the time a molecule
+ * spends waiting for being stored is not counted. Long stages check the
+ * budget at safe points and abandon the molecule by throwing
+ * {@link TimeBudget.ExceededException}.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class TimeBudget
+{
+    //Time (ns) left (not used if the budget is unlimited)
+    private long remaining;
+
+    //Flag: no limit
+    private boolean unlimited;
+
+    //Value of System.nanoTime() at which the budget runs out (while running)
+    private long deadline;
+
+    //Flag: running
+    private boolean running = false;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Thrown when a molecule exceeds its time budget
+     */
+
+    public static class ExceededException extends RuntimeException
+    {
+        //Stage (see StageTimes) in which the budget ran out
+        private int stage;
+
+        public ExceededException(int stage)
+        {
+            super("Time budget exceeded in stage "+StageTimes.NAMES[stage]);
+            this.stage = stage;
+        }
+
+        public int getStage()
+        {
+            return stage;
+        }
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Creates a budget
+     * @param budget the time (ns) allowed, or zero for no limit
+     */
+
+    public TimeBudget(long budget)
+    {
+        this.remaining = budget;
+        this.unlimited = budget <= 0;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Starts consuming the budget
+     */
+
+    public void start()
+    {
+        if (unlimited || running)
+            return;
+        deadline = System.nanoTime() + remaining;
+        running = true;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Stops consuming the budget
+     */
+
+    public void stop()
+    {
+        if (unlimited || !running)
+            return;
+        remaining = deadline - System.nanoTime();
+        running = false;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Checks that the budget has not run out
+     * @param stage the present stage (see <code>StageTimes</code>)
+     * @throws ExceededException if the budget has run out
+     */
+
+    public void check(int stage)
+    {
+        if (unlimited)
+            return;
+        long left = running ? deadline - System.nanoTime() : remaining;
+        if (left < 0)
+            throw new ExceededException(stage);
+    }
+
+//------------------------------------------------------------------------------
+}
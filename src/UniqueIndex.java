@@ -28,7 +28,7 @@ public class UniqueIndex
 
 //------------------------------------------------------------------------------
 
-    public static int getUnqInt()
+    public static synchronized int getUnqInt()
     {
 	unqInt++;
 	return unqInt;
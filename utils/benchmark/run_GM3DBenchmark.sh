@@ -0,0 +1,50 @@
+#!/bin/sh
+
+#settings
+locdir=`pwd`
+javapath="$JAVA_PATH/bin"
+src="$locdir/src"
+gm3dfsrc="$locdir/../../src"
+examples="$locdir/../../examples"
+data="$locdir/../../data"
+lib="$locdir/../../lib"
+CDKpath=$lib
+CDKversion="1.4.19"
+rounds=10
+warmup=5
+
+#label of the report: the git commit of the code
+label=`git -C $locdir rev-parse --short HEAD 2>/dev/null`
+if [ -z "$label" ]; then
+    label="unknown"
+fi
+reports="$locdir/reports"
+mkdir -p $reports
+
+#compile benchmarks together with GM3DFragmenter classes
+wrkdir=`mktemp -d`
+$javapath/javac -cp $CDKpath/cdk-$CDKversion.jar -d $wrkdir $gm3dfsrc/*.java $src/*.java
+if [ ! -f "$wrkdir/GM3DBenchmark.class" ]; then
+    echo "###########################################"
+    echo "Cannot compile GM3DBenchmark."
+    echo "###########################################"
+    exit 1
+fi
+
+#run benchmarks with the example molecules and each set of cutting rules
+cd $wrkdir
+for rules in $examples/cutRul_3.0.rul $data/cutRul_*.rul
+do
+    name=`basename $rules .rul`
+    sed -e "s|^STRUCTURESFILE .*|STRUCTURESFILE $examples/to_be_fragmented.sdf|" \
+        -e "s|^RULESFILE .*|RULESFILE $rules|" \
+        -e "s|^REPORT .*|REPORT 0|" \
+        $examples/fragmentation.params > bench_$name.params
+    $javapath/java -cp $wrkdir:$CDKpath/cdk-$CDKversion.jar GM3DBenchmark \
+        -pbench_$name.params -o$reports/bench_${label}_$name.json \
+        -r$rounds -w$warmup -l$label
+done
+
+cd $locdir
+rm -rf $wrkdir
+echo "Reports in $reports"
@@ -0,0 +1,580 @@
+/*
+ *   GM3DFragmenter
+ *   Copyright (C) 2019 Marco Foscato <marco.foscato@uib.no>
+ *
+ *   This program is free software: you can redistribute it and/or modify
+ *   it under the terms of the GNU Affero General Public License as published
+ *   by the Free Software Foundation, either version 3 of the License, or
+ *   (at your option) any later version.
+ *
+ *   This program is distributed in the hope that it will be useful,
+ *   but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *   MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *   GNU Affero General Public License for more details.
+ *
+ *   You should have received a copy of the GNU Affero General Public License
+ *   along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+
+import java.lang.reflect.Method;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openscience.cdk.AtomContainerSet;
+import org.openscience.cdk.interfaces.IAtomContainer;
+
+/**
+ * Micro-benchmarks of the hot paths of the fragmentation. The settings
+ * (structures, cutting rules, filters) are taken from a GM3DFragmenter
+ * parameters file. Each benchmark is run for a number of warm-up rounds
+ * and of measured rounds; each round processes all the input molecules
+ * (or all their fragments) and the time per operation is reported.
+ * Input preparation (i.e., cloning the molecules that are modified by
+ * the benchmarked method) is not timed. The results are written in a
+ * JSON file, to be compared across versions of the code.
+ *
+ * @author Marco Foscato (University of Bergen)
+ */
+
+public class GM3DBenchmark
+{
+    //List of options
+    private static Map<String,String> options =
+                                           new LinkedHashMap<String,String>();
+    private static Map<String,String> optionsHelp =
+                                           new LinkedHashMap<String,String>();
+
+    //Number of warm-up and measured rounds
+    private static int warmup;
+    private static int rounds;
+
+    //Input molecules (never modified)
+    private static List<IAtomContainer> mols;
+
+    //Input molecules with the bonds matched by the cutting rules removed
+    private static List<IAtomContainer> cutMols =
+                                            new ArrayList<IAtomContainer>();
+
+    //Fragments, as written in the library, and their format
+    private static List<IAtomContainer> frags =
+                                            new ArrayList<IAtomContainer>();
+    private static String format;
+
+    //Fragmenter and its private methods
+    private static Fragmenter fragmenter;
+    private static Method getMatchingBonds;
+    private static Method isolateFrags;
+    private static Method fragmentMolecule;
+
+    //Results of the benchmarks: time per operation (ns) in each round
+    private static Map<String,double[]> results =
+                                       new LinkedHashMap<String,double[]>();
+    private static Map<String,Integer> opsPerRound =
+                                       new LinkedHashMap<String,Integer>();
+
+    //Sink preventing the elimination of unused results
+    private static volatile int sink = 0;
+
+//------------------------------------------------------------------------------
+
+    /**
+     * A benchmarked operation
+     */
+
+    private static abstract class Benchmark
+    {
+        String name;
+
+        Benchmark(String name)
+        {
+            this.name = name;
+        }
+
+        /**
+         * Prepares the input of one round. Not timed.
+         */
+        void setUp() throws Exception
+        {
+        }
+
+        /**
+         * Runs one round
+         * @return the number of operations done
+         */
+        abstract int runRound() throws Exception;
+    }
+
+//------------------------------------------------------------------------------
+
+    public static void main(String[] args) throws Exception
+    {
+        System.out.println("\n    GM3DFragmenter benchmarks");
+        System.out.println("    =========================\n");
+
+        setDefault();
+        if (args.length == 0)
+            fatal();
+        for (String s : args)
+        {
+            for (String key : options.keySet())
+            {
+                if (s.startsWith(key))
+                    options.put(key,s.substring(key.length()));
+            }
+        }
+        if (options.get("-p").equals(""))
+            fatal();
+        warmup = Integer.parseInt(options.get("-w"));
+        rounds = Integer.parseInt(options.get("-r"));
+
+        prepare();
+
+        run(new Benchmark("ManySMARTSQuery") {
+            List<IAtomContainer> work;
+            void setUp() throws Exception
+            {
+                work = cloneAll(mols);
+            }
+            int runRound()
+            {
+                for (IAtomContainer mol : work)
+                {
+                    ManySMARTSQuery msq = new ManySMARTSQuery(mol,
+                                                   Parameters.rulesQueries);
+                    sink += msq.hasProblems() ? 1 : 0;
+                }
+                return work.size();
+            }
+        });
+
+        run(new Benchmark("Fragmenter.getMatchingBondsAllInOne") {
+            List<IAtomContainer> work;
+            void setUp() throws Exception
+            {
+                work = cloneAll(mols);
+            }
+            int runRound() throws Exception
+            {
+                for (IAtomContainer mol : work)
+                    sink += matchBonds(mol).size();
+                return work.size();
+            }
+        });
+
+        run(new Benchmark("Fragmenter.isolateFrags") {
+            List<IAtomContainer> work;
+            void setUp() throws Exception
+            {
+                work = cloneAll(cutMols);
+            }
+            int runRound() throws Exception
+            {
+                for (IAtomContainer mol : work)
+                {
+                    AtomContainerSet acs = (AtomContainerSet)
+                                          isolateFrags.invoke(fragmenter,mol);
+                    sink += acs.getAtomContainerCount();
+                }
+                return work.size();
+            }
+        });
+
+        run(new Benchmark("FragmentFilter.keepFragment") {
+            List<GM3DFragment> work;
+            void setUp()
+            {
+                work = toFragments(frags);
+            }
+            int runRound()
+            {
+                for (GM3DFragment frag : work)
+                    sink += FragmentFilter.keepFragment(frag) ? 1 : 0;
+                return work.size();
+            }
+        });
+
+        run(new Benchmark("GM3DFragment.sameFragOf") {
+            List<GM3DFragment> work;
+            List<GM3DFragment> copies;
+            void setUp()
+            {
+                work = toFragments(frags);
+                copies = toFragments(frags);
+            }
+            int runRound()
+            {
+                for (int i=0; i<work.size(); i++)
+                    sink += work.get(i).sameFragOf(copies.get(i)) ? 1 : 0;
+                return work.size();
+            }
+        });
+
+        run(new Benchmark("GM3DFragment.getReorderAtoms") {
+            List<GM3DFragment> work;
+            void setUp()
+            {
+                work = toFragments(frags);
+            }
+            int runRound()
+            {
+                int ops = 0;
+                for (GM3DFragment frag : work)
+                {
+                    for (GM3DAttachmentPoint ap : frag.getAllAPs())
+                    {
+                        sink += frag.getReorderAtoms(ap).size();
+                        ops++;
+                    }
+                }
+                return ops;
+            }
+        });
+
+        run(new Benchmark("IOtools.readSDF") {
+            int runRound()
+            {
+                List<IAtomContainer> read = IOtools.readSDF(
+                                               Parameters.getCurrentSDFile());
+                sink += read.size();
+                return read.size();
+            }
+        });
+
+        final File tmpSDF = File.createTempFile("GM3DBenchmark",".sdf");
+        tmpSDF.deleteOnExit();
+        run(new Benchmark("IOtools.writeSDFAppendSet") {
+            AtomContainerSet acs;
+            void setUp()
+            {
+                tmpSDF.delete();
+                acs = new AtomContainerSet();
+                for (IAtomContainer mol : mols)
+                    acs.addAtomContainer(mol);
+            }
+            int runRound()
+            {
+                IOtools.writeSDFAppendSet(tmpSDF.getAbsolutePath(),acs,false);
+                return acs.getAtomContainerCount();
+            }
+        });
+        tmpSDF.delete();
+
+        writeReport(options.get("-o"));
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void setDefault()
+    {
+        options.put("-p","");
+        optionsHelp.put("-p","GM3DFragmenter parameters file defining "
+                       + "structures (STRUCTURESFILE), cutting rules "
+                       + "(RULESFILE), and filters.");
+        options.put("-o","GM3DBenchmark.json");
+        optionsHelp.put("-o","Name of the report (JSON).");
+        options.put("-w","5");
+        optionsHelp.put("-w","Number of warm-up rounds.");
+        options.put("-r","10");
+        optionsHelp.put("-r","Number of measured rounds.");
+        options.put("-l","");
+        optionsHelp.put("-l","Label written in the report (i.e., the git "
+                                                      + "commit of the code).");
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void fatal()
+    {
+        System.out.println("Usage: \n java -jar GM3DBenchmark.jar "
+                                              + "-p<file.params> [options]\n");
+        System.out.println("Options (no space between key and value):");
+        for (String key : optionsHelp.keySet())
+        {
+            System.out.println(" "+key+"  "+optionsHelp.get(key)
+                               + " (default: '"+options.get(key)+"')");
+        }
+        System.exit(0);
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Reads the settings and prepares the input of all the benchmarks:
+     * the molecules, the molecules with cut bonds, and the fragments
+     */
+
+    private static void prepare() throws Exception
+    {
+        Parameters.setAll(new String[] {options.get("-p")});
+        if (!Parameters.readRules)
+        {
+            System.err.println("ERROR! No cutting rules (RULESFILE) in "
+                                                         +options.get("-p"));
+            System.exit(-1);
+        }
+        mols = IOtools.readSDF(Parameters.getCurrentSDFile());
+        format = Parameters.getLibFormat();
+
+        fragmenter = new Fragmenter();
+        getMatchingBonds = Fragmenter.class.getDeclaredMethod(
+                                "getMatchingBondsAllInOne",
+                                IAtomContainer.class,SMARTSRegistry.class,
+                                MoleculePerception.class,
+                                FragmentationResult.class);
+        getMatchingBonds.setAccessible(true);
+        isolateFrags = Fragmenter.class.getDeclaredMethod("isolateFrags",
+                                                       IAtomContainer.class);
+        isolateFrags.setAccessible(true);
+        fragmentMolecule = Fragmenter.class.getDeclaredMethod(
+                                "fragmentMolecule",IAtomContainer.class,
+                                int.class,SMARTSRegistry.class);
+        fragmentMolecule.setAccessible(true);
+
+        int molIdx = 0;
+        for (IAtomContainer mol : cloneAll(mols))
+        {
+            molIdx++;
+            IAtomContainer cut = (IAtomContainer) mol.clone();
+            Map<String,ArrayList<GM3DTargetBond>> bonds = matchBonds(cut);
+            for (List<GM3DTargetBond> tbs : bonds.values())
+            {
+                for (GM3DTargetBond tb : tbs)
+                {
+                    if (cut.getBond(tb.getAtmSubClass0(),
+                                               tb.getAtmSubClass1()) != null)
+                    {
+                        cut.removeBond(tb.getAtmSubClass0(),
+                                                       tb.getAtmSubClass1());
+                    }
+                }
+            }
+            cutMols.add(cut);
+
+            FragmentationResult res = (FragmentationResult)
+                                  fragmentMolecule.invoke(fragmenter,mol,
+                                          molIdx,Parameters.rulesQueries);
+            for (GM3DFragment frag : res.getFragments())
+                frags.add(frag.toIAtomContainer(format));
+        }
+
+        System.out.println("Molecules: "+mols.size()+" from "
+                                           +Parameters.getCurrentSDFile());
+        System.out.println("Cutting rules: "+Parameters.rules.size()
+                                              +" from "+Parameters.rulesFile);
+        System.out.println("Fragments: "+frags.size());
+        System.out.println("Rounds: "+warmup+" warm-up, "+rounds
+                                                            +" measured\n");
+    }
+
+//------------------------------------------------------------------------------
+
+    private static Map<String,ArrayList<GM3DTargetBond>> matchBonds(
+                                          IAtomContainer mol) throws Exception
+    {
+        FragmentationResult res = new FragmentationResult(0,
+                                            MolecularUtils.getNameOrID(mol));
+        @SuppressWarnings("unchecked")
+        Map<String,ArrayList<GM3DTargetBond>> bonds =
+                    (Map<String,ArrayList<GM3DTargetBond>>)
+                    getMatchingBonds.invoke(fragmenter,mol,
+                                          Parameters.rulesQueries,
+                                          MoleculePerception.getFor(mol),res);
+        return bonds;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static List<IAtomContainer> cloneAll(List<IAtomContainer> list)
+                                                              throws Exception
+    {
+        List<IAtomContainer> clones = new ArrayList<IAtomContainer>();
+        for (IAtomContainer mol : list)
+            clones.add((IAtomContainer) mol.clone());
+        return clones;
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Fresh fragments (i.e., without the cached atom orders)
+     */
+
+    private static List<GM3DFragment> toFragments(List<IAtomContainer> list)
+    {
+        List<GM3DFragment> fresh = new ArrayList<GM3DFragment>();
+        for (IAtomContainer mol : list)
+        {
+            try {
+                fresh.add(new GM3DFragment((IAtomContainer) mol.clone(),
+                                                                     format));
+            } catch (CloneNotSupportedException e) {
+                System.err.println("ERROR! Unable to clone fragment. "+e);
+                System.exit(-1);
+            }
+        }
+        return fresh;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static void run(Benchmark b) throws Exception
+    {
+        for (int i=0; i<warmup; i++)
+        {
+            b.setUp();
+            b.runRound();
+        }
+        double[] nsPerOp = new double[rounds];
+        int ops = 0;
+        for (int i=0; i<rounds; i++)
+        {
+            b.setUp();
+            long t0 = System.nanoTime();
+            ops = b.runRound();
+            long dt = System.nanoTime() - t0;
+            nsPerOp[i] = ops > 0 ? (double) dt / ops : 0.0;
+        }
+        if (ops == 0)
+        {
+            System.out.println(String.format("%-36s no input: skipped",
+                                                                    b.name));
+            return;
+        }
+        results.put(b.name,nsPerOp);
+        opsPerRound.put(b.name,ops);
+        System.out.println(String.format("%-36s %12.3f +/- %10.3f us/op",
+                          b.name,mean(nsPerOp)/1000.0,stdev(nsPerOp)/1000.0));
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double mean(double[] values)
+    {
+        double sum = 0.0;
+        for (double v : values)
+            sum = sum + v;
+        return sum / values.length;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double stdev(double[] values)
+    {
+        if (values.length < 2)
+            return 0.0;
+        double m = mean(values);
+        double sum = 0.0;
+        for (double v : values)
+            sum = sum + (v - m) * (v - m);
+        return Math.sqrt(sum / (values.length - 1));
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double median(double[] values)
+    {
+        double[] sorted = Arrays.copyOf(values,values.length);
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        if (n % 2 == 1)
+            return sorted[n/2];
+        return (sorted[n/2 - 1] + sorted[n/2]) / 2.0;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static String quote(String s)
+    {
+        return "\"" + s.replace("\\","\\\\").replace("\"","\\\"") + "\"";
+    }
+
+//------------------------------------------------------------------------------
+
+    /**
+     * Writes the results in JSON format. Times are given in microseconds
+     * per operation.
+     */
+
+    private static void writeReport(String fileName) throws IOException
+    {
+        String nl = System.getProperty("line.separator");
+        StringBuilder sb = new StringBuilder();
+        sb.append("{").append(nl);
+        sb.append("  \"label\": ").append(quote(options.get("-l")));
+        sb.append(",").append(nl);
+        sb.append("  \"date\": ").append(quote(new Date().toString()));
+        sb.append(",").append(nl);
+        sb.append("  \"java\": ").append(quote(
+                             System.getProperty("java.version")));
+        sb.append(",").append(nl);
+        sb.append("  \"structures\": ").append(quote(
+                             Parameters.getCurrentSDFile()));
+        sb.append(",").append(nl);
+        sb.append("  \"rules\": ").append(quote(Parameters.rulesFile));
+        sb.append(",").append(nl);
+        sb.append("  \"molecules\": ").append(mols.size());
+        sb.append(",").append(nl);
+        sb.append("  \"fragments\": ").append(frags.size());
+        sb.append(",").append(nl);
+        sb.append("  \"warmupRounds\": ").append(warmup);
+        sb.append(",").append(nl);
+        sb.append("  \"rounds\": ").append(rounds);
+        sb.append(",").append(nl);
+        sb.append("  \"unit\": \"us/op\",").append(nl);
+        sb.append("  \"benchmarks\": [");
+        boolean first = true;
+        for (String name : results.keySet())
+        {
+            double[] v = results.get(name);
+            sb.append(first ? "" : ",").append(nl);
+            first = false;
+            sb.append("    {\"name\": ").append(quote(name));
+            sb.append(", \"opsPerRound\": ").append(opsPerRound.get(name));
+            sb.append(String.format(", \"mean\": %.3f, \"stdev\": %.3f, "
+                          + "\"median\": %.3f, \"min\": %.3f, \"max\": %.3f}",
+                          mean(v)/1000.0,stdev(v)/1000.0,median(v)/1000.0,
+                          min(v)/1000.0,max(v)/1000.0));
+        }
+        sb.append(nl).append("  ]").append(nl).append("}").append(nl);
+
+        FileWriter fw = new FileWriter(fileName,false);
+        try {
+            fw.write(sb.toString());
+        } finally {
+            fw.close();
+        }
+        System.out.println("\nReport written to "+fileName
+                                                    +" (sink: "+sink+")");
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double min(double[] values)
+    {
+        double m = Double.MAX_VALUE;
+        for (double v : values)
+            m = Math.min(m,v);
+        return m;
+    }
+
+//------------------------------------------------------------------------------
+
+    private static double max(double[] values)
+    {
+        double m = -Double.MAX_VALUE;
+        for (double v : values)
+            m = Math.max(m,v);
+        return m;
+    }
+
+//------------------------------------------------------------------------------
+}